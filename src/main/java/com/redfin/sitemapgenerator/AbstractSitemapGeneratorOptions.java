@@ -2,6 +2,9 @@ package com.redfin.sitemapgenerator;
 
 import java.io.File;
 import java.net.URL;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
 
 // that weird thing with generics is so sub-classed objects will return themselves
 // It makes sense, I swear! http://madbean.com/2004/mb2004-3/
@@ -14,8 +17,30 @@ abstract class AbstractSitemapGeneratorOptions<THIS extends AbstractSitemapGener
 	String suffixStringPattern; // this will store some type of string pattern suitable per needs.
 	W3CDateFormat dateFormat;
 	int maxUrls = SitemapGenerator.MAX_URLS_PER_SITEMAP;
+	long maxBytes = SitemapGenerator.MAX_BYTES_PER_SITEMAP;
+	long maxCompressedBytes = 0;
+	ISitemapRolloverPolicy rolloverPolicy;
 	boolean autoValidate = false;
 	boolean gzip = false;
+	boolean streaming = false;
+	ExecutorService executor;
+	Executor gzipExecutor;
+	int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+	int compressionStrategy = Deflater.DEFAULT_STRATEGY;
+	int gzipBufferSize = SitemapCompressor.DEFAULT_BUFFER_SIZE;
+	int pipelineQueueSize = 0;
+	boolean concurrent = false;
+	ISitemapOutputSink outputSink;
+	FsyncPolicy fsyncPolicy;
+	File manifestFile;
+	boolean append = false;
+	boolean appendableGzip = false;
+	File locatorFile;
+	File checkpointFile;
+	boolean resume = false;
+	ISitemapDeduplicator deduplicator;
+	/** Name a lone sitemap as if it were the first of several, e.g. for families of sitemaps that share a directory */
+	boolean numberEverySitemap = false;
 	
 	public AbstractSitemapGeneratorOptions(URL baseUrl, File baseDir) {
 		if (baseUrl == null) throw new NullPointerException("baseUrl may not be null");
@@ -72,6 +97,35 @@ abstract class AbstractSitemapGeneratorOptions<THIS extends AbstractSitemapGener
 		this.maxUrls = maxUrls;
 		return getThis();
 	}
+	/**
+	 * The maximum uncompressed size of each sitemap in bytes; the default is the maximum allowed (50MB), but you
+	 * can decrease it if you wish.  When the next URL won't fit, we'll start a new sitemap.
+	 */
+	public THIS maxBytes(long maxBytes) {
+		if (maxBytes > SitemapGenerator.MAX_BYTES_PER_SITEMAP) {
+			throw new RuntimeException("You can only have 50MB per sitemap; to use more, allowMultipleSitemaps and generate a sitemap index. You asked for " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+		return getThis();
+	}
+	/**
+	 * A target size for each sitemap as written to disk, e.g. to keep each .xml.gz small enough for crawlers to
+	 * fetch quickly.  When a sitemap reaches this size, we'll start a new one.  For gzipped sitemaps this is only
+	 * a target: the compressor holds on to some data before writing it out, so a sitemap may end up a little bigger.
+	 * The default is 0, for no limit.
+	 */
+	public THIS maxCompressedBytes(long maxCompressedBytes) {
+		this.maxCompressedBytes = maxCompressedBytes;
+		return getThis();
+	}
+	/**
+	 * Your own rule for when a sitemap is full, on top of {@link #maxUrls(int)}, {@link #maxBytes(long)} and
+	 * {@link #maxCompressedBytes(long)}.  We start a new sitemap when any of them says the current one is full.
+	 */
+	public THIS rolloverPolicy(ISitemapRolloverPolicy rolloverPolicy) {
+		this.rolloverPolicy = rolloverPolicy;
+		return getThis();
+	}
 	/**
 	 * Validate the sitemaps automatically after writing them; this takes time (and may fail for Google-specific sitemaps)
 	 */
@@ -85,6 +139,205 @@ abstract class AbstractSitemapGeneratorOptions<THIS extends AbstractSitemapGener
 		return getThis();
 	}
 	
+	/**
+	 * Write sitemaps to this sink instead of to files in the baseDir, e.g. a {@link MemorySitemapOutputSink} or an
+	 * {@link OutputStreamSitemapOutputSink} to stream a sitemap straight into an HTTP response.  With a sink you don't
+	 * need a baseDir.  We can only {@link #autoValidate(boolean) validate} sitemaps that the sink writes to files.
+	 */
+	public THIS outputSink(ISitemapOutputSink outputSink) {
+		this.outputSink = outputSink;
+		return getThis();
+	}
+	
+	/**
+	 * Write sitemaps to the baseDir through NIO channels and big direct buffers (see {@link ChannelSitemapOutputSink}),
+	 * and force them out to the disk according to this policy.  By default we write with plain java.io and never
+	 * sync.  Ignored if you set an {@link #outputSink(ISitemapOutputSink) outputSink}; configure that sink instead.
+	 */
+	public THIS fsyncPolicy(FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+		return getThis();
+	}
+	
+	/**
+	 * Write each URL out to the current sitemap file as soon as it's added, instead of holding up to {@link #maxUrls(int)}
+	 * URLs in memory until the sitemap is full.  Memory use stays flat no matter how many URLs you add, but the
+	 * current sitemap file is only partially written until it's full or you call write(), and you can't use
+	 * writeAsStrings().  Requires a baseDir.
+	 */
+	public THIS streaming(boolean streaming) {
+		this.streaming = streaming;
+		return getThis();
+	}
+	
+	/**
+	 * Render and compress full sitemaps on this executor (e.g. a ForkJoinPool), so that many sitemaps can be
+	 * written at once.  Files are still numbered in the order URLs were added, but they only get their final
+	 * names when write() returns, which waits for all of them to finish.  We don't shut down the executor.
+	 * Can't be combined with {@link #streaming(boolean)}.
+	 */
+	public THIS executor(ExecutorService executor) {
+		this.executor = executor;
+		return getThis();
+	}
+	
+	/**
+	 * When gzipping, compress each sitemap in parallel blocks on this executor, the way pigz does, so that one
+	 * big sitemap isn't stuck on one core.  Each sitemap is still a single standard gzip stream.  This can be
+	 * the same executor you pass to {@link #executor(ExecutorService)}.
+	 */
+	public THIS gzipExecutor(Executor gzipExecutor) {
+		this.gzipExecutor = gzipExecutor;
+		return getThis();
+	}
+	
+	/**
+	 * Render, compress and write sitemaps on a background thread, so that addUrl() just hands each URL to a queue
+	 * that holds up to this many URLs, and only waits when the queue is full.  URLs are written out as they go, as
+	 * in {@link #streaming(boolean)} mode.  If the background thread fails, the next call to addUrl() or write()
+	 * throws.  The default is 0, to write on the calling thread.  Requires a baseDir, and can't be combined with
+	 * {@link #executor(ExecutorService)}.
+	 */
+	public THIS pipelineQueueSize(int pipelineQueueSize) {
+		if (pipelineQueueSize < 0) throw new RuntimeException("pipelineQueueSize can't be negative; you asked for " + pipelineQueueSize);
+		this.pipelineQueueSize = pipelineQueueSize;
+		return getThis();
+	}
+	
+	/**
+	 * Keep a {@link SitemapManifest} of the sitemaps in this file, recording each sitemap's URL count, size, content
+	 * hash and latest lastMod.  When the manifest from the last run is there, sitemaps whose content hasn't changed
+	 * are left alone instead of being rewritten, sitemaps left over from a bigger set are deleted, and the sitemap
+	 * index lists each sitemap with its own lastMod.  Each sitemap is written and hashed under a temporary name,
+	 * then moved into place if it's changed or deleted if it hasn't, so nothing extra is held in memory.  Requires a baseDir or an {@link #outputSink(ISitemapOutputSink) output sink}.
+	 */
+	public THIS manifest(File manifestFile) {
+		this.manifestFile = manifestFile;
+		return getThis();
+	}
+	
+	/**
+	 * Add to the sitemaps already in baseDir, instead of starting over.  We find the last sitemap of the set and
+	 * count its URLs; new URLs go into it until it's full, then into new sitemaps numbered after it, and
+	 * {@link SitemapGenerator#write()} and the sitemap index cover the whole set, old sitemaps and new.  Only the
+	 * last sitemap is rewritten, so the work scales with the number of new URLs, not the size of the set.  URLs
+	 * are written as they're added, as in {@link #streaming(boolean) streaming} mode, so sitemaps fill up exactly
+	 * as they would have if all the URLs had been added at once.  Can be {@link #pipelineQueueSize(int) pipelined},
+	 * but can't be combined with an executor, concurrent mode or a manifest, and needs a baseDir rather than an {@link #outputSink(ISitemapOutputSink) output sink}, since we have to
+	 * read the old sitemaps back.
+	 */
+	public THIS append(boolean append) {
+		this.append = append;
+		return getThis();
+	}
+	
+	/**
+	 * Write each gzipped sitemap as two or more gzip members, with the closing &lt;/urlset&gt; tag in a small member
+	 * of its own at the end.  The file is still an ordinary (concatenated) gzip stream that GZIPInputStream and
+	 * crawlers can read.  In {@link #append(boolean) append mode}, a sitemap written like this can be added to by
+	 * cutting off just the closing member and writing the new URLs after it, without decompressing or recompressing
+	 * what's already there; sitemaps written without it have to be read back and rewritten.  Only matters if
+	 * {@link #gzip(boolean)} is on.
+	 */
+	public THIS appendableGzip(boolean appendableGzip) {
+		this.appendableGzip = appendableGzip;
+		return getThis();
+	}
+	
+	/**
+	 * Write a {@link SitemapShardLocator locator file} alongside the sitemaps, saying which sitemap each URL is in,
+	 * so that a later update to one URL can go straight to the sitemap that has it.  While writing, we keep 8 bytes
+	 * per URL of each open sitemap in memory, and spill each finished sitemap's to a temporary file next to the
+	 * locator; the locator is merged from those once the sitemaps are finished.  The locator covers one complete
+	 * run, so it can't be combined with {@link #append(boolean) append mode} or {@link #resume(boolean) resuming},
+	 * which would leave it describing only some of the sitemaps.
+	 */
+	public THIS locator(File locatorFile) {
+		this.locatorFile = locatorFile;
+		return getThis();
+	}
+	
+	/**
+	 * Save a checkpoint each time a sitemap is finished, so that a long job that dies partway can
+	 * {@link #resume(boolean) resume} from the last finished sitemap instead of starting over.  The checkpoint
+	 * lists the finished sitemaps with their URL counts (and their manifest entries, if you're keeping a
+	 * {@link #manifest(File) manifest}), plus the cursor you passed with the last URL in them to
+	 * {@link SitemapGenerator#addUrl(ISitemapUrl, String)}.  It's deleted once write() has finished.  URLs are
+	 * written as they're added, as in {@link #streaming(boolean) streaming} mode, so each sitemap is finished as
+	 * soon as it's full.  Can't be combined with an executor, concurrent, pipelined or append mode.  Each finished
+	 * sitemap is appended to the checkpoint rather than rewriting it, so the checkpoint costs a small synced write
+	 * per sitemap however many there are.  The checkpoint itself is synced to disk; to be sure the sitemaps are too if the machine (not just the JVM) goes down, use
+	 * the {@link FsyncPolicy#PER_SHARD PER_SHARD} {@link #fsyncPolicy(FsyncPolicy) fsync policy}.
+	 */
+	public THIS checkpoint(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+		return getThis();
+	}
+	
+	/**
+	 * Pick up from the {@link #checkpoint(File) checkpoint} left by a run that didn't finish: the sitemaps it
+	 * finished are kept, any sitemap it had started after them is thrown away, and new URLs go into the next
+	 * sitemap.  Use {@link SitemapGenerator#getResumeCursor()} to find where to start reading URLs again.  If
+	 * there's no checkpoint, we start from scratch.  Can't be combined with a {@link #locator(File) locator file}.
+	 */
+	public THIS resume(boolean resume) {
+		this.resume = resume;
+		return getThis();
+	}
+	
+	/**
+	 * Drop URLs that have already been added, so each URL goes into the sitemaps once.  Use an
+	 * {@link ExactSitemapDeduplicator} to drop only true duplicates, or a {@link BloomSitemapDeduplicator} to use
+	 * much less memory at the cost of occasionally dropping a URL that wasn't one.  Both report how much memory
+	 * they use.  Works with every way of adding URLs.
+	 */
+	public THIS deduplicator(ISitemapDeduplicator deduplicator) {
+		this.deduplicator = deduplicator;
+		return getThis();
+	}
+	
+	/**
+	 * Let many threads call addUrl() at the same time.  Each thread fills up its own batch of URLs, and whichever
+	 * thread fills a batch writes it out as a sitemap (or hands it to the {@link #executor(ExecutorService)}, if
+	 * there is one), so threads don't wait on each other while adding URLs.  As with an executor, sitemaps only get
+	 * their final names when write() returns.  Call write() only once all the threads are done adding URLs.
+	 * Requires a baseDir, and can't be combined with {@link #streaming(boolean)} or {@link #pipelineQueueSize(int)}.
+	 */
+	public THIS concurrent(boolean concurrent) {
+		this.concurrent = concurrent;
+		return getThis();
+	}
+	
+	/**
+	 * How hard to work at gzipping, from {@link Deflater#BEST_SPEED} (1) to {@link Deflater#BEST_COMPRESSION} (9);
+	 * the default is {@link Deflater#DEFAULT_COMPRESSION}.  Fast levels suit big rebuilds, while level 9 makes
+	 * the smallest files to serve.
+	 */
+	public THIS compressionLevel(int compressionLevel) {
+		if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+			throw new RuntimeException("Compression level must be between 0 and 9; you asked for " + compressionLevel);
+		}
+		this.compressionLevel = compressionLevel;
+		return getThis();
+	}
+	
+	/** The {@link Deflater} strategy to gzip with, e.g. {@link Deflater#FILTERED}; the default is {@link Deflater#DEFAULT_STRATEGY} */
+	public THIS compressionStrategy(int compressionStrategy) {
+		if (compressionStrategy != Deflater.DEFAULT_STRATEGY && compressionStrategy != Deflater.FILTERED
+				&& compressionStrategy != Deflater.HUFFMAN_ONLY) {
+			throw new RuntimeException("Unknown compression strategy " + compressionStrategy);
+		}
+		this.compressionStrategy = compressionStrategy;
+		return getThis();
+	}
+	
+	/** The size in bytes of the buffer that gzipped output goes through on its way to disk; the default is 8K */
+	public THIS gzipBufferSize(int gzipBufferSize) {
+		if (gzipBufferSize <= 0) throw new RuntimeException("gzipBufferSize must be positive; you asked for " + gzipBufferSize);
+		this.gzipBufferSize = gzipBufferSize;
+		return getThis();
+	}
+	
 	@SuppressWarnings("unchecked")
 	THIS getThis() {
 		return (THIS)this;
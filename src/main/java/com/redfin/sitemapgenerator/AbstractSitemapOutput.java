@@ -0,0 +1,46 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Counts the bytes written to the underlying stream, and makes sure we only commit or abort once */
+abstract class AbstractSitemapOutput implements ISitemapOutput {
+	private final CountingOutputStream stream;
+	private boolean done = false;
+
+	AbstractSitemapOutput(OutputStream out) {
+		stream = new CountingOutputStream(out);
+	}
+
+	public OutputStream getStream() {
+		return stream;
+	}
+
+	public long getBytesWritten() {
+		return stream.getCount();
+	}
+
+	public void commit() throws IOException {
+		if (done) return;
+		done = true;
+		boolean committed = false;
+		try {
+			onCommit();
+			committed = true;
+		} finally {
+			if (!committed) onAbort();
+		}
+	}
+
+	public void abort() {
+		if (done) return;
+		done = true;
+		onAbort();
+	}
+
+	/** Closes the stream and puts the sitemap in place */
+	abstract void onCommit() throws IOException;
+
+	/** Closes the stream, if we can, and throws away whatever was written */
+	abstract void onAbort();
+}
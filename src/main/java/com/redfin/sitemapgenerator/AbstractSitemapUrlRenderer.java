@@ -1,52 +1,92 @@
 package com.redfin.sitemapgenerator;
 
+import java.io.IOException;
+
+import com.redfin.sitemapgenerator.Utf8XmlWriter.Fragment;
+
 abstract class AbstractSitemapUrlRenderer<T extends WebSitemapUrl> implements ISitemapUrlRenderer<T> {
+	private static final Fragment URL_LOC = new Fragment("  <url>\n    <loc>");
+	private static final Fragment LOC_END = new Fragment("</loc>\n");
+	private static final Fragment LASTMOD = new Fragment("    <lastmod>");
+	private static final Fragment LASTMOD_END = new Fragment("</lastmod>\n");
+	private static final Fragment PRIORITY = new Fragment("    <priority>");
+	private static final Fragment PRIORITY_END = new Fragment("</priority>\n");
+	private static final Fragment URL_END = new Fragment("  </url>\n");
+	private static final Fragment[] CHANGE_FREQS = new Fragment[ChangeFreq.values().length];
+	/** The priorities people actually use: 0.0, 0.1, ... 1.0 */
+	private static final Double[] COMMON_PRIORITIES = new Double[11];
+	private static final Fragment[] COMMON_PRIORITY_VALUES = new Fragment[11];
+	static {
+		for (ChangeFreq changeFreq : ChangeFreq.values()) {
+			CHANGE_FREQS[changeFreq.ordinal()] = new Fragment("    <changefreq>" + changeFreq + "</changefreq>\n");
+		}
+		for (int i = 0; i < COMMON_PRIORITIES.length; i++) {
+			COMMON_PRIORITIES[i] = i / 10.0;
+			COMMON_PRIORITY_VALUES[i] = new Fragment(COMMON_PRIORITIES[i].toString());
+		}
+	}
 	
-	public void render(WebSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat, String additionalData) {
-		sb.append("  <url>\n");
-		sb.append("    <loc>");
-		sb.append(UrlUtils.escapeXml(url.getUrl().toString()));
-		sb.append("</loc>\n");
+	public void render(WebSitemapUrl url, Appendable out, W3CDateFormat dateFormat, String additionalData) throws IOException {
+		renderStart(url, out, dateFormat);
+		if (additionalData != null) {
+			out.append(additionalData);
+		}
+		renderEnd(out);
+	}
+
+	/** Writes the opening &lt;url&gt; tag and the standard sitemap elements; extensions follow, then {@link #renderEnd(Appendable)} */
+	public void renderStart(WebSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+		Utf8XmlWriter.append(out, URL_LOC);
+		UrlUtils.escapeXml(url.getUrl().toString(), out);
+		Utf8XmlWriter.append(out, LOC_END);
 		if (url.getLastMod() != null) {
-			sb.append("    <lastmod>");
-			sb.append(dateFormat.format(url.getLastMod()));
-			sb.append("</lastmod>\n");
+			Utf8XmlWriter.append(out, LASTMOD);
+			out.append(dateFormat.format(url.getLastMod()));
+			Utf8XmlWriter.append(out, LASTMOD_END);
 		}
 		if (url.getChangeFreq() != null) {
-			sb.append("    <changefreq>");
-			sb.append(url.getChangeFreq().toString());
-			sb.append("</changefreq>\n");
+			Utf8XmlWriter.append(out, CHANGE_FREQS[url.getChangeFreq().ordinal()]);
 		}
 		if (url.getPriority() != null) {
-			sb.append("    <priority>");
-			sb.append(url.getPriority().toString());
-			sb.append("</priority>\n");
+			Utf8XmlWriter.append(out, PRIORITY);
+			renderPriority(out, url.getPriority());
+			Utf8XmlWriter.append(out, PRIORITY_END);
 		}
-		if (additionalData != null) {
-			sb.append(additionalData);
+	}
+
+	private void renderPriority(Appendable out, Double priority) throws IOException {
+		long tenths = Math.round(priority * 10);
+		if (tenths >= 0 && tenths < COMMON_PRIORITIES.length && COMMON_PRIORITIES[(int) tenths].doubleValue() == priority.doubleValue()) {
+			Utf8XmlWriter.append(out, COMMON_PRIORITY_VALUES[(int) tenths]);
+		} else {
+			out.append(priority.toString());
 		}
-		sb.append("  </url>\n");
 	}
 
-	public void renderTag(StringBuilder sb, String namespace, String tagName, Object value) {
+	/** Writes the closing &lt;/url&gt; tag */
+	public void renderEnd(Appendable out) throws IOException {
+		Utf8XmlWriter.append(out, URL_END);
+	}
+
+	public void renderTag(Appendable out, String namespace, String tagName, Object value) throws IOException {
 		if (value == null) return;
-		sb.append("      <");
-		sb.append(namespace);
-		sb.append(':');
-		sb.append(tagName);
-		sb.append('>');
-		sb.append(UrlUtils.escapeXml(value.toString()));
-		sb.append("</");
-		sb.append(namespace);
-		sb.append(':');
-		sb.append(tagName);
-		sb.append(">\n");
+		out.append("      <");
+		out.append(namespace);
+		out.append(':');
+		out.append(tagName);
+		out.append('>');
+		UrlUtils.escapeXml(value.toString(), out);
+		out.append("</");
+		out.append(namespace);
+		out.append(':');
+		out.append(tagName);
+		out.append(">\n");
 	}
 
-	public void renderSubTag(StringBuilder sb, String namespace, String tagName, Object value) {
+	public void renderSubTag(Appendable out, String namespace, String tagName, Object value) throws IOException {
 		if (value == null) return;
-		sb.append("  ");
-		renderTag(sb, namespace, tagName, value);
+		out.append("  ");
+		renderTag(out, namespace, tagName, value);
 	}
 
 }
@@ -0,0 +1,83 @@
+package com.redfin.sitemapgenerator;
+
+/**
+ * Drops duplicate URLs using a Bloom filter, which takes far less memory than remembering every URL exactly, at
+ * the cost of now and then taking a new URL for a duplicate and leaving it out of the sitemaps.  It never lets a
+ * real duplicate through.
+ * 
+ * <p>The filter is sized up front from the number of URLs you expect and the false-positive rate you'll put up
+ * with, e.g. about 1.2 bytes per URL for a rate of 1%, or 1.8 bytes for 0.1%, and never grows.  Add more URLs than
+ * you said to expect, and the rate climbs.</p>
+ * 
+ * <p>The whole filter is behind one lock, so in {@link AbstractSitemapGeneratorOptions#concurrent(boolean)
+ * concurrent mode} the adding threads take turns here; {@link ExactSitemapDeduplicator} is striped, if you can
+ * spare the memory.</p>
+ */
+public class BloomSitemapDeduplicator implements ISitemapDeduplicator {
+	private final long[] bits;
+	private final long bitCount;
+	private final int hashCount;
+	private long urlCount = 0;
+	private long duplicates = 0;
+
+	/**
+	 * @param expectedUrls how many distinct URLs you expect
+	 * @param falsePositiveRate the chance, once all the expected URLs are in, that a new URL is taken for a
+	 * duplicate, e.g. 0.01
+	 */
+	public BloomSitemapDeduplicator(long expectedUrls, double falsePositiveRate) {
+		if (expectedUrls <= 0) throw new RuntimeException("expectedUrls must be positive; you asked for " + expectedUrls);
+		if (!(falsePositiveRate > 0 && falsePositiveRate < 1)) {
+			throw new RuntimeException("falsePositiveRate must be between 0 and 1; you asked for " + falsePositiveRate);
+		}
+		double ln2 = Math.log(2);
+		long bits = (long) Math.ceil(-expectedUrls * Math.log(falsePositiveRate) / (ln2 * ln2));
+		long words = (bits + 63) >>> 6;
+		if (words > Integer.MAX_VALUE - 8) throw new RuntimeException("Bloom filter too big: " + bits + " bits");
+		this.bits = new long[(int) words];
+		bitCount = words << 6;
+		hashCount = Math.max(1, (int) Math.round((double) bitCount / expectedUrls * ln2));
+	}
+
+	public synchronized boolean add(String url) {
+		long fingerprint = SitemapShardLocator.fingerprint(url);
+		// double hashing: the two halves of the fingerprint make all the hash functions we need
+		long h1 = fingerprint >>> 32;
+		long h2 = fingerprint & 0xffffffffL;
+		boolean added = false;
+		for (int i = 0; i < hashCount; i++) {
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+			int word = (int) (bit >>> 6);
+			long mask = 1L << bit;
+			if ((bits[word] & mask) == 0) {
+				bits[word] |= mask;
+				added = true;
+			}
+		}
+		if (added) {
+			urlCount++;
+		} else {
+			duplicates++;
+		}
+		return added;
+	}
+
+	public long getMemoryBytes() {
+		return 8L * bits.length;
+	}
+
+	/** How many hash functions each URL sets bits for */
+	public int getHashCount() {
+		return hashCount;
+	}
+
+	/** How many URLs we've let through */
+	public synchronized long getUrlCount() {
+		return urlCount;
+	}
+
+	/** How many URLs we've dropped as duplicates, including any false positives */
+	public synchronized long getDuplicateCount() {
+		return duplicates;
+	}
+}
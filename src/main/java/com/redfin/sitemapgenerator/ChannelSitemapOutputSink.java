@@ -0,0 +1,225 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes sitemaps to files in a directory through NIO FileChannels.  Each sitemap is written to a hidden temporary
+ * file and moved into place when it's committed, and moves are atomic where the file system supports it, so a
+ * sitemap never appears under its final name half-written, and never disappears while it's being replaced.
+ * 
+ * <p>Each sitemap is gathered in a large direct ByteBuffer and written to its channel a buffer at a time, so a
+ * big sitemap takes a few large writes instead of thousands of small ones; the buffers are reused from one sitemap
+ * to the next, and we keep no more spare buffers than there are sitemaps being written at once.  The
+ * {@link FsyncPolicy} decides when sitemaps are forced out to the disk.</p>
+ */
+public class ChannelSitemapOutputSink implements ISitemapOutputSink {
+	/** 1MB per sitemap being written */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private final Path dir;
+	private final FsyncPolicy fsyncPolicy;
+	private final int bufferSize;
+	private final ConcurrentLinkedQueue<ByteBuffer> idleBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	/** How many sitemaps are being written right now, which caps how many spare buffers are worth keeping */
+	private final AtomicInteger openStreams = new AtomicInteger();
+	/** Sitemaps committed since the last sync, for {@link FsyncPolicy#AT_END} */
+	private final Set<String> unsynced = new LinkedHashSet<String>();
+	/** Whether we've created, renamed or deleted anything since the directory was last synced */
+	private boolean dirChanged = false;
+
+	/** @param dir the directory to write sitemaps to */
+	public ChannelSitemapOutputSink(Path dir) {
+		this(dir, FsyncPolicy.NONE, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param dir the directory to write sitemaps to
+	 * @param fsyncPolicy when to force sitemaps out to the disk
+	 * @param bufferSize the size of the direct buffer each sitemap is written through
+	 */
+	public ChannelSitemapOutputSink(Path dir, FsyncPolicy fsyncPolicy, int bufferSize) {
+		if (fsyncPolicy == null) throw new NullPointerException("fsyncPolicy may not be null");
+		if (bufferSize <= 0) throw new IllegalArgumentException("bufferSize must be positive: " + bufferSize);
+		this.dir = dir;
+		this.fsyncPolicy = fsyncPolicy;
+		this.bufferSize = bufferSize;
+	}
+
+	public ISitemapOutput open(final String name) throws IOException {
+		final Path path = dir.resolve(name);
+		final Path tmp = dir.resolve("." + name + ".tmp");
+		final ChannelOutputStream out = new ChannelOutputStream(FileChannel.open(tmp,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE));
+		return new AbstractSitemapOutput(out) {
+			@Override
+			void onCommit() throws IOException {
+				out.close();
+				if (fsyncPolicy == FsyncPolicy.PER_SHARD) out.channel.force(false);
+				out.channel.close();
+				move(tmp, path);
+				synchronized (unsynced) {
+					if (fsyncPolicy == FsyncPolicy.AT_END) unsynced.add(name);
+					dirChanged = true;
+				}
+			}
+
+			@Override
+			void onAbort() {
+				out.discard();
+				try {
+					out.channel.close();
+					Files.deleteIfExists(tmp);
+				} catch (IOException e) {
+					// we're already failing; don't mask the original problem
+				}
+			}
+		};
+	}
+
+	public void rename(String from, String to) throws IOException {
+		move(dir.resolve(from), dir.resolve(to));
+		synchronized (unsynced) {
+			if (unsynced.remove(from)) unsynced.add(to);
+			dirChanged = true;
+		}
+	}
+
+	public void delete(String name) throws IOException {
+		Files.deleteIfExists(dir.resolve(name));
+		synchronized (unsynced) {
+			unsynced.remove(name);
+			dirChanged = true;
+		}
+	}
+
+	/** Forces out any sitemaps we've been holding back, then the directory itself, so their names stick too */
+	@Override
+	public void finish() throws IOException {
+		if (fsyncPolicy == FsyncPolicy.NONE) return;
+		List<String> names;
+		synchronized (unsynced) {
+			names = new ArrayList<String>(unsynced);
+			unsynced.clear();
+			if (!dirChanged && names.isEmpty()) return;
+			dirChanged = false;
+		}
+		for (String name : names) {
+			FileChannel channel = FileChannel.open(dir.resolve(name), StandardOpenOption.WRITE);
+			try {
+				channel.force(false);
+			} finally {
+				channel.close();
+			}
+		}
+		syncDir();
+	}
+
+	private static void move(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private void syncDir() {
+		try {
+			FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// some platforms (Windows) can't open or sync a directory; the files themselves are safe
+		}
+	}
+
+	/** How many spare buffers we're holding on to */
+	int getIdleBufferCount() {
+		return idleCount.get();
+	}
+
+	@Override
+	public File getFile(String name) {
+		return dir.resolve(name).toFile();
+	}
+
+	/** Gathers bytes in a pooled direct buffer, and writes them to the channel a buffer at a time */
+	private class ChannelOutputStream extends OutputStream {
+		final FileChannel channel;
+		private ByteBuffer buffer;
+
+		ChannelOutputStream(FileChannel channel) {
+			this.channel = channel;
+			openStreams.incrementAndGet();
+			ByteBuffer idle = idleBuffers.poll();
+			if (idle != null) idleCount.decrementAndGet();
+			buffer = idle != null ? idle : ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (buffer == null || !buffer.hasRemaining()) flushBuffer();
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (buffer == null || !buffer.hasRemaining()) flushBuffer();
+				int n = Math.min(len, buffer.remaining());
+				buffer.put(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushBuffer() throws IOException {
+			if (buffer == null) throw new IOException("Stream closed");
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		/** Writes out what's left in the buffer and gives the buffer back; the channel stays open until we commit or abort */
+		@Override
+		public void close() throws IOException {
+			if (buffer == null) return;
+			flushBuffer();
+			discard();
+		}
+
+		/**
+		 * Gives the buffer back without writing out what's in it.  We keep a spare for each sitemap still being
+		 * written, plus one for the next sitemap, and let the rest go.
+		 */
+		void discard() {
+			if (buffer == null) return;
+			buffer.clear();
+			int open = openStreams.decrementAndGet();
+			idleBuffers.offer(buffer);
+			idleCount.incrementAndGet();
+			while (idleCount.get() > open + 1 && idleBuffers.poll() != null) idleCount.decrementAndGet();
+			buffer = null;
+		}
+	}
+}
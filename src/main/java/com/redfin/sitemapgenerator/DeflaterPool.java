@@ -0,0 +1,69 @@
+package com.redfin.sitemapgenerator;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps idle Deflaters around so that every sitemap doesn't have to allocate (and later free) its own native
+ * zlib stream.  Deflaters are raw (no zlib header), since we write the gzip header and trailer ourselves, and
+ * are kept separately for each compression level and strategy.
+ *
+ * <p>One pool is shared by all the generators in the JVM.</p>
+ */
+class DeflaterPool {
+	static final DeflaterPool SHARED = new DeflaterPool(2 * Runtime.getRuntime().availableProcessors());
+
+	private final int maxIdlePerSetting;
+	private final Map<Integer, ArrayDeque<Deflater>> idle = new HashMap<Integer, ArrayDeque<Deflater>>();
+
+	/** @param maxIdlePerSetting how many idle Deflaters to keep for each level and strategy; the rest are ended */
+	DeflaterPool(int maxIdlePerSetting) {
+		this.maxIdlePerSetting = maxIdlePerSetting;
+	}
+
+	/** Hands out an idle Deflater, or a new one if there aren't any; give it back with {@link #release} */
+	Deflater borrow(int level, int strategy) {
+		synchronized (idle) {
+			ArrayDeque<Deflater> deflaters = idle.get(key(level, strategy));
+			if (deflaters != null && !deflaters.isEmpty()) return deflaters.removeLast();
+		}
+		Deflater deflater = new Deflater(level, true);
+		deflater.setStrategy(strategy);
+		return deflater;
+	}
+
+	/** Takes back a Deflater that was borrowed with the same level and strategy, resetting it for its next use */
+	void release(Deflater deflater, int level, int strategy) {
+		deflater.reset();
+		synchronized (idle) {
+			Integer key = key(level, strategy);
+			ArrayDeque<Deflater> deflaters = idle.get(key);
+			if (deflaters == null) {
+				deflaters = new ArrayDeque<Deflater>();
+				idle.put(key, deflaters);
+			}
+			if (deflaters.size() < maxIdlePerSetting) {
+				deflaters.addLast(deflater);
+				return;
+			}
+		}
+		deflater.end();
+	}
+
+	/** The number of idle Deflaters we're holding on to */
+	int getIdleCount() {
+		int count = 0;
+		synchronized (idle) {
+			for (ArrayDeque<Deflater> deflaters : idle.values()) {
+				count += deflaters.size();
+			}
+		}
+		return count;
+	}
+
+	private static Integer key(int level, int strategy) {
+		return (level + 1) * 16 + strategy;
+	}
+}
@@ -0,0 +1,116 @@
+package com.redfin.sitemapgenerator;
+
+/**
+ * Drops duplicate URLs by remembering the 64-bit {@link SitemapShardLocator#fingerprint(String) fingerprint} of
+ * every URL in an open-addressing hash table: long[]s, with no object per URL, so 300 million URLs fit in a
+ * few gigabytes rather than the tens a HashSet&lt;String&gt; would need.
+ * 
+ * <p>The table is sized up front for the number of URLs you expect, at most three-quarters full, so memory is
+ * known before you start: 8 bytes per slot, with slots rounded up to a power of two.  If more URLs than that come
+ * along, the table doubles.  Two different URLs with the same fingerprint would be taken for duplicates, but with
+ * 64 bits that's vanishingly unlikely (around one chance in four thousand across a hundred million URLs).</p>
+ * 
+ * <p>The table is split into 16 stripes by the top bits of the fingerprint, each with its own lock, so threads
+ * adding URLs in {@link AbstractSitemapGeneratorOptions#concurrent(boolean) concurrent mode} seldom wait on each
+ * other.  A URL always lands in the same stripe, so duplicates are still caught across threads.</p>
+ */
+public class ExactSitemapDeduplicator implements ISitemapDeduplicator {
+	private static final int MAX_CAPACITY = 1 << 30;
+	private static final int STRIPE_BITS = 4;
+	private static final int STRIPES = 1 << STRIPE_BITS;
+	private final Stripe[] stripes = new Stripe[STRIPES];
+
+	/** One stripe's table, guarded by the stripe itself */
+	private static final class Stripe {
+		long[] table;
+		int mask;
+		long size = 0;
+		long duplicates = 0;
+
+		Stripe(int capacity) {
+			table = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		synchronized boolean add(long fingerprint) {
+			if (!insert(table, mask, fingerprint)) {
+				duplicates++;
+				return false;
+			}
+			size++;
+			if (size > table.length - (table.length >> 2)) grow();
+			return true;
+		}
+
+		private void grow() {
+			if (table.length == MAX_CAPACITY / STRIPES) throw new RuntimeException("Too many URLs for one table: " + size * STRIPES);
+			long[] bigger = new long[table.length * 2];
+			int biggerMask = bigger.length - 1;
+			for (long fingerprint : table) {
+				if (fingerprint != 0) insert(bigger, biggerMask, fingerprint);
+			}
+			table = bigger;
+			mask = biggerMask;
+		}
+	}
+
+	/** @param expectedUrls how many distinct URLs you expect; the table is sized so it won't have to grow */
+	public ExactSitemapDeduplicator(long expectedUrls) {
+		if (expectedUrls <= 0) throw new RuntimeException("expectedUrls must be positive; you asked for " + expectedUrls);
+		long needed = expectedUrls + (expectedUrls + 2) / 3;
+		if (needed > MAX_CAPACITY) throw new RuntimeException("Too many URLs for one table: " + expectedUrls);
+		int capacity = Math.max(16 * STRIPES, Integer.highestOneBit((int) needed - 1) << 1);
+		for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(capacity / STRIPES);
+	}
+
+	public boolean add(String url) {
+		long fingerprint = SitemapShardLocator.fingerprint(url);
+		// 0 marks an empty slot
+		if (fingerprint == 0) fingerprint = 1;
+		// the top bits pick the stripe, and the low bits the slot within it
+		return stripes[(int) (fingerprint >>> (64 - STRIPE_BITS))].add(fingerprint);
+	}
+
+	private static boolean insert(long[] table, int mask, long fingerprint) {
+		// the fingerprint is already well mixed, so its low bits make a fine slot number
+		for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask) {
+			if (table[i] == fingerprint) return false;
+			if (table[i] == 0) {
+				table[i] = fingerprint;
+				return true;
+			}
+		}
+	}
+
+	public long getMemoryBytes() {
+		long bytes = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				bytes += 8L * stripe.table.length;
+			}
+		}
+		return bytes;
+	}
+
+	/** How many distinct URLs we've seen */
+	public long getUrlCount() {
+		long count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.size;
+			}
+		}
+		return count;
+	}
+
+	/** How many duplicates we've dropped */
+	public long getDuplicateCount() {
+		long count = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				count += stripe.duplicates;
+			}
+		}
+		return count;
+	}
+}
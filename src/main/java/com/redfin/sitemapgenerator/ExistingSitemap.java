@@ -0,0 +1,78 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A sitemap we wrote on an earlier run, read back in so we can add more URLs to it.  We keep everything but the
+ * closing &lt;/urlset&gt; tag, so the new URLs can be written straight after the old ones.
+ */
+class ExistingSitemap {
+	private static final byte[] URL_TAG = new Utf8XmlWriter.Fragment("<url>").bytes;
+	private final String name;
+	private final byte[] bytes;
+	private final int length;
+	private final int urlCount;
+
+	private ExistingSitemap(String name, byte[] bytes, int length, int urlCount) {
+		this.name = name;
+		this.bytes = bytes;
+		this.length = length;
+		this.urlCount = urlCount;
+	}
+
+	/** Reads the sitemap, gunzipping it if need be, and counts its URLs */
+	static ExistingSitemap read(File file, boolean gzip) throws IOException {
+		InputStream in = new FileInputStream(file);
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(file.length() * (gzip ? 10 : 1), Integer.MAX_VALUE - 8));
+		try {
+			if (gzip) in = new GZIPInputStream(in);
+			byte[] buf = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+		} finally {
+			in.close();
+		}
+		byte[] bytes = out.toByteArray();
+		byte[] footer = SitemapShardWriter.footer().bytes;
+		int end = bytes.length;
+		while (end > 0 && Character.isWhitespace(bytes[end - 1])) end--;
+		int length = end - footer.length;
+		if (length < 0 || !regionMatches(bytes, length, footer)) {
+			throw new IOException("Sitemap " + file + " doesn't end with " + SitemapShardWriter.footer());
+		}
+		int urlCount = 0;
+		for (int i = 0; i + URL_TAG.length <= length; i++) {
+			if (bytes[i] == '<' && regionMatches(bytes, i, URL_TAG)) urlCount++;
+		}
+		return new ExistingSitemap(file.getName(), bytes, length, urlCount);
+	}
+
+	private static boolean regionMatches(byte[] bytes, int offset, byte[] expected) {
+		for (int i = 0; i < expected.length; i++) {
+			if (bytes[offset + i] != expected[i]) return false;
+		}
+		return true;
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/** The sitemap up to, but not including, the closing &lt;/urlset&gt; tag */
+	byte[] getBytes() {
+		return bytes;
+	}
+
+	int getLength() {
+		return length;
+	}
+
+	int getUrlCount() {
+		return urlCount;
+	}
+}
@@ -0,0 +1,53 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/** Writes sitemaps to files in a directory, using plain java.io; this is what you get when you give the generator a baseDir */
+public class FileSitemapOutputSink implements ISitemapOutputSink {
+	private final File dir;
+
+	/** @param dir the directory to write sitemaps to */
+	public FileSitemapOutputSink(File dir) {
+		this.dir = dir;
+	}
+
+	public ISitemapOutput open(String name) throws IOException {
+		final File file = getFile(name);
+		final FileOutputStream out = new FileOutputStream(file);
+		return new AbstractSitemapOutput(out) {
+			@Override
+			void onCommit() throws IOException {
+				out.close();
+			}
+
+			@Override
+			void onAbort() {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// we're already failing; don't mask the original problem
+				}
+				file.delete();
+			}
+		};
+	}
+
+	public void rename(String from, String to) throws IOException {
+		File fromFile = getFile(from);
+		File toFile = getFile(to);
+		if (toFile.exists() && !toFile.delete()) throw new IOException("Couldn't replace sitemap file " + toFile);
+		if (!fromFile.renameTo(toFile)) throw new IOException("Couldn't rename sitemap file " + fromFile + " to " + toFile);
+	}
+
+	public void delete(String name) throws IOException {
+		File file = getFile(name);
+		if (file.exists() && !file.delete()) throw new IOException("Couldn't delete sitemap file " + file);
+	}
+
+	@Override
+	public File getFile(String name) {
+		return new File(dir, name);
+	}
+}
@@ -0,0 +1,15 @@
+package com.redfin.sitemapgenerator;
+
+/**
+ * When a {@link ChannelSitemapOutputSink} forces sitemaps out to the disk
+ * 
+ * @see AbstractSitemapGeneratorOptions#fsyncPolicy(FsyncPolicy)
+ */
+public enum FsyncPolicy {
+	/** Never; leave it to the operating system, which is fastest, but sitemaps may be lost if the machine crashes */
+	NONE,
+	/** As each sitemap is finished, before the next one is started */
+	PER_SHARD,
+	/** Once, after write() has finished and named all of the sitemaps (and again for the index), so a big set of sitemaps costs only one round of syncs */
+	AT_END,
+}
@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -86,17 +87,17 @@ public class GoogleCodeSitemapGenerator extends SitemapGenerator<GoogleCodeSitem
 			return "xmlns:codesearch=\"http://www.google.com/codesearch/schemas/sitemap/1.0\"";
 		}
 
-		public void render(GoogleCodeSitemapUrl url, StringBuilder sb,
-				W3CDateFormat dateFormat) {
-			StringBuilder tagSb = new StringBuilder();
-			tagSb.append("    <codesearch:codesearch>\n");
-			renderTag(tagSb, "codesearch", "filetype", url.getFileType());
-			renderTag(tagSb, "codesearch", "license", url.getLicense());
-			renderTag(tagSb, "codesearch", "filename", url.getFileName());
-			renderTag(tagSb, "codesearch", "packageurl", url.getPackageUrl());
-			renderTag(tagSb, "codesearch", "packagemap", url.getPackageMap());
-			tagSb.append("    </codesearch:codesearch>\n");
-			super.render(url, sb, dateFormat, tagSb.toString());
+		public void render(GoogleCodeSitemapUrl url, Appendable out,
+				W3CDateFormat dateFormat) throws IOException {
+			renderStart(url, out, dateFormat);
+			out.append("    <codesearch:codesearch>\n");
+			renderTag(out, "codesearch", "filetype", url.getFileType());
+			renderTag(out, "codesearch", "license", url.getLicense());
+			renderTag(out, "codesearch", "filename", url.getFileName());
+			renderTag(out, "codesearch", "packageurl", url.getPackageUrl());
+			renderTag(out, "codesearch", "packagemap", url.getPackageMap());
+			out.append("    </codesearch:codesearch>\n");
+			renderEnd(out);
 		}
 		
 	}
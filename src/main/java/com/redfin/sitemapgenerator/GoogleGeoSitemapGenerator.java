@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -87,12 +88,14 @@ public class GoogleGeoSitemapGenerator extends SitemapGenerator<GoogleGeoSitemap
 			return "xmlns:geo=\"http://www.google.com/geo/schemas/sitemap/1.0\"";
 		}
 
-		public void render(GoogleGeoSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat) {
-			StringBuilder tagSb = new StringBuilder();
-			tagSb.append("    <geo:geo>\n");
-			tagSb.append("      <geo:format>"+url.getFormat()+"</geo:format>\n");
-			tagSb.append("    </geo:geo>\n");
-			super.render(url, sb, dateFormat, tagSb.toString());
+		public void render(GoogleGeoSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+			renderStart(url, out, dateFormat);
+			out.append("    <geo:geo>\n");
+			out.append("      <geo:format>");
+			out.append(String.valueOf(url.getFormat()));
+			out.append("</geo:format>\n");
+			out.append("    </geo:geo>\n");
+			renderEnd(out);
 		}
 		
 	}
@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -85,19 +86,18 @@ public class GoogleImageSitemapGenerator extends SitemapGenerator<GoogleImageSit
             return "xmlns:image=\"http://www.google.com/schemas/sitemap-image/1.1\"";
         }
 
-        public void render(GoogleImageSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat) {
-            StringBuilder tagSb = new StringBuilder();
-
+        public void render(GoogleImageSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+            renderStart(url, out, dateFormat);
             for(Image image : url.getImages()) {
-                tagSb.append("    <image:image>\n");
-                renderTag(tagSb, "image", "loc", image.getUrl());
-                renderTag(tagSb, "image", "caption", image.getCaption());
-                renderTag(tagSb, "image", "title", image.getTitle());
-                renderTag(tagSb, "image", "geo_location", image.getGeoLocation());
-                renderTag(tagSb, "image", "license", image.getLicense());
-                tagSb.append("    </image:image>\n");
+                out.append("    <image:image>\n");
+                renderTag(out, "image", "loc", image.getUrl());
+                renderTag(out, "image", "caption", image.getCaption());
+                renderTag(out, "image", "title", image.getTitle());
+                renderTag(out, "image", "geo_location", image.getGeoLocation());
+                renderTag(out, "image", "license", image.getLicense());
+                out.append("    </image:image>\n");
             }
-            super.render(url, sb, dateFormat, tagSb.toString());
+            renderEnd(out);
         }
     }
 }
@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.*;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -27,19 +28,22 @@ public class GoogleLinkSitemapGenerator extends SitemapGenerator<GoogleLinkSitem
 			return "xmlns:xhtml=\"http://www.w3.org/1999/xhtml\"";
 		}
 
-		public void render(final GoogleLinkSitemapUrl url, final StringBuilder sb, final W3CDateFormat dateFormat) {
+		public void render(final GoogleLinkSitemapUrl url, final Appendable out, final W3CDateFormat dateFormat)
+			throws IOException {
 
-			final StringBuilder tagSb = new StringBuilder();
+			renderStart(url, out, dateFormat);
 			for (final Entry<URI, Map<String, String>> entry : url.getAlternates().entrySet()) {
-				tagSb.append("    <xhtml:link\n");
-				tagSb.append("      rel=\"alternate\"\n");
+				out.append("    <xhtml:link\n");
+				out.append("      rel=\"alternate\"\n");
 				for(final Entry<String, String> innerEntry : entry.getValue().entrySet()){
-					tagSb.append("      " + innerEntry.getKey() + "=\"" + innerEntry.getValue() + "\"\n");
+					out.append("      ").append(innerEntry.getKey()).append("=\"").append(innerEntry.getValue()).append("\"\n");
 				}
-				tagSb.append("      href=\"" + UrlUtils.escapeXml(entry.getKey().toString()) + "\"\n");
-				tagSb.append("    />\n");
+				out.append("      href=\"");
+				UrlUtils.escapeXml(entry.getKey().toString(), out);
+				out.append("\"\n");
+				out.append("    />\n");
 			}
-			super.render(url, sb, dateFormat, tagSb.toString());
+			renderEnd(out);
 		}
 
 	}
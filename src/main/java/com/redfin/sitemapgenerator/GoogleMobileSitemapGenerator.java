@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -85,9 +86,9 @@ public class GoogleMobileSitemapGenerator extends SitemapGenerator<GoogleMobileS
 			return "xmlns:mobile=\"http://www.google.com/schemas/sitemap-mobile/1.0\"";
 		}
 
-		public void render(GoogleMobileSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat) {
+		public void render(GoogleMobileSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
 			String additionalData = "    <mobile:mobile/>\n";
-			super.render(url, sb, dateFormat, additionalData);
+			super.render(url, out, dateFormat, additionalData);
 		}
 		
 	}
@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -97,19 +98,19 @@ public class GoogleNewsSitemapGenerator extends SitemapGenerator<GoogleNewsSitem
 			return "xmlns:news=\"http://www.google.com/schemas/sitemap-news/0.9\"";
 		}
 
-		public void render(GoogleNewsSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat) {
-			StringBuilder tagSb = new StringBuilder();
-			tagSb.append("    <news:news>\n");
-			tagSb.append("      <news:publication>\n");
-			renderSubTag(tagSb, "news", "name", url.getPublication().getName());
-			renderSubTag(tagSb, "news", "language", url.getPublication().getLanguage());
-			tagSb.append("      </news:publication>\n");
-			renderTag(tagSb, "news", "genres", url.getGenres());
-			renderTag(tagSb, "news", "publication_date", dateFormat.format(url.getPublicationDate()));
-			renderTag(tagSb, "news", "title", url.getTitle());
-			renderTag(tagSb, "news", "keywords", url.getKeywords());
-			tagSb.append("    </news:news>\n");
-			super.render(url, sb, dateFormat, tagSb.toString());
+		public void render(GoogleNewsSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+			renderStart(url, out, dateFormat);
+			out.append("    <news:news>\n");
+			out.append("      <news:publication>\n");
+			renderSubTag(out, "news", "name", url.getPublication().getName());
+			renderSubTag(out, "news", "language", url.getPublication().getLanguage());
+			out.append("      </news:publication>\n");
+			renderTag(out, "news", "genres", url.getGenres());
+			renderTag(out, "news", "publication_date", dateFormat.format(url.getPublicationDate()));
+			renderTag(out, "news", "title", url.getTitle());
+			renderTag(out, "news", "keywords", url.getKeywords());
+			out.append("    </news:news>\n");
+			renderEnd(out);
 		}
 		
 	}
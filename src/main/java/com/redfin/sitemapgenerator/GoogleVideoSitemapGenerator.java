@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -85,35 +86,35 @@ public class GoogleVideoSitemapGenerator extends SitemapGenerator<GoogleVideoSit
 			return "xmlns:video=\"http://www.google.com/schemas/sitemap-video/1.1\"";
 		}
 
-		public void render(GoogleVideoSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat) {
-			StringBuilder tagSb = new StringBuilder();
-			tagSb.append("    <video:video>\n");
-			renderTag(tagSb, "video", "content_loc", url.getContentUrl());
+		public void render(GoogleVideoSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+			renderStart(url, out, dateFormat);
+			out.append("    <video:video>\n");
+			renderTag(out, "video", "content_loc", url.getContentUrl());
 			if (url.getPlayerUrl() != null) {
-				tagSb.append("      <video:player_loc allow_embed=\"");
-				tagSb.append(url.getAllowEmbed());
-				tagSb.append("\">");
-				tagSb.append(url.getPlayerUrl());
-				tagSb.append("</video:player_loc>\n");
+				out.append("      <video:player_loc allow_embed=\"");
+				out.append(url.getAllowEmbed());
+				out.append("\">");
+				out.append(url.getPlayerUrl().toString());
+				out.append("</video:player_loc>\n");
 			}
-			renderTag(tagSb, "video", "thumbnail_loc", url.getThumbnailUrl());
-			renderTag(tagSb, "video", "title", url.getTitle());
-			renderTag(tagSb, "video", "description", url.getDescription());
-			renderTag(tagSb, "video", "rating", url.getRating());
-			renderTag(tagSb, "video", "view_count", url.getViewCount());
+			renderTag(out, "video", "thumbnail_loc", url.getThumbnailUrl());
+			renderTag(out, "video", "title", url.getTitle());
+			renderTag(out, "video", "description", url.getDescription());
+			renderTag(out, "video", "rating", url.getRating());
+			renderTag(out, "video", "view_count", url.getViewCount());
 			if (url.getPublicationDate() != null) {
-				renderTag(tagSb, "video", "publication_date", dateFormat.format(url.getPublicationDate()));
+				renderTag(out, "video", "publication_date", dateFormat.format(url.getPublicationDate()));
 			}
 			if (url.getTags() != null) {
 				for (String tag : url.getTags()) {
-					renderTag(tagSb, "video", "tag", tag);
+					renderTag(out, "video", "tag", tag);
 				}
 			}
-			renderTag(tagSb, "video", "category", url.getCategory());
-			renderTag(tagSb, "video", "family_friendly", url.getFamilyFriendly());
-			renderTag(tagSb, "video", "duration", url.getDurationInSeconds());
-			tagSb.append("    </video:video>\n");
-			super.render(url, sb, dateFormat, tagSb.toString());
+			renderTag(out, "video", "category", url.getCategory());
+			renderTag(out, "video", "family_friendly", url.getFamilyFriendly());
+			renderTag(out, "video", "duration", url.getDurationInSeconds());
+			out.append("    </video:video>\n");
+			renderEnd(out);
 		}
 		
 	}
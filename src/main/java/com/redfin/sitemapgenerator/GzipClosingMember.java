@@ -0,0 +1,164 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * The small gzip member that holds nothing but the closing &lt;/urlset&gt; tag of an appendable gzipped sitemap.
+ *
+ * <p>A gzip file can be several gzip members one after another; GZIPInputStream and crawlers read them as one
+ * stream.  If a sitemap's closing tag is in a member of its own, we can add URLs by cutting off just that member,
+ * writing a new member with the new URLs, and writing a fresh closing member, without touching (or recompressing)
+ * the members before it.</p>
+ *
+ * <p>The closing member is always the same size: the tag is stored rather than deflated, and the sitemap's URL
+ * count and uncompressed size are kept as fixed-width numbers in the member's comment field, so we can read them
+ * back without inflating the whole sitemap.  That way we can find it and check it at the end of the file.</p>
+ */
+class GzipClosingMember {
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final int FCOMMENT = 0x10;
+	private static final String COMMENT_FORMAT = "sitemap urls=%010d bytes=%015d";
+	private static final int URLS_OFFSET = "sitemap urls=".length();
+	private static final int BYTES_OFFSET = URLS_OFFSET + 10 + " bytes=".length();
+	private static final int HEADER_LENGTH = PooledGzipOutputStream.HEADER.length;
+	/** The size of every closing member, in bytes */
+	static final int LENGTH = build(0, 0).length;
+
+	private final int urlCount;
+	private final long bytes;
+	private final long offset;
+	private final byte[] member;
+
+	private GzipClosingMember(int urlCount, long bytes, long offset, byte[] member) {
+		this.urlCount = urlCount;
+		this.bytes = bytes;
+		this.offset = offset;
+		this.member = member;
+	}
+
+	/** Writes the closing member for a sitemap with this many URLs and uncompressed bytes, including the closing tag */
+	static void write(OutputStream out, int urlCount, long bytes) throws IOException {
+		out.write(build(urlCount, bytes));
+	}
+
+	private static byte[] build(int urlCount, long bytes) {
+		byte[] footer = SitemapShardWriter.footer().bytes;
+		byte[] comment = String.format(COMMENT_FORMAT, urlCount, bytes).getBytes(LATIN1);
+		byte[] member = new byte[HEADER_LENGTH + comment.length + 1 + 5 + footer.length + 8];
+		System.arraycopy(PooledGzipOutputStream.HEADER, 0, member, 0, HEADER_LENGTH);
+		member[3] = FCOMMENT;
+		int i = HEADER_LENGTH;
+		System.arraycopy(comment, 0, member, i, comment.length);
+		i += comment.length + 1;
+		// a single final stored block: BFINAL=1, BTYPE=00, then LEN and its complement
+		member[i++] = 1;
+		member[i++] = (byte) footer.length;
+		member[i++] = (byte) (footer.length >> 8);
+		member[i++] = (byte) ~footer.length;
+		member[i++] = (byte) (~footer.length >> 8);
+		System.arraycopy(footer, 0, member, i, footer.length);
+		i += footer.length;
+		CRC32 crc = new CRC32();
+		crc.update(footer);
+		putInt(member, i, (int) crc.getValue());
+		putInt(member, i + 4, footer.length);
+		return member;
+	}
+
+	private static void putInt(byte[] b, int off, int value) {
+		b[off] = (byte) value;
+		b[off + 1] = (byte) (value >> 8);
+		b[off + 2] = (byte) (value >> 16);
+		b[off + 3] = (byte) (value >> 24);
+	}
+
+	/** Reads the closing member at the end of the file, or returns null if the file doesn't end with one */
+	static GzipClosingMember read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long offset = raf.length() - LENGTH;
+			if (offset < 0) return null;
+			byte[] member = new byte[LENGTH];
+			raf.seek(offset);
+			raf.readFully(member);
+			if (member[0] != 0x1f || (member[1] & 0xff) != 0x8b || member[2] != Deflater.DEFLATED || member[3] != FCOMMENT) return null;
+			String comment = new String(member, HEADER_LENGTH, BYTES_OFFSET + 15, LATIN1);
+			int urlCount;
+			long bytes;
+			try {
+				urlCount = Integer.parseInt(comment.substring(URLS_OFFSET, URLS_OFFSET + 10));
+				bytes = Long.parseLong(comment.substring(BYTES_OFFSET));
+			} catch (RuntimeException e) {
+				return null;
+			}
+			if (!Arrays.equals(member, build(urlCount, bytes))) return null;
+			return new GzipClosingMember(urlCount, bytes, offset, member);
+		} finally {
+			raf.close();
+		}
+	}
+
+	int getUrlCount() {
+		return urlCount;
+	}
+
+	/** The uncompressed size of the whole sitemap, including the closing tag */
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Cuts the closing member off the end of the file, and returns an output that writes on from there.  If the
+	 * output is aborted, we put the closing member back, so the sitemap is just as it was.
+	 */
+	ISitemapOutput appendTo(File file) throws IOException {
+		final FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+		try {
+			channel.truncate(offset);
+			channel.position(offset);
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		final OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+		return new AbstractSitemapOutput(out) {
+			@Override
+			public long getBytesWritten() {
+				return offset + super.getBytesWritten();
+			}
+
+			@Override
+			void onCommit() throws IOException {
+				out.close();
+			}
+
+			@Override
+			void onAbort() {
+				try {
+					channel.truncate(offset);
+					channel.position(offset);
+					channel.write(ByteBuffer.wrap(member));
+				} catch (IOException e) {
+					// we're already failing; don't mask the original problem
+				} finally {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						// as above
+					}
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,24 @@
+package com.redfin.sitemapgenerator;
+
+/**
+ * Remembers the URLs the generator has seen, so that a URL added twice only goes into the sitemaps once.
+ * 
+ * <p>The generator asks after it checks each URL and before it writes it, from whichever thread added the URL,
+ * so implementations have to be thread-safe.</p>
+ * 
+ * @see AbstractSitemapGeneratorOptions#deduplicator(ISitemapDeduplicator)
+ * @see ExactSitemapDeduplicator
+ * @see BloomSitemapDeduplicator
+ */
+public interface ISitemapDeduplicator {
+
+	/**
+	 * @param url the URL, as a string
+	 * @return true if we haven't seen the URL before, so it should be written; false if it's a duplicate
+	 */
+	public boolean add(String url);
+
+	/** How much memory we're using to remember the URLs, in bytes */
+	public long getMemoryBytes();
+
+}
@@ -0,0 +1,24 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * One sitemap being written to an {@link ISitemapOutputSink}.  Write the sitemap to the stream, then either commit
+ * it or abort it.  Closing the stream (e.g. to finish gzipping) is fine, but doesn't commit the sitemap.
+ */
+public interface ISitemapOutput {
+
+	/** The stream to write the sitemap to */
+	public OutputStream getStream();
+
+	/** The number of bytes written to the stream so far */
+	public long getBytesWritten();
+
+	/** Finishes the sitemap; once this returns, the sitemap is in the sink under its name */
+	public void commit() throws IOException;
+
+	/** Throws away the sitemap; use this when something has already gone wrong */
+	public void abort();
+
+}
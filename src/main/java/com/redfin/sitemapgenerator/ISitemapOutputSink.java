@@ -0,0 +1,60 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where the generators write their sitemaps, e.g. files in a directory, an in-memory map, or an HTTP response.
+ * 
+ * <p>Sitemaps are written one stream at a time, and only count once they're committed.  Sometimes the generator
+ * can't know a sitemap's final name until after it's written it (e.g. "sitemap.xml" turns out to be "sitemap1.xml"
+ * once a second sitemap is needed, or a sitemap written on an executor is named once the ones before it are done),
+ * so it will ask the sink to rename it.  The generator may open several sitemaps at once from different threads
+ * when writing on an executor or in concurrent mode.</p>
+ * 
+ * @see AbstractSitemapGeneratorOptions#outputSink(ISitemapOutputSink)
+ * @see FileSitemapOutputSink
+ * @see ChannelSitemapOutputSink
+ * @see MemorySitemapOutputSink
+ * @see OutputStreamSitemapOutputSink
+ */
+public interface ISitemapOutputSink {
+
+	/**
+	 * Starts writing a sitemap
+	 * 
+	 * @param name the name of the sitemap, e.g. "sitemap1.xml.gz"
+	 * @return an output to write the sitemap to, then commit or abort
+	 */
+	public ISitemapOutput open(String name) throws IOException;
+
+	/** Gives a committed sitemap a new name, replacing any sitemap that already has that name */
+	public void rename(String from, String to) throws IOException;
+
+	/** Gets rid of a committed sitemap that we're not going to use after all */
+	public void delete(String name) throws IOException;
+
+	/**
+	 * Called once the generator has written and named a whole set of sitemaps, and again after it writes the
+	 * sitemap index, e.g. to make them durable all at once; by default this does nothing
+	 */
+	public default void finish() throws IOException {}
+
+	/**
+	 * The file the named sitemap was written to, so we can validate it and tell you where it is;
+	 * null if the sink doesn't write to files
+	 */
+	public default File getFile(String name) {
+		return null;
+	}
+
+	/**
+	 * Whether the named sitemap is still there from an earlier run, so we can leave it alone if its content
+	 * hasn't changed; by default we check the {@link #getFile(String) file}, if there is one
+	 */
+	public default boolean exists(String name) {
+		File file = getFile(name);
+		return file != null && file.exists();
+	}
+
+}
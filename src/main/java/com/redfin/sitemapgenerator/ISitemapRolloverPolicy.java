@@ -0,0 +1,23 @@
+package com.redfin.sitemapgenerator;
+
+/**
+ * Decides when a sitemap file is full, so the generator should close it and start the next one.
+ * 
+ * <p>The generator renders each URL before it writes it, and asks the policy whether the URL still fits
+ * in the current sitemap.  Sizes are counted as the sitemap is written; nothing is rendered twice.</p>
+ * 
+ * @see AbstractSitemapGeneratorOptions#rolloverPolicy(ISitemapRolloverPolicy)
+ */
+public interface ISitemapRolloverPolicy {
+
+	/**
+	 * @param urlCount the number of URLs already in the current sitemap (always at least one)
+	 * @param bytes the uncompressed size the current sitemap would have if we closed it now
+	 * @param compressedBytes the number of bytes written to disk so far; for gzipped sitemaps this lags behind,
+	 * because the compressor holds on to some data until it has enough to compress
+	 * @param nextUrlBytes the uncompressed size of the next URL
+	 * @return true if the next URL should go into a new sitemap
+	 */
+	public boolean isFull(int urlCount, long bytes, long compressedBytes, int nextUrlBytes);
+
+}
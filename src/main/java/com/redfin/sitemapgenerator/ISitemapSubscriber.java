@@ -0,0 +1,22 @@
+package com.redfin.sitemapgenerator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Writes the URLs it receives from a {@link Flow.Publisher} as sitemaps.
+ * 
+ * <p>It only asks for as many URLs as fit in the current sitemap, and doesn't ask for more until that sitemap
+ * has been written, so URLs never pile up in memory and the publisher's threads never wait on the disk.</p>
+ * 
+ * @see SitemapGenerator#toSubscriber()
+ */
+public interface ISitemapSubscriber<U extends ISitemapUrl> extends Flow.Subscriber<U> {
+
+	/**
+	 * @return completes with the sitemaps and sitemap index once the publisher completes and they've all
+	 * been written, or completes exceptionally if the publisher or the writing fails
+	 */
+	public CompletableFuture<SitemapFiles> getResult();
+
+}
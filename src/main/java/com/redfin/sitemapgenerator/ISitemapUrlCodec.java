@@ -0,0 +1,22 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Turns sitemap URLs into bytes and back, so a {@link SitemapUrlStore} or {@link SitemapUrlSorter} can keep them
+ * on disk.
+ * 
+ * @param <U> the kind of sitemap URL
+ * @see WebSitemapUrlCodec
+ */
+public interface ISitemapUrlCodec<U extends ISitemapUrl> {
+
+	/** Writes out everything about the URL, including the URL itself */
+	public void write(U url, DataOutput out) throws IOException;
+
+	/** Reads back exactly what {@link #write(ISitemapUrl, DataOutput)} wrote */
+	public U read(DataInput in) throws IOException;
+
+}
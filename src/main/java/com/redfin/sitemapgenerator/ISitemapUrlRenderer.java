@@ -1,8 +1,11 @@
 package com.redfin.sitemapgenerator;
 
+import java.io.IOException;
+
 interface ISitemapUrlRenderer<T extends ISitemapUrl> {
 	
 	public Class<T> getUrlClass();
 	public String getXmlNamespaces();
-	public void render(T url, StringBuilder sb, W3CDateFormat dateFormat);
+	/** Renders one &lt;url&gt; element straight into the output, without building it up in memory first */
+	public void render(T url, Appendable out, W3CDateFormat dateFormat) throws IOException;
 }
@@ -0,0 +1,71 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps sitemaps in memory, as bytes, e.g. to upload them somewhere yourself.  Unlike writeAsStrings(), you get
+ * exactly the bytes that would have been written to disk, gzipped or not.
+ */
+public class MemorySitemapOutputSink implements ISitemapOutputSink {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private final Map<String, byte[]> sitemaps = new LinkedHashMap<String, byte[]>();
+
+	public ISitemapOutput open(final String name) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		return new AbstractSitemapOutput(out) {
+			@Override
+			void onCommit() {
+				synchronized (sitemaps) {
+					sitemaps.put(name, out.toByteArray());
+				}
+			}
+
+			@Override
+			void onAbort() {}
+		};
+	}
+
+	public void rename(String from, String to) throws IOException {
+		synchronized (sitemaps) {
+			byte[] bytes = sitemaps.remove(from);
+			if (bytes == null) throw new IOException("No sitemap named " + from);
+			sitemaps.put(to, bytes);
+		}
+	}
+
+	public void delete(String name) {
+		synchronized (sitemaps) {
+			sitemaps.remove(name);
+		}
+	}
+
+	public boolean exists(String name) {
+		synchronized (sitemaps) {
+			return sitemaps.containsKey(name);
+		}
+	}
+
+	/** The bytes of the named sitemap, or null if there isn't one */
+	public byte[] get(String name) {
+		synchronized (sitemaps) {
+			return sitemaps.get(name);
+		}
+	}
+
+	/** The named sitemap as a string, for sitemaps that aren't gzipped; null if there isn't one */
+	public String getAsString(String name) {
+		byte[] bytes = get(name);
+		return bytes == null ? null : new String(bytes, UTF8);
+	}
+
+	/** A copy of all the sitemaps, by name */
+	public Map<String, byte[]> getSitemaps() {
+		synchronized (sitemaps) {
+			return new LinkedHashMap<String, byte[]>(sitemaps);
+		}
+	}
+}
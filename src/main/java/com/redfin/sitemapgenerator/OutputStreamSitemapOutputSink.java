@@ -0,0 +1,64 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes sitemaps straight to a stream you give us, e.g. an HTTP response or an upload, with no temporary files.
+ * 
+ * <p>Sitemaps go out as they're written, so they can't be renamed or taken back afterwards; names mean nothing to a
+ * plain stream, and a sitemap that fails partway leaves its partial bytes behind.  Sitemaps are written one after
+ * another, so this is only useful for a single sitemap unless the stream frames them itself.  The generator won't
+ * let you combine this with an executor or concurrent mode, which write several sitemaps at once.  We never close
+ * your stream.</p>
+ */
+public class OutputStreamSitemapOutputSink implements ISitemapOutputSink {
+	private final OutputStream out;
+	private boolean open = false;
+
+	public OutputStreamSitemapOutputSink(OutputStream out) {
+		this.out = out;
+	}
+
+	public synchronized ISitemapOutput open(String name) throws IOException {
+		if (open) throw new IOException("Can't write " + name + " while another sitemap is still being written to the same stream");
+		open = true;
+		// keep the sitemap from closing the stream out from under the next one
+		return new AbstractSitemapOutput(new FilterOutputStream(out) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+
+			@Override
+			public void close() throws IOException {
+				flush();
+			}
+		}) {
+			@Override
+			void onCommit() throws IOException {
+				try {
+					out.flush();
+				} finally {
+					finished();
+				}
+			}
+
+			@Override
+			void onAbort() {
+				finished();
+			}
+		};
+	}
+
+	private synchronized void finished() {
+		open = false;
+	}
+
+	/** Does nothing; the sitemap has already gone out under whatever name it had */
+	public void rename(String from, String to) {}
+
+	/** Does nothing; the sitemap has already gone out */
+	public void delete(String name) {}
+}
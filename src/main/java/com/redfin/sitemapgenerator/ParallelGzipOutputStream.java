@@ -0,0 +1,196 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a single gzip member, deflating blocks of the input concurrently, like pigz does.
+ *
+ * <p>The input is cut into fixed-size blocks.  Each block is deflated on the executor, primed with the last
+ * 32K of the block before it as a dictionary so the compression ratio barely suffers, and ended with a sync
+ * flush so that the compressed blocks can simply be concatenated.  The last block is finished normally.
+ * The result is one ordinary gzip member, readable by GZIPInputStream or anything else that reads gzip.</p>
+ *
+ * <p>The CRC is computed on the calling thread as data arrives.  If the executor hasn't gotten around to a
+ * block by the time we need it, we deflate it ourselves, so this can't deadlock even when the executor's
+ * threads are all busy writing other sitemaps.</p>
+ */
+class ParallelGzipOutputStream extends OutputStream {
+	static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private final OutputStream out;
+	private final Executor executor;
+	private final SitemapCompressor compressor;
+	private final int blockSize;
+	private final int maxPendingBlocks;
+	private final CRC32 crc = new CRC32();
+	private final ArrayDeque<FutureTask<byte[]>> pending = new ArrayDeque<FutureTask<byte[]>>();
+	private byte[] block;
+	private int count = 0;
+	private byte[] previousBlock;
+	private long totalIn = 0;
+	private boolean closed = false;
+
+	/** @param compressor the compression settings, and where to borrow Deflaters from */
+	ParallelGzipOutputStream(OutputStream out, Executor executor, SitemapCompressor compressor) throws IOException {
+		this(out, executor, compressor, DEFAULT_BLOCK_SIZE);
+	}
+
+	ParallelGzipOutputStream(OutputStream out, Executor executor, SitemapCompressor compressor, int blockSize) throws IOException {
+		if (blockSize <= 0) throw new IllegalArgumentException("blockSize must be positive: " + blockSize);
+		this.out = out;
+		this.executor = executor;
+		this.compressor = compressor;
+		this.blockSize = blockSize;
+		this.maxPendingBlocks = 2 * Runtime.getRuntime().availableProcessors();
+		this.block = new byte[blockSize];
+		out.write(PooledGzipOutputStream.HEADER);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == blockSize) submitBlock(false);
+		block[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == blockSize) submitBlock(false);
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/** Deflates the last block, waits for all the others, and writes the gzip trailer */
+	public void finish() throws IOException {
+		if (closed) return;
+		submitBlock(true);
+		while (!pending.isEmpty()) {
+			writeBlock(pending.removeFirst());
+		}
+		PooledGzipOutputStream.writeTrailer(out, crc, totalIn);
+		out.flush();
+		closed = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	private void submitBlock(boolean last) throws IOException {
+		crc.update(block, 0, count);
+		totalIn += count;
+		FutureTask<byte[]> task = new FutureTask<byte[]>(new DeflateBlock(block, count, previousBlock, compressor, last));
+		pending.addLast(task);
+		executor.execute(task);
+		previousBlock = block;
+		block = new byte[blockSize];
+		count = 0;
+		// write out whatever's ready, and make sure we don't get too far ahead of the executor
+		while (!pending.isEmpty() && (pending.peekFirst().isDone() || pending.size() > maxPendingBlocks)) {
+			writeBlock(pending.removeFirst());
+		}
+	}
+
+	private void writeBlock(FutureTask<byte[]> task) throws IOException {
+		// if nobody's started on it yet, do it ourselves; this is a no-op if it's already running or done
+		task.run();
+		try {
+			out.write(task.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Problem compressing", e.getCause());
+		}
+	}
+
+	/** Deflates one block as raw deflate data, so it can be stitched together with its neighbors */
+	private static class DeflateBlock implements Callable<byte[]> {
+		private final byte[] block;
+		private final int length;
+		private final byte[] dictionary;
+		private final SitemapCompressor compressor;
+		private final boolean last;
+
+		DeflateBlock(byte[] block, int length, byte[] dictionary, SitemapCompressor compressor, boolean last) {
+			this.block = block;
+			this.length = length;
+			this.dictionary = dictionary;
+			this.compressor = compressor;
+			this.last = last;
+		}
+
+		public byte[] call() {
+			Deflater deflater = compressor.borrowDeflater();
+			try {
+				if (dictionary != null) {
+					int dictionaryLength = Math.min(DICTIONARY_SIZE, dictionary.length);
+					deflater.setDictionary(dictionary, dictionary.length - dictionaryLength, dictionaryLength);
+				}
+				deflater.setInput(block, 0, length);
+				ByteArrayBuilder result = new ByteArrayBuilder(length / 2 + 64);
+				byte[] buf = new byte[compressor.getBufferSize()];
+				if (last) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						result.append(buf, deflater.deflate(buf));
+					}
+				} else {
+					int n;
+					do {
+						n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+						result.append(buf, n);
+					} while (n == buf.length);
+				}
+				return result.toByteArray();
+			} finally {
+				compressor.releaseDeflater(deflater);
+			}
+		}
+	}
+
+	/** Like ByteArrayOutputStream, but without the synchronization */
+	private static class ByteArrayBuilder {
+		private byte[] buf;
+		private int count = 0;
+
+		ByteArrayBuilder(int size) {
+			buf = new byte[size];
+		}
+
+		void append(byte[] b, int len) {
+			if (count + len > buf.length) {
+				byte[] bigger = new byte[Math.max(buf.length * 2, count + len)];
+				System.arraycopy(buf, 0, bigger, 0, count);
+				buf = bigger;
+			}
+			System.arraycopy(b, 0, buf, count, len);
+			count += len;
+		}
+
+		byte[] toByteArray() {
+			if (count == buf.length) return buf;
+			byte[] result = new byte[count];
+			System.arraycopy(buf, 0, result, 0, count);
+			return result;
+		}
+	}
+}
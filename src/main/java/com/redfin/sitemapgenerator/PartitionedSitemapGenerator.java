@@ -0,0 +1,207 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Writes several families of sitemaps in one pass, e.g. "sitemap-listings-1.xml", "sitemap-agents-1.xml" and
+ * "sitemap-cities-1.xml", with one sitemap index listing them all.
+ *
+ * <p>A router function names the family each URL belongs in.  Each family gets its own generator, configured like
+ * the builder you give us but with the family in its file name prefix, writing in
+ * {@link AbstractSitemapGeneratorOptions#streaming(boolean) streaming} mode, so each family has at most one sitemap
+ * open at a time.  URLs wait in a buffer per family until the buffers together reach the memory budget; then the
+ * biggest buffer is written out, so each family's sitemap gets its URLs in batches rather than one at a time.
+ * Memory use is estimated from the length of each URL, so treat the budget as approximate.</p>
+ *
+ * <p>The budget only covers the URLs waiting in the buffers.  Each family also has its open sitemap: a 64KB
+ * encoding buffer, plus a deflater and its buffers if you gzip, around a third of a megabyte per family
+ * altogether, plus whatever the output sink buffers per sitemap (1MB for a {@link ChannelSitemapOutputSink}).
+ * That's fixed however many URLs there are, but it adds up with many families.</p>
+ *
+ * <p>Every family's sitemaps are numbered, even if there's only one, so adding a family's second sitemap doesn't
+ * rename its first.  The families appear in the index in alphabetical order.</p>
+ *
+ * @param <U> the kind of sitemap URL
+ */
+public class PartitionedSitemapGenerator<U extends ISitemapUrl> {
+	private static final String INDEX_NAME = "sitemap_index.xml";
+	private static final Pattern FAMILY = Pattern.compile("[A-Za-z0-9_.-]+");
+	/** A rough guess at the memory a URL object takes, besides its characters */
+	private static final int URL_OVERHEAD = 160;
+
+	private final SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder;
+	private final Function<? super U, String> router;
+	private final long memoryBudget;
+	private final String prefix;
+	/** Whether each family keeps a manifest of its own, so that its unchanged sitemaps are left alone */
+	private final boolean familyManifests;
+	private final TreeMap<String, Family> families = new TreeMap<String, Family>();
+	private long bufferedBytes = 0;
+	private boolean finished = false;
+
+	/** One family's generator, and the URLs waiting to go to it */
+	private class Family {
+		final SitemapGenerator<U, ?> generator;
+		List<U> buffer = new ArrayList<U>();
+		long bytes = 0;
+		List<File> files;
+
+		Family(String name) {
+			generator = builder.copy()
+					.fileNamePrefix(prefix + "-" + name + "-")
+					.manifest(familyManifests ? getManifestFile(name) : null)
+					.build();
+		}
+
+		void drain() {
+			for (U url : buffer) generator.addUrl(url);
+			buffer = new ArrayList<U>();
+			bufferedBytes -= bytes;
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * @param builder configures each family's generator; it needs a baseDir or an output sink.  Its file name
+	 * prefix comes before the family's name, and the families stream their URLs.  It can't have a manifest, locator
+	 * or checkpoint file, since the families would all share it.  We build from a copy, so your builder is left as
+	 * it was.
+	 * @param router names the family each URL goes in; names can have letters, digits, '_', '.' and '-'
+	 * @param memoryBudget roughly how many bytes of URLs to hold in the families' buffers altogether
+	 */
+	public PartitionedSitemapGenerator(SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder,
+			Function<? super U, String> router, long memoryBudget) {
+		this(builder, router, memoryBudget, false);
+	}
+
+	PartitionedSitemapGenerator(SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder,
+			Function<? super U, String> router, long memoryBudget, boolean familyManifests) {
+		if (builder.baseDir == null && builder.outputSink == null) {
+			throw new NullPointerException("To write to files, baseDir must not be null");
+		}
+		if (familyManifests && builder.baseDir == null) {
+			throw new NullPointerException("To keep a manifest per family, baseDir must not be null");
+		}
+		if (builder.manifestFile != null || builder.locatorFile != null || builder.checkpointFile != null) {
+			throw new RuntimeException("Families of sitemaps can't share a manifest, locator or checkpoint file");
+		}
+		if (memoryBudget <= 0) throw new RuntimeException("memoryBudget must be positive; you asked for " + memoryBudget);
+		this.builder = builder.copy().streaming(true);
+		this.builder.numberEverySitemap = true;
+		this.router = router;
+		this.memoryBudget = memoryBudget;
+		this.familyManifests = familyManifests;
+		prefix = builder.fileNamePrefix;
+	}
+
+	/** Routes the URL to its family, writing out the biggest family's buffer if we're over the memory budget */
+	public PartitionedSitemapGenerator<U> addUrl(U url) {
+		if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps");
+		String name = router.apply(url);
+		if (name == null || !FAMILY.matcher(name).matches()) {
+			throw new RuntimeException("Bad sitemap family for " + url.getUrl() + ": " + name);
+		}
+		Family family = families.get(name);
+		if (family == null) {
+			family = new Family(name);
+			families.put(name, family);
+		}
+		long size = URL_OVERHEAD + 2L * url.getUrl().toString().length();
+		family.buffer.add(url);
+		family.bytes += size;
+		bufferedBytes += size;
+		if (bufferedBytes >= memoryBudget) biggest().drain();
+		return this;
+	}
+
+	/** Routes the URLs to their families, one at a time */
+	public PartitionedSitemapGenerator<U> addUrls(Iterable<? extends U> urls) {
+		for (U url : urls) addUrl(url);
+		return this;
+	}
+
+	private Family biggest() {
+		Family biggest = null;
+		for (Family family : families.values()) {
+			if (biggest == null || family.bytes > biggest.bytes) biggest = family;
+		}
+		return biggest;
+	}
+
+	/**
+	 * Writes out the rest of each family's URLs, then the sitemap index listing every family's sitemaps; this
+	 * method can only be called once
+	 *
+	 * @return all the sitemaps, family by family, and the index
+	 */
+	public SitemapFiles write() {
+		List<File> sitemaps = writeFamilies();
+		SitemapIndexGenerator sig = newIndexGenerator();
+		for (File file : sitemaps) {
+			try {
+				sig.addUrl(new URL(builder.baseUrl, file.getName()));
+			} catch (MalformedURLException e) {
+				throw new RuntimeException("Couldn't make URL for " + file.getName(), e);
+			}
+		}
+		sig.write();
+		return new SitemapFiles(sitemaps, getIndexFile());
+	}
+
+	/** Writes out the rest of each family's URLs, without the index, returning all the sitemaps family by family */
+	List<File> writeFamilies() {
+		if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps");
+		finished = true;
+		List<File> sitemaps = new ArrayList<File>();
+		for (Family family : families.values()) {
+			family.drain();
+			family.files = family.generator.write();
+			sitemaps.addAll(family.files);
+		}
+		return sitemaps;
+	}
+
+	/** A generator for the index across all the families, which may be empty */
+	SitemapIndexGenerator newIndexGenerator() {
+		SitemapIndexGenerator.Options options = builder.outputSink != null
+				? new SitemapIndexGenerator.Options(builder.baseUrl, builder.outputSink, INDEX_NAME)
+				: new SitemapIndexGenerator.Options(builder.baseUrl, new File(builder.baseDir, INDEX_NAME));
+		if (builder.dateFormat != null) options.dateFormat(builder.dateFormat);
+		return options.allowEmptyIndex(true).build();
+	}
+
+	File getIndexFile() {
+		File index = builder.outputSink != null ? builder.outputSink.getFile(INDEX_NAME) : new File(builder.baseDir, INDEX_NAME);
+		return index != null ? index : new File(INDEX_NAME);
+	}
+
+	/** Where the family keeps its manifest, if families keep manifests */
+	File getManifestFile(String family) {
+		return new File(builder.baseDir, prefix + "-" + family + ".manifest");
+	}
+
+	/** The families we've seen so far, in alphabetical order */
+	public List<String> getFamilies() {
+		return Collections.unmodifiableList(new ArrayList<String>(families.keySet()));
+	}
+
+	/** The sitemaps one family wrote, once you've called {@link #write()} */
+	public List<File> getSitemaps(String family) {
+		if (!finished) throw new RuntimeException("Sitemaps not generated yet; call write() first");
+		Family f = families.get(family);
+		return f == null ? Collections.<File>emptyList() : f.files;
+	}
+
+	/** How many bytes of URLs are waiting in the families' buffers, by our estimate */
+	long getBufferedBytes() {
+		return bufferedBytes;
+	}
+}
@@ -0,0 +1,74 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a gzip stream like GZIPOutputStream does, but with whatever level and strategy the compressor asks
+ * for, and with a Deflater borrowed from its pool instead of a new one every time.
+ */
+class PooledGzipOutputStream extends DeflaterOutputStream {
+	/** The same header GZIPOutputStream writes: magic number, deflate, no flags, no mtime */
+	static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	private final SitemapCompressor compressor;
+	private final CRC32 crc = new CRC32();
+	private boolean finished = false;
+	private boolean released = false;
+
+	PooledGzipOutputStream(OutputStream out, SitemapCompressor compressor) throws IOException {
+		super(out, compressor.borrowDeflater(), compressor.getBufferSize());
+		this.compressor = compressor;
+		try {
+			out.write(HEADER);
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		crc.update(b, off, len);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (finished) return;
+		super.finish();
+		writeTrailer(out, crc, def.getBytesRead());
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			release();
+		}
+	}
+
+	private void release() {
+		if (released) return;
+		released = true;
+		compressor.releaseDeflater(def);
+	}
+
+	/** Writes the CRC and uncompressed size (mod 2^32) that end every gzip member, little-endian */
+	static void writeTrailer(OutputStream out, CRC32 crc, long totalIn) throws IOException {
+		writeInt(out, (int) crc.getValue());
+		writeInt(out, (int) totalIn);
+	}
+
+	private static void writeInt(OutputStream out, int i) throws IOException {
+		out.write(i & 0xff);
+		out.write((i >> 8) & 0xff);
+		out.write((i >> 16) & 0xff);
+		out.write((i >> 24) & 0xff);
+	}
+}
@@ -0,0 +1,287 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Keeps a set of sitemaps up to date with a {@link SitemapUrlStore}, each sitemap a materialized view of one range
+ * of keys in the store, so that when URLs are added, updated or deleted, only the sitemaps whose ranges they fall
+ * in have to be rewritten.
+ *
+ * <p>The first {@link #refresh()} writes every URL in the store, cutting it into sitemaps of urlsPerShard URLs.
+ * After that, each refresh asks the store which keys changed since the last one, and rewrites just the sitemaps
+ * that cover them.  A sitemap that grows past urlsPerShard URLs is split in even pieces, and one that's left with
+ * no URLs is dropped, its range going to the sitemap before it.  Sitemaps are named by a shard id rather than their
+ * position, e.g. "sitemap-12.xml", so splitting one doesn't rename the rest; the sitemap index, which is rewritten
+ * on every refresh, lists them in key order, each with the time it was last written as its lastMod.</p>
+ *
+ * <p>The shard boundaries are kept in "sitemap_shards.txt", next to the sitemaps.  The view uses the store's
+ * {@link SitemapUrlStore#checkpoint(long) checkpoint} to remember how far it's caught up, so a store can only
+ * have one view.</p>
+ *
+ * @param <U> the kind of sitemap URL
+ */
+public class RangeShardedSitemaps<U extends ISitemapUrl> {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String STATE = "sitemap_shards.txt";
+	private static final String HEADER = "# sitemap shards v1";
+	private static final String INDEX_NAME = "sitemap_index.xml";
+
+	private final SitemapUrlStore<U> store;
+	private final SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder;
+	private final String prefix;
+	private final int urlsPerShard;
+	private final File dir;
+	private final URL baseUrl;
+	/** In key order; null until the first refresh */
+	private List<Shard> shards;
+	private int nextId = 1;
+
+	/** One sitemap, holding the URLs from its first key up to the next shard's first key */
+	private static final class Shard {
+		final int id;
+		String firstKey;
+		int urlCount;
+		Date lastWritten;
+		String fileName;
+
+		Shard(int id, String firstKey) {
+			this.id = id;
+			this.firstKey = firstKey;
+		}
+	}
+
+	/**
+	 * @param builder configures the generator that writes each sitemap; it needs a baseDir, which is where the
+	 * sitemaps, the index and the shard boundaries go.  Its file name prefix is used with a shard id after it.
+	 * We build from a copy of it with allowMultipleSitemaps off, since each shard has to fit in one sitemap; your
+	 * builder is left as it was.  Every shard is built from that one copy, and rewritten on later refreshes, so
+	 * the builder can't have a manifest, locator or checkpoint file, which each shard would overwrite, or a
+	 * deduplicator, which would drop a shard's URLs when it's rewritten.
+	 * @param urlsPerShard how many URLs to put in each sitemap when we first write them, and how big one can get
+	 * before we split it; no more than the builder's maxUrls
+	 */
+	public RangeShardedSitemaps(SitemapUrlStore<U> store, SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder, int urlsPerShard) throws IOException {
+		if (builder.baseDir == null) throw new NullPointerException("To write to files, baseDir must not be null");
+		if (urlsPerShard <= 0 || urlsPerShard > builder.maxUrls) {
+			throw new RuntimeException("urlsPerShard must be between 1 and the generator's maxUrls (" + builder.maxUrls + "); you asked for " + urlsPerShard);
+		}
+		if (builder.manifestFile != null || builder.locatorFile != null || builder.checkpointFile != null) {
+			throw new RuntimeException("Shards of sitemaps can't share a manifest, locator or checkpoint file");
+		}
+		if (builder.deduplicator != null) {
+			throw new RuntimeException("Shards are rewritten on each refresh, so they can't share a deduplicator");
+		}
+		this.store = store;
+		this.builder = builder.copy().allowMultipleSitemaps(false);
+		this.urlsPerShard = urlsPerShard;
+		this.dir = builder.baseDir;
+		this.baseUrl = builder.baseUrl;
+		prefix = builder.fileNamePrefix + "-";
+		readState();
+	}
+
+	/**
+	 * Flushes the store, rewrites the sitemaps covering whatever changed since the last refresh (or all of them,
+	 * the first time), and rewrites the sitemap index
+	 *
+	 * @return the sitemaps we wrote
+	 */
+	public synchronized List<File> refresh() throws IOException {
+		store.flush();
+		long sequence = store.getSequence();
+		List<File> written = new ArrayList<File>();
+		if (shards == null || shards.isEmpty()) {
+			// nothing written yet, or every shard has been dropped, so there are no ranges to look changes up in
+			buildAll(written);
+		} else {
+			final TreeSet<Integer> dirty = new TreeSet<Integer>();
+			store.forEachChangedKey(store.getCheckpoint(), key -> dirty.add(shardFor(key)));
+			// from the end, so splitting or dropping a shard doesn't move the ones we haven't gotten to yet
+			for (int i : dirty.descendingSet()) {
+				rewrite(i, written);
+			}
+		}
+		writeIndex();
+		writeState();
+		store.checkpoint(sequence);
+		return written;
+	}
+
+	/** The store the sitemaps are a view of */
+	public SitemapUrlStore<U> getStore() {
+		return store;
+	}
+
+	/** The sitemap index, listing all the sitemaps */
+	public File getIndexFile() {
+		return new File(dir, INDEX_NAME);
+	}
+
+	/** How many sitemaps there are, as of the last refresh */
+	public synchronized int getShardCount() {
+		return shards == null ? 0 : shards.size();
+	}
+
+	private void buildAll(final List<File> written) throws IOException {
+		shards = new ArrayList<Shard>();
+		final List<U> urls = new ArrayList<U>(urlsPerShard);
+		store.forEach(url -> {
+			urls.add(url);
+			if (urls.size() == urlsPerShard) {
+				written.add(writeNewShard(urls));
+				urls.clear();
+			}
+		});
+		if (!urls.isEmpty()) written.add(writeNewShard(urls));
+		if (!shards.isEmpty()) shards.get(0).firstKey = "";
+	}
+
+	private File writeNewShard(List<U> urls) {
+		Shard shard = new Shard(nextId++, keyOf(urls.get(0)));
+		shards.add(shard);
+		return write(shard, urls);
+	}
+
+	/** Rereads a shard's range from the store, then rewrites it, splits it, or drops it */
+	private void rewrite(int index, List<File> written) throws IOException {
+		Shard shard = shards.get(index);
+		String from = index == 0 ? null : shard.firstKey;
+		String to = index + 1 < shards.size() ? shards.get(index + 1).firstKey : null;
+		List<U> urls = new ArrayList<U>();
+		store.forEach(from, to, urls::add);
+		if (urls.isEmpty()) {
+			Files.deleteIfExists(new File(dir, shard.fileName).toPath());
+			shards.remove(index);
+			if (index == 0 && !shards.isEmpty()) shards.get(0).firstKey = "";
+			return;
+		}
+		int pieces = (urls.size() + urlsPerShard - 1) / urlsPerShard;
+		List<Shard> added = new ArrayList<Shard>();
+		for (int i = 0; i < pieces; i++) {
+			List<U> piece = urls.subList(i * urls.size() / pieces, (i + 1) * urls.size() / pieces);
+			Shard target = shard;
+			if (i > 0) {
+				target = new Shard(nextId++, keyOf(piece.get(0)));
+				added.add(target);
+			}
+			written.add(write(target, piece));
+		}
+		shards.addAll(index + 1, added);
+	}
+
+	private File write(Shard shard, List<U> urls) {
+		SitemapGenerator<U, ?> generator = builder.fileNamePrefix(prefix + shard.id).build();
+		generator.addUrls(urls);
+		List<File> files = generator.write();
+		shard.urlCount = urls.size();
+		shard.lastWritten = new Date();
+		shard.fileName = files.get(0).getName();
+		return files.get(0);
+	}
+
+	private String keyOf(U url) {
+		return url.getUrl().toString();
+	}
+
+	/**
+	 * The file name of the sitemap whose range would hold the URL, as of the last refresh, or null if there are no
+	 * sitemaps yet.  Since each sitemap is a range of keys, this needs no {@link SitemapShardLocator locator}; it's
+	 * a binary search over the shard boundaries.  Whether the URL is actually there is up to the store.
+	 */
+	public synchronized String findShardName(String url) {
+		if (shards == null || shards.isEmpty()) return null;
+		return shards.get(shardFor(url)).fileName;
+	}
+
+	/** The shard whose range holds the key: the last one whose first key is at or before it */
+	private int shardFor(String key) {
+		int low = 0;
+		int high = shards.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (shards.get(mid).firstKey.compareTo(key) <= 0) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	private void writeIndex() throws IOException {
+		SitemapIndexGenerator sig = new SitemapIndexGenerator.Options(baseUrl, getIndexFile()).allowEmptyIndex(true).build();
+		for (Shard shard : shards) {
+			sig.addUrl(new URL(baseUrl, shard.fileName), shard.lastWritten);
+		}
+		sig.write();
+	}
+
+	private void readState() throws IOException {
+		File file = new File(dir, STATE);
+		if (!file.exists()) return;
+		List<Shard> read = new ArrayList<Shard>();
+		BufferedReader in = Files.newBufferedReader(file.toPath(), UTF8);
+		try {
+			String line = in.readLine();
+			if (!HEADER.equals(line)) throw new IOException("Not a sitemap shards file: " + file);
+			nextId = Integer.parseInt(in.readLine().substring("nextId\t".length()));
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				String[] fields = line.split("\t", 5);
+				if (fields.length != 5) throw new IOException("Bad line in sitemap shards file " + file + ": " + line);
+				Shard shard = new Shard(Integer.parseInt(fields[0]), fields[4]);
+				shard.urlCount = Integer.parseInt(fields[1]);
+				shard.lastWritten = new Date(Long.parseLong(fields[2]));
+				shard.fileName = fields[3];
+				read.add(shard);
+			}
+		} catch (RuntimeException e) {
+			throw new IOException("Bad sitemap shards file " + file, e);
+		} finally {
+			in.close();
+		}
+		shards = read;
+	}
+
+	private void writeState() throws IOException {
+		File file = new File(dir, STATE);
+		File tmp = new File(dir, STATE + ".tmp");
+		Writer out = Files.newBufferedWriter(tmp.toPath(), UTF8);
+		try {
+			out.write(HEADER + "\n");
+			out.write("nextId\t" + nextId + "\n");
+			for (Shard shard : shards) {
+				out.write(shard.id + "\t" + shard.urlCount + "\t" + shard.lastWritten.getTime() + "\t" + shard.fileName + "\t" + shard.firstKey + "\n");
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** The shards' sitemap file names, in key order */
+	synchronized List<String> getFileNames() {
+		List<String> names = new ArrayList<String>();
+		if (shards != null) {
+			for (Shard shard : shards) names.add(shard.fileName);
+		}
+		return Collections.unmodifiableList(names);
+	}
+}
@@ -0,0 +1,34 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Holds one rendered URL as UTF-8 bytes, so we can measure it before we decide which sitemap it belongs in.
+ * The buffer is reused from one URL to the next.
+ */
+class RenderedUrlBuffer extends ByteArrayOutputStream {
+	private final Utf8XmlWriter writer = new Utf8XmlWriter(this, 4096);
+
+	RenderedUrlBuffer() {
+		super(4096);
+	}
+
+	/** Renders the URL into this buffer, replacing whatever was there before
+	 * 
+	 * @return the size of the rendered URL in bytes
+	 */
+	<U extends ISitemapUrl> int render(ISitemapUrlRenderer<U> renderer, U url, W3CDateFormat dateFormat) throws IOException {
+		reset();
+		// the last URL may have failed partway, leaving some of itself behind in the writer
+		writer.discard();
+		renderer.render(url, writer, dateFormat);
+		writer.flush();
+		return count;
+	}
+
+	/** Copies the rendered URL to the output */
+	void writeTo(Utf8XmlWriter out) throws IOException {
+		out.writeBytes(buf, 0, count);
+	}
+}
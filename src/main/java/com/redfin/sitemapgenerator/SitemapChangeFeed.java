@@ -0,0 +1,210 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a stream of changes to URLs, e.g. from a database's change log, and applies them to a
+ * {@link RangeShardedSitemaps set of sitemaps} within minutes, rather than waiting for the next full rebuild.
+ *
+ * <p>Changes are held in memory until the next flush; a URL that's updated several times before then is only
+ * written once, as it was last.  A flush writes the batch to the view's {@link SitemapUrlStore store}, then
+ * refreshes the view, rewriting only the sitemaps covering the changed URLs, and the index.  We flush when the
+ * batch reaches batchSize distinct URLs, so memory stays bounded however fast changes come in; and, if you give a
+ * flush interval, every so often on a background thread, so changes don't wait long in a quiet period.</p>
+ *
+ * <p>All the methods are synchronized, so changes can come from several threads.  If a flush fails, the batch is
+ * kept to try again with the next flush; if it was a background flush, the next upsert, delete or flush fails with
+ * the problem, and the change it was given isn't taken.  While flushes are failing, a full batch doesn't try to
+ * flush again with every change; it keeps growing, up to {@value #MAX_PENDING_BATCHES} times batchSize.  From
+ * then on each new URL tries to flush first, and fails with the problem, without being taken, until a flush
+ * works.</p>
+ *
+ * @param <U> the kind of sitemap URL
+ */
+public class SitemapChangeFeed<U extends ISitemapUrl> implements Closeable {
+	/** The default number of distinct URLs we'll batch up before flushing */
+	public static final int DEFAULT_BATCH_SIZE = 10000;
+	/** How many batches' worth of changes we'll hold while flushes are failing */
+	static final int MAX_PENDING_BATCHES = 2;
+
+	private final RangeShardedSitemaps<U> view;
+	private final SitemapUrlStore<U> store;
+	private final int batchSize;
+	/** The latest change to each URL: the URL, or null if it was deleted */
+	private final Map<String, U> pending;
+	private final ScheduledExecutorService timer;
+	private RuntimeException failure;
+	/** Whether the last flush failed */
+	private boolean flushFailing = false;
+	private long eventCount = 0;
+	private boolean closed = false;
+
+	/** Flushes only when the batch is full, or when you call {@link #flush()} */
+	public SitemapChangeFeed(RangeShardedSitemaps<U> view) {
+		this(view, DEFAULT_BATCH_SIZE, 0, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param batchSize how many distinct URLs to hold in memory before we flush
+	 * @param flushInterval how often to flush in the background, or 0 to flush only when the batch is full or you
+	 * call {@link #flush()}
+	 */
+	public SitemapChangeFeed(RangeShardedSitemaps<U> view, int batchSize, long flushInterval, TimeUnit unit) {
+		if (batchSize <= 0) throw new RuntimeException("batchSize must be positive; you asked for " + batchSize);
+		if (flushInterval < 0) throw new RuntimeException("flushInterval may not be negative; you asked for " + flushInterval);
+		this.view = view;
+		this.store = view.getStore();
+		this.batchSize = batchSize;
+		pending = new LinkedHashMap<String, U>(Math.min(batchSize, 1 << 16) * 4 / 3 + 1);
+		if (flushInterval == 0) {
+			timer = null;
+		} else {
+			timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "sitemap-change-feed");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			timer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					backgroundFlush();
+				}
+			}, flushInterval, flushInterval, unit);
+		}
+	}
+
+	/** Adds the URL to the sitemaps, or updates it if it's already there */
+	public synchronized void upsert(U url) {
+		change(url.getUrl().toString(), url);
+	}
+
+	/** Removes the URL from the sitemaps, if it's there */
+	public synchronized void delete(String url) {
+		change(url, null);
+	}
+
+	/** Removes the URL from the sitemaps, if it's there */
+	public void delete(URL url) {
+		delete(url.toString());
+	}
+
+	private void change(String key, U url) {
+		checkOpen();
+		checkFailure();
+		if (pending.size() >= (long) batchSize * MAX_PENDING_BATCHES && !pending.containsKey(key)) {
+			// flushes have been failing, and we won't hold any more until one works
+			doFlush();
+		}
+		// remove first, so a URL changed again moves to the back, in the order the changes came in
+		pending.remove(key);
+		pending.put(key, url);
+		eventCount++;
+		if (pending.size() >= batchSize && !flushFailing) flush();
+	}
+
+	/**
+	 * Writes the batched changes to the store and rewrites the sitemaps they affect
+	 *
+	 * @return the sitemaps we wrote, not counting the index
+	 */
+	public synchronized List<File> flush() {
+		checkOpen();
+		checkFailure();
+		return doFlush();
+	}
+
+	/** Throws the problem the last background flush had, if it had one, just once */
+	private void checkFailure() {
+		if (failure != null) {
+			RuntimeException e = failure;
+			failure = null;
+			throw e;
+		}
+	}
+
+	private List<File> doFlush() {
+		if (pending.isEmpty()) return Collections.<File>emptyList();
+		flushFailing = true;
+		try {
+			for (Map.Entry<String, U> change : pending.entrySet()) {
+				if (change.getValue() == null) {
+					store.delete(change.getKey());
+				} else {
+					store.put(change.getValue());
+				}
+			}
+			// the puts and deletes can safely be replayed, so keep the batch until the sitemaps are rewritten too
+			List<File> written = view.refresh();
+			pending.clear();
+			flushFailing = false;
+			return written;
+		} catch (IOException e) {
+			throw new RuntimeException("Problem flushing sitemap changes", e);
+		}
+	}
+
+	private synchronized void backgroundFlush() {
+		if (closed || failure != null) return;
+		try {
+			doFlush();
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+	}
+
+	/** How many changes are waiting for the next flush, after coalescing */
+	public synchronized int getPendingCount() {
+		return pending.size();
+	}
+
+	/** How many upserts and deletes we've been given, including ones coalesced away */
+	public synchronized long getEventCount() {
+		return eventCount;
+	}
+
+	private void checkOpen() {
+		if (closed) throw new RuntimeException("The change feed is closed");
+	}
+
+	/**
+	 * Stops the background flushes and flushes whatever's left; doesn't close the store.  The feed is closed even
+	 * if that last flush fails: we throw the problem, and the changes still waiting are lost (though any that
+	 * reached the store will be picked up by the view's next refresh).
+	 */
+	public void close() throws IOException {
+		if (timer != null) {
+			timer.shutdown();
+			try {
+				timer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			if (closed) return;
+			try {
+				flush();
+			} finally {
+				closed = true;
+			}
+		}
+	}
+
+	/** The URLs waiting for the next flush, for tests */
+	synchronized List<String> getPendingKeys() {
+		return new ArrayList<String>(pending.keySet());
+	}
+}
@@ -0,0 +1,139 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * How far a long-running generator had got: the sitemaps it had finished, in order, each with its URL count and
+ * manifest entry, and the caller's cursor into its source of URLs as of the last URL in the last finished sitemap.
+ * A generator {@link AbstractSitemapGeneratorOptions#resume(boolean) resuming} from a checkpoint keeps those
+ * sitemaps and starts writing the next one.
+ *
+ * <p>It's a plain text file: a header, then one line per sitemap, in the same format as the
+ * {@link SitemapManifest manifest}, with the cursor after the sitemaps it goes with.  The generator writes it
+ * whole the first time, then {@link #append(File, List, String) appends} each sitemap it finishes and the new
+ * cursor, so saving a checkpoint costs the same for the thousandth sitemap as for the first.  Sitemaps only count
+ * once a cursor follows them, so if a crash cuts an append short, we read the checkpoint as it was before.</p>
+ */
+class SitemapCheckpoint {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String HEADER = "# sitemap checkpoint v1";
+	private static final String CURSOR = "cursor\t";
+
+	private final String cursor;
+	private final List<SitemapManifest.Entry> entries;
+
+	SitemapCheckpoint(String cursor, List<SitemapManifest.Entry> entries) {
+		this.cursor = cursor;
+		this.entries = Collections.unmodifiableList(new ArrayList<SitemapManifest.Entry>(entries));
+	}
+
+	/** The caller's cursor as of the last finished sitemap, or null if they didn't give one */
+	String getCursor() {
+		return cursor;
+	}
+
+	/** The finished sitemaps, in order */
+	List<SitemapManifest.Entry> getEntries() {
+		return entries;
+	}
+
+	/** Reads a checkpoint, or returns null if there isn't one */
+	static SitemapCheckpoint read(File file) throws IOException {
+		byte[] bytes;
+		try {
+			bytes = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		// a last line with no newline was cut short by a crash, so we ignore it
+		int length = bytes.length;
+		while (length > 0 && bytes[length - 1] != '\n') length--;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes, 0, length), UTF8));
+		String line = in.readLine();
+		if (!HEADER.equals(line)) throw new IOException("Not a sitemap checkpoint: " + file);
+		String cursor = null;
+		boolean hasCursor = false;
+		List<SitemapManifest.Entry> entries = new ArrayList<SitemapManifest.Entry>();
+		// sitemaps that no cursor follows yet
+		List<SitemapManifest.Entry> pending = new ArrayList<SitemapManifest.Entry>();
+		while ((line = in.readLine()) != null) {
+			if (line.isEmpty()) continue;
+			if (line.startsWith(CURSOR)) {
+				cursor = null;
+				if (line.length() > CURSOR.length()) {
+					if (line.charAt(CURSOR.length()) != '=') throw new IOException("Bad sitemap checkpoint " + file + ": " + line);
+					cursor = line.substring(CURSOR.length() + 1);
+				}
+				hasCursor = true;
+				entries.addAll(pending);
+				pending.clear();
+				continue;
+			}
+			SitemapManifest.Entry entry = SitemapManifest.Entry.parse(line);
+			if (entry == null) throw new IOException("Bad line in sitemap checkpoint " + file + ": " + line);
+			pending.add(entry);
+		}
+		if (!hasCursor) throw new IOException("Bad sitemap checkpoint " + file + ": no cursor");
+		return new SitemapCheckpoint(cursor, entries);
+	}
+
+	/**
+	 * Writes the checkpoint to a temporary file and syncs it, then moves it into place, so that after a crash we
+	 * find either this checkpoint or the last one, never half of one
+	 */
+	void write(File file) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append(HEADER).append('\n');
+		format(sb, entries, cursor);
+		File tmp = new File(file.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(sb.toString().getBytes(UTF8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/**
+	 * Adds sitemaps finished since the checkpoint was last written, and the cursor as of the last of them, to the
+	 * end of the checkpoint file, and syncs it
+	 */
+	static void append(File file, List<SitemapManifest.Entry> entries, String cursor) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		format(sb, entries, cursor);
+		FileOutputStream out = new FileOutputStream(file, true);
+		try {
+			out.write(sb.toString().getBytes(UTF8));
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void format(StringBuilder sb, List<SitemapManifest.Entry> entries, String cursor) {
+		for (SitemapManifest.Entry entry : entries) sb.append(entry.format()).append('\n');
+		// a leading marker, so an empty cursor and no cursor read back differently
+		sb.append(CURSOR);
+		if (cursor != null) sb.append('=').append(cursor);
+		sb.append('\n');
+	}
+}
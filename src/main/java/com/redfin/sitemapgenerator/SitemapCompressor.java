@@ -0,0 +1,71 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+/** Gzips sitemap files the way the generator's options say to */
+class SitemapCompressor {
+	static final int DEFAULT_BUFFER_SIZE = 8192;
+
+	private final Executor executor;
+	private final int level;
+	private final int strategy;
+	private final int bufferSize;
+	private final DeflaterPool pool;
+	private final boolean closingMember;
+
+	/**
+	 * @param executor if not null, deflate big sitemaps in parallel blocks on this executor
+	 */
+	SitemapCompressor(Executor executor) {
+		this(executor, Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, DEFAULT_BUFFER_SIZE, DeflaterPool.SHARED);
+	}
+
+	/**
+	 * @param executor if not null, deflate big sitemaps in parallel blocks on this executor
+	 * @param level a {@link Deflater} compression level, from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @param strategy a {@link Deflater} strategy
+	 * @param bufferSize the size of the buffer for compressed output
+	 * @param pool where to get our Deflaters from
+	 */
+	SitemapCompressor(Executor executor, int level, int strategy, int bufferSize, DeflaterPool pool) {
+		this(executor, level, strategy, bufferSize, pool, false);
+	}
+
+	/**
+	 * @param closingMember put each sitemap's closing tag in a {@link GzipClosingMember gzip member of its own},
+	 * so that URLs can be appended later without recompressing the sitemap
+	 */
+	SitemapCompressor(Executor executor, int level, int strategy, int bufferSize, DeflaterPool pool, boolean closingMember) {
+		this.executor = executor;
+		this.closingMember = closingMember;
+		this.level = level;
+		this.strategy = strategy;
+		this.bufferSize = bufferSize;
+		this.pool = pool;
+	}
+
+	/** Wraps the stream so that everything written to it comes out gzipped */
+	OutputStream compress(OutputStream out) throws IOException {
+		if (executor != null) return new ParallelGzipOutputStream(out, executor, this);
+		return new PooledGzipOutputStream(out, this);
+	}
+
+	Deflater borrowDeflater() {
+		return pool.borrow(level, strategy);
+	}
+
+	void releaseDeflater(Deflater deflater) {
+		pool.release(deflater, level, strategy);
+	}
+
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	boolean writesClosingMember() {
+		return closingMember;
+	}
+}
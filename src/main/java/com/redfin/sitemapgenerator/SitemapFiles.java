@@ -0,0 +1,28 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The files written by {@link SitemapGenerator#toSitemaps()}: the sitemaps, in order, and the sitemap index that lists them.
+ */
+public class SitemapFiles {
+	private final List<File> sitemaps;
+	private final File index;
+
+	SitemapFiles(List<File> sitemaps, File index) {
+		this.sitemaps = Collections.unmodifiableList(sitemaps);
+		this.index = index;
+	}
+
+	/** The sitemaps, in the order they're listed in the index */
+	public List<File> getSitemaps() {
+		return sitemaps;
+	}
+
+	/** The sitemap index, {baseDir}/sitemap_index.xml */
+	public File getIndex() {
+		return index;
+	}
+}
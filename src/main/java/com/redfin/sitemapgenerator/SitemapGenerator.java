@@ -3,38 +3,112 @@ package com.redfin.sitemapgenerator;
 import org.xml.sax.SAXException;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.net.MalformedURLException;
 import java.net.URL;
-import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
-import java.util.zip.GZIPOutputStream;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collector;
+
+import com.redfin.sitemapgenerator.Utf8XmlWriter.Fragment;
 
 abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGenerator<U,THIS>> {
 	/** 50000 URLs per sitemap maximum */
 	public static final int MAX_URLS_PER_SITEMAP = 50000;
+	/** 50MB (52,428,800 bytes) per uncompressed sitemap maximum */
+	public static final long MAX_BYTES_PER_SITEMAP = 50L * 1024 * 1024;
+	private static final String INDEX_NAME = "sitemap_index.xml";
 	
 	private final URL baseUrl;
 	private final File baseDir;
+	private final ISitemapOutputSink sink;
 	private final String fileNamePrefix;
 	private final String fileNameSuffix;
 	private final boolean allowEmptySitemap;
 	private final boolean allowMultipleSitemaps;
-	private final ArrayList<U> urls = new ArrayList<U>();
+	private ArrayList<U> urls = new ArrayList<U>();
 	private final W3CDateFormat dateFormat;
 	private final int maxUrls;
 	private final boolean autoValidate;
 	private final boolean gzip;
+	private final SitemapCompressor compressor;
+	private final boolean streaming;
 	private final ISitemapUrlRenderer<U> renderer;
+	private final Fragment header;
+	private final ISitemapRolloverPolicy rolloverPolicy;
+	private final ExecutorService executor;
+	private final int maxPendingBatches;
+	private final ShardRun run;
+	private final Pipeline pipeline;
+	private final Stripes stripes;
 	private int mapCount = 0;
-	private boolean finished = false;
+	private volatile boolean finished = false;
+	private final ArrayList<Future<List<String>>> batches = new ArrayList<Future<List<String>>>();
+	private int firstPendingBatch = 0;
+	/** Keeps threads sealing batches from getting too far ahead of the executor */
+	private final Semaphore pendingBatches;
 	
-	private final ArrayList<File> outFiles = new ArrayList<File>();
+	private final ArrayList<String> outNames = new ArrayList<String>();
+	private final File manifestFile;
+	/** The manifest from the last run, if we're keeping one */
+	private final SitemapManifest previousManifest;
+	/** What we've written so far for the new manifest, by the name each sitemap has at the moment */
+	private final ConcurrentHashMap<String, SitemapManifest.Entry> manifestEntries = new ConcurrentHashMap<String, SitemapManifest.Entry>();
+	private SitemapManifest manifest;
+	private final File locatorFile;
+	/** Each finished sitemap's sorted URL fingerprints, spilled to a temporary file for the locator, by the name each sitemap has at the moment */
+	private final ConcurrentHashMap<String, File> locatorEntries = new ConcurrentHashMap<String, File>();
+	/** Whether we're adding to a set of sitemaps from an earlier run */
+	private final boolean appending;
+	/** The last sitemap from the earlier run, which we'll reopen when we have URLs to add to it */
+	private String reopenName;
+	/** Whether we write each URL as it's added, rather than holding a sitemap's worth of them first */
+	private final boolean streamsUrls;
+	private final File checkpointFile;
+	private final ISitemapDeduplicator deduplicator;
+	/** Whether even a lone sitemap gets the number 1 */
+	private final boolean numberEverySitemap;
+	/** The caller's cursor into their source of URLs, as of the last URL they added */
+	private String cursor;
+	/** How many of our sitemaps are in the checkpoint file so far, or -1 if we haven't written it yet */
+	private int checkpointedCount = -1;
+	/** The cursor from the checkpoint we resumed from */
+	private String resumeCursor;
+	/** Whether we resumed after a finished sitemap, so the next sitemap we open is the one after it */
+	private boolean rollOnOpen = false;
 	
 	public SitemapGenerator(AbstractSitemapGeneratorOptions<?> options, ISitemapUrlRenderer<U> renderer) {
 		baseDir = options.baseDir;
+		if (options.outputSink != null) {
+			sink = options.outputSink;
+		} else if (baseDir != null && options.fsyncPolicy != null) {
+			sink = new ChannelSitemapOutputSink(baseDir.toPath(), options.fsyncPolicy, ChannelSitemapOutputSink.DEFAULT_BUFFER_SIZE);
+		} else if (baseDir != null) {
+			sink = new FileSitemapOutputSink(baseDir);
+		} else {
+			sink = null;
+		}
 		baseUrl = options.baseUrl;
 		fileNamePrefix = options.fileNamePrefix;
 		W3CDateFormat dateFormat = options.dateFormat;
@@ -45,7 +119,50 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 		maxUrls = options.maxUrls;
 		autoValidate = options.autoValidate;
 		gzip = options.gzip;
+		compressor = gzip ? new SitemapCompressor(options.gzipExecutor, options.compressionLevel,
+				options.compressionStrategy, options.gzipBufferSize, DeflaterPool.SHARED, options.appendableGzip) : null;
+		streaming = options.streaming;
 		this.renderer = renderer;
+		header = SitemapShardWriter.header(renderer);
+		deduplicator = options.deduplicator;
+		numberEverySitemap = options.numberEverySitemap;
+		rolloverPolicy = new SitemapRolloverPolicy(maxUrls, options.maxBytes, options.maxCompressedBytes, options.rolloverPolicy);
+		executor = options.executor;
+		maxPendingBatches = 2 * Runtime.getRuntime().availableProcessors();
+		pendingBatches = new Semaphore(maxPendingBatches);
+		run = new SequentialShardRun();
+		pipeline = options.pipelineQueueSize > 0 ? new Pipeline(options.pipelineQueueSize) : null;
+		if ((streaming || pipeline != null) && sink == null) {
+			throw new NullPointerException("To write to files, baseDir must not be null");
+		}
+		if (streaming && executor != null) {
+			throw new RuntimeException("Streaming mode writes each URL as soon as it's added; it can't hand sitemaps off to an executor");
+		}
+		if (pipeline != null && executor != null) {
+			throw new RuntimeException("Pipelined mode writes sitemaps on its own thread; it can't hand them off to an executor");
+		}
+		if (options.concurrent && sink == null) {
+			throw new NullPointerException("To write to files, baseDir must not be null");
+		}
+		if (options.concurrent && (streaming || pipeline != null)) {
+			throw new RuntimeException("Concurrent mode writes whole sitemaps at a time; it can't be combined with streaming or pipelined mode");
+		}
+		stripes = options.concurrent ? new Stripes() : null;
+		if (sink instanceof OutputStreamSitemapOutputSink && (executor != null || stripes != null)) {
+			throw new RuntimeException("An output stream takes one sitemap at a time; it can't be combined with an executor or concurrent mode");
+		}
+		manifestFile = options.manifestFile;
+		if (manifestFile != null) {
+			if (sink == null) throw new NullPointerException("To keep a manifest, baseDir must not be null");
+			try {
+				previousManifest = SitemapManifest.read(manifestFile);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem reading sitemap manifest " + manifestFile, e);
+			}
+		} else {
+			previousManifest = null;
+		}
+		locatorFile = options.locatorFile;
 
 		if(options.suffixStringPattern != null && !options.suffixStringPattern.isEmpty()) {
 			fileNameSuffix = gzip ? options.suffixStringPattern + ".xml.gz" : options.suffixStringPattern + ".xml";
@@ -53,6 +170,69 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 		else {
 			fileNameSuffix = gzip ? ".xml.gz" : ".xml";
 		}
+
+		appending = options.append;
+		if (appending) {
+			if (baseDir == null || options.outputSink != null) {
+				throw new RuntimeException("Append mode reads back the sitemaps in baseDir; it needs a baseDir, not an output sink");
+			}
+			if (executor != null || stripes != null) {
+				throw new RuntimeException("Append mode adds to the last sitemap on the calling thread; it can't be combined with an executor or concurrent mode");
+			}
+			if (manifestFile != null) {
+				throw new RuntimeException("Append mode can't be combined with a manifest");
+			}
+			if (locatorFile != null) {
+				throw new RuntimeException("Append mode can't be combined with a locator file");
+			}
+			findExistingSitemaps();
+		}
+
+		checkpointFile = options.checkpointFile;
+		if (checkpointFile != null) {
+			if (sink == null) throw new NullPointerException("To keep a checkpoint, baseDir must not be null");
+			if (executor != null || stripes != null || pipeline != null) {
+				throw new RuntimeException("Checkpoints record each sitemap as it's finished on the calling thread; they can't be combined with an executor, concurrent mode or pipelined mode");
+			}
+			if (appending) {
+				throw new RuntimeException("Append mode can't be combined with a checkpoint");
+			}
+		}
+		streamsUrls = streaming || appending || checkpointFile != null;
+		if (options.resume) {
+			if (checkpointFile == null) throw new RuntimeException("To resume, you need a checkpoint file");
+			if (locatorFile != null) {
+				throw new RuntimeException("Resuming can't be combined with a locator file");
+			}
+			resumeFromCheckpoint();
+		}
+	}
+
+	/**
+	 * Picks up where the checkpointed run left off: keeps the sitemaps it finished, and throws away any it had
+	 * started after them
+	 */
+	private void resumeFromCheckpoint() {
+		SitemapCheckpoint checkpoint;
+		try {
+			checkpoint = SitemapCheckpoint.read(checkpointFile);
+		} catch (IOException e) {
+			throw new RuntimeException("Problem reading sitemap checkpoint " + checkpointFile, e);
+		}
+		if (checkpoint == null) return;
+		for (SitemapManifest.Entry entry : checkpoint.getEntries()) {
+			if (!sink.exists(entry.getName())) {
+				throw new RuntimeException("Can't resume from " + checkpointFile + "; sitemap " + entry.getName() + " is missing");
+			}
+			outNames.add(entry.getName());
+			manifestEntries.put(entry.getName(), entry);
+		}
+		mapCount = outNames.size();
+		rollOnOpen = mapCount > 0;
+		resumeCursor = checkpoint.getCursor();
+		cursor = resumeCursor;
+		for (int i = mapCount + 1; sink.exists(shardName(i)); i++) deleteShard(shardName(i));
+		if (mapCount > 0 && sink.exists(shardName(0))) deleteShard(shardName(0));
 	}
 
 	/** Add one URL of the appropriate type to this sitemap.
@@ -64,23 +244,68 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 	public THIS addUrl(U url) {
 		if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps"); 
 		UrlUtils.checkUrl(url.getUrl(), baseUrl);
+		if (isDuplicate(url)) return getThis();
+		if (pipeline != null) {
+			pipeline.add(url);
+			return getThis();
+		}
+		if (stripes != null) {
+			stripes.add(url);
+			return getThis();
+		}
+		if (streamsUrls) {
+			streamUrl(url);
+			return getThis();
+		}
 		if (urls.size() == maxUrls) {
 			if (!allowMultipleSitemaps) throw new RuntimeException("More than " + maxUrls + " urls, but allowMultipleSitemaps is false.  Enable allowMultipleSitemaps to split the sitemap into multiple files with a sitemap index.");
-			if (baseDir != null) {
-				if (mapCount == 0) mapCount++;
-				try {
+			if (sink != null) {
+				if (executor != null) {
+					submitBatch();
+				} else {
+					if (mapCount == 0) mapCount++;
 					writeSiteMap();
-				} catch(IOException ex) {
-					throw new RuntimeException("Closing of stream failed.", ex);
+					mapCount++;
+					urls.clear();
 				}
-				mapCount++;
-				urls.clear();
 			}
 		}
 		urls.add(url);
 		return getThis();
 	}
 	
+	/** Whether the deduplicator, if there is one, has seen the URL before */
+	private boolean isDuplicate(U url) {
+		return deduplicator != null && !deduplicator.add(url.getUrl().toString());
+	}
+	
+	/** Add one URL, and note where your source of URLs stands after it.  With a
+	 * {@link AbstractSitemapGeneratorOptions#checkpoint(File) checkpoint}, each checkpoint saves the cursor as of the
+	 * last URL in the last finished sitemap, and when you resume, {@link #getResumeCursor()} gives it back, so you
+	 * know where to start reading again.
+	 * @param url the URL to add to this sitemap
+	 * @param cursor where your source stands after this URL, e.g. a database key or file offset; no line breaks
+	 * @return this
+	 */
+	public THIS addUrl(U url, String cursor) {
+		if (cursor != null && (cursor.indexOf('\n') >= 0 || cursor.indexOf('\r') >= 0)) {
+			throw new RuntimeException("A cursor can't have line breaks in it: " + cursor);
+		}
+		addUrl(url);
+		this.cursor = cursor;
+		return getThis();
+	}
+
+	/**
+	 * When {@link AbstractSitemapGeneratorOptions#resume(boolean) resuming}, the cursor saved with the checkpoint,
+	 * i.e. where your source of URLs stood after the last URL in the last finished sitemap.  Start adding URLs from
+	 * just after it.  Null if there was no checkpoint to resume from, or no cursor in it; then start from the
+	 * beginning.
+	 */
+	public String getResumeCursor() {
+		return resumeCursor;
+	}
+	
 	/** Add multiple URLs of the appropriate type to this sitemap, one at a time.
 	 * If we have reached the maximum number of URLs, we'll throw an exception if {@link #allowMultipleSitemaps} is false,
 	 * or write out one sitemap immediately.
@@ -157,6 +382,40 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 		}
 	}
 	
+	/**
+	 * A Collector that writes a stream of URLs as sitemaps, plus a sitemap index of all of them, e.g.
+	 * <code>urls.parallelStream().collect(wsg.toSitemaps())</code>.  Each part of a parallel stream writes out
+	 * its own sitemaps as they fill up, on its own thread (or on the {@link AbstractSitemapGeneratorOptions#executor executor},
+	 * if there is one).  Sitemaps are numbered in the order they fill up, which for a parallel stream isn't the
+	 * order of the stream.  Like {@link #write()}, you can only collect once, and you can't use addUrl() as well.
+	 * 
+	 * @return a Collector that gives you the sitemaps and the index it wrote
+	 */
+	public Collector<U, ?, SitemapFiles> toSitemaps() {
+		if (sink == null) throw new NullPointerException("To write to files, baseDir must not be null");
+		if (streamsUrls || pipeline != null) {
+			throw new RuntimeException("Collecting writes whole sitemaps at a time; it can't be combined with streaming, pipelined, append or checkpointed mode");
+		}
+		return Collector.of(UrlBuffer::new, UrlBuffer::add, UrlBuffer::combine, UrlBuffer::finish, Collector.Characteristics.UNORDERED);
+	}
+	
+	/**
+	 * A Flow.Subscriber that writes the URLs it's given as sitemaps, plus a sitemap index of all of them.  It asks
+	 * the publisher for one sitemap's worth of URLs at a time, and only asks for more once the last full sitemap has
+	 * been written.  Sitemaps are written on the {@link AbstractSitemapGeneratorOptions#executor executor} if there
+	 * is one, or else the common ForkJoinPool, never on the publisher's thread.  Like {@link #write()}, you can only
+	 * subscribe once, and you can't use addUrl() as well.
+	 * 
+	 * @return a subscriber whose {@link ISitemapSubscriber#getResult() result} is the sitemaps and index it wrote
+	 */
+	public ISitemapSubscriber<U> toSubscriber() {
+		if (sink == null) throw new NullPointerException("To write to files, baseDir must not be null");
+		if (streamsUrls || pipeline != null) {
+			throw new RuntimeException("Subscribing writes whole sitemaps at a time; it can't be combined with streaming, pipelined, append or checkpointed mode");
+		}
+		return new UrlSubscriber(executor != null ? executor : ForkJoinPool.commonPool());
+	}
+	
 	@SuppressWarnings("unchecked")
 	THIS getThis() {
 		return (THIS)this;
@@ -164,18 +423,27 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 	
 	/** Write out remaining URLs; this method can only be called once.  This is necessary so we can keep an accurate count for {@link #writeSitemapsWithIndex()}.
 	 *
-	 * @return a list of files we wrote out to disk
+	 * @return a list of files we wrote out to disk; if you're using an {@link AbstractSitemapGeneratorOptions#outputSink output sink}
+	 * that doesn't write files, these are just the names of the sitemaps
 	 */
 	public List<File> write() {
 		if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps");
-		if (!allowEmptySitemap && urls.isEmpty() && mapCount == 0) throw new RuntimeException("No URLs added, sitemap would be empty; you must add some URLs with addUrls");
-		try {
+		if (!allowEmptySitemap && isEmpty()) throw new RuntimeException("No URLs added, sitemap would be empty; you must add some URLs with addUrls");
+		if (pipeline != null) {
+			pipeline.finish();
+		} else if (stripes != null) {
+			stripes.finish();
+		} else if (streamsUrls) {
+			finishRun();
+		} else if (executor != null) {
+			if (!urls.isEmpty() || batches.isEmpty()) submitBatch();
+			finishBatches();
+		} else {
 			writeSiteMap();
-		} catch (IOException ex) {
-			throw new RuntimeException("Closing of streams has failed at some point.", ex);
 		}
 		finished = true;
-		return outFiles;
+		if (sink != null) finishSink();
+		return getOutFiles();
 	}
 	
 	/**
@@ -186,6 +454,8 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 	 * @return a list of XML-formatted strings
 	 */
 	public List<String> writeAsStrings() {
+		if (streamsUrls || pipeline != null) throw new RuntimeException("URLs are not retained in streaming, append or checkpointed mode; use write() instead");
+		if (stripes != null) throw new RuntimeException("URLs are not retained in concurrent mode; use write() instead");
 		List<String> listOfSiteMapStrings = new ArrayList<String>();
 		for (int start = 0; start < urls.size(); start += maxUrls) {
 			int end = start + maxUrls;
@@ -200,32 +470,32 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 	}
 	
 	private void writeSiteMapAsString(StringBuilder sb, List<U> urls) {
-		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-		sb.append("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" ");
-		if (renderer.getXmlNamespaces() != null) {
-			sb.append(renderer.getXmlNamespaces());
-			sb.append(' ');
-		}
-		sb.append(">\n");
-		for (U url : urls) {
-			renderer.render(url, sb, dateFormat);
+		try {
+			sb.append(header.text);
+			for (U url : urls) {
+				renderer.render(url, sb, dateFormat);
+			}
+			sb.append(SitemapShardWriter.footer().text);
+		} catch (IOException e) {
+			throw new RuntimeException("BUG StringBuilder can't throw IOException", e);
 		}
-		sb.append("</urlset>");
 	}
 	
 	/**
 	 * After you've called {@link #write()}, call this to generate a sitemap index of all sitemaps you generated.
-	 * The sitemap index is written to {baseDir}/sitemap_index.xml
+	 * The sitemap index is written to {baseDir}/sitemap_index.xml, or to the output sink as "sitemap_index.xml"
 	 */
 	public File writeSitemapsWithIndex() {
-		return writeSitemapsWithIndex(new File(baseDir, "sitemap_index.xml"));
+		if (sink == null) return writeSitemapsWithIndex(new File(baseDir, INDEX_NAME));
+		prepareSitemapIndexGenerator(new SitemapIndexGenerator.Options(baseUrl, sink, INDEX_NAME)).write();
+		return fileFor(INDEX_NAME);
 	}
 
 	/**
 	 * After you've called {@link #write()}, call this to generate a sitemap index of all sitemaps you generated.
 	 */
 	public String writeSitemapsWithIndexAsString() {
-		return prepareSitemapIndexGenerator(null).writeAsString();
+		return prepareSitemapIndexGenerator(new SitemapIndexGenerator.Options(baseUrl, (File) null)).writeAsString();
 	}
 
 	/**
@@ -234,61 +504,942 @@ abstract class SitemapGenerator<U extends ISitemapUrl, THIS extends SitemapGener
 	 * @param outFile the destination file of the sitemap index.
 	 */
 	public File writeSitemapsWithIndex(File outFile) {
-		prepareSitemapIndexGenerator(outFile).write();
+		prepareSitemapIndexGenerator(new SitemapIndexGenerator.Options(baseUrl, outFile)).write();
 		return outFile;
 	}
 
-	private SitemapIndexGenerator prepareSitemapIndexGenerator(File outFile) {
+	private SitemapIndexGenerator prepareSitemapIndexGenerator(SitemapIndexGenerator.Options options) {
 		if (!finished) throw new RuntimeException("Sitemaps not generated yet; call write() first");
 		SitemapIndexGenerator sig;
-		sig = new SitemapIndexGenerator.Options(baseUrl, outFile).dateFormat(dateFormat).autoValidate(autoValidate).build();
-		sig.addUrls(fileNamePrefix, fileNameSuffix, mapCount);
+		sig = options.dateFormat(dateFormat).autoValidate(autoValidate).build();
+		if (manifest == null) {
+			sig.addUrls(fileNamePrefix, fileNameSuffix, numberEverySitemap ? Math.max(mapCount, 1) : mapCount);
+			return sig;
+		}
+		for (SitemapManifest.Entry entry : manifest.getEntries()) {
+			try {
+				sig.addUrl(new URL(baseUrl, entry.getName()), entry.getLastMod());
+			} catch (MalformedURLException e) {
+				throw new RuntimeException("Couldn't make URL for " + entry.getName(), e);
+			}
+		}
 		return sig;
 	}
 	
-	private void writeSiteMap() throws IOException {
-		if (baseDir == null) {
+	private void writeSiteMap() {
+		if (sink == null) {
 			throw new NullPointerException("To write to files, baseDir must not be null");
 		}
 		if (urls.isEmpty() && (mapCount > 0 || !allowEmptySitemap)) return;
-		String fileNamePrefix;
-		if (mapCount > 0) {
-			fileNamePrefix = this.fileNamePrefix + mapCount;
+		run.open();
+		try {
+			for (U url : urls) {
+				run.write(url);
+			}
+		} catch (RuntimeException e) {
+			// a sitemap missing some of its URLs is no good
+			run.abort();
+			throw e;
+		}
+		run.close();
+	}
+
+	/** Renders the URL straight into the open sitemap file, rolling over to a new file when it's full */
+	private void streamUrl(U url) {
+		if (!run.isOpen()) run.open();
+		run.write(url);
+	}
+
+	/** Closes the last streamed sitemap, or writes an empty one if there weren't any URLs */
+	private void finishRun() {
+		if (!run.isOpen() && mapCount == 0) run.open();
+		run.close();
+	}
+
+	/** Hands the current URLs off to the executor to be written as a sitemap, waiting if it's too far behind */
+	private void submitBatch() {
+		if (sink == null) {
+			throw new NullPointerException("To write to files, baseDir must not be null");
+		}
+		while (batches.size() - firstPendingBatch >= maxPendingBatches) {
+			try {
+				batches.get(firstPendingBatch).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				finishBatches();
+			} catch (ExecutionException e) {
+				finishBatches();
+			}
+			firstPendingBatch++;
+		}
+		batches.add(executor.submit(new ShardBatch(urls, batches.size() + 1)));
+		urls = new ArrayList<U>();
+	}
+
+	/**
+	 * Waits for the executor to write all of the sitemaps, then gives them their final names in the order
+	 * their URLs were added.
+	 */
+	private void finishBatches() {
+		List<String> parts = new ArrayList<String>();
+		RuntimeException failure = null;
+		for (Future<List<String>> batch : batches) {
+			try {
+				parts.addAll(batch.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (failure == null) failure = new RuntimeException("Interrupted while writing sitemaps", e);
+				batch.cancel(true);
+			} catch (ExecutionException e) {
+				if (failure == null) failure = new RuntimeException("Problem writing sitemap files", e.getCause());
+			}
+		}
+		if (failure != null) {
+			for (String part : parts) deleteQuietly(part);
+			finished = true;
+			throw failure;
+		}
+		mapCount = parts.size() == 1 ? 0 : parts.size();
+		for (int i = 0; i < parts.size(); i++) {
+			String name = shardName(mapCount == 0 ? 0 : i + 1);
+			SitemapManifest.Entry unchanged = manifestFile == null ? null : unchangedEntry(i + 1, manifestEntries.get(parts.get(i)));
+			if (unchanged != null) {
+				// the last run already wrote this one; keep that file, so it still looks unmodified
+				manifestEntries.remove(parts.get(i));
+				deleteShard(parts.get(i));
+				keepShard(unchanged, name);
+				File fingerprints = locatorEntries.remove(parts.get(i));
+				if (fingerprints != null) locatorEntries.put(name, fingerprints);
+			} else {
+				renameShard(parts.get(i), name);
+			}
+			outNames.add(name);
+		}
+	}
+
+	/** The last run's entry for the sitemap at this position, counting from 1, if it had the same content and is still there */
+	private SitemapManifest.Entry unchangedEntry(int position, SitemapManifest.Entry entry) {
+		SitemapManifest.Entry previous = previousManifest.getEntry(position);
+		if (previous == null || entry == null || !previous.getHash().equals(entry.getHash())) return null;
+		return sink.exists(previous.getName()) ? previous : null;
+	}
+
+	/** Reuses the sitemap the last run wrote, under the name it should have now */
+	private void keepShard(SitemapManifest.Entry previous, String name) {
+		if (!previous.getName().equals(name)) renameShard(previous.getName(), name);
+		manifestEntries.put(name, previous.rename(name));
+	}
+
+	/**
+	 * Picks up the numbering where the earlier run left off: sitemap1 through sitemapN if there were several, or
+	 * a lone sitemap with no number.  The last one will be reopened for the next URLs.
+	 */
+	private void findExistingSitemaps() {
+		int count = 0;
+		while (new File(baseDir, shardName(count + 1)).exists()) count++;
+		if (count > 0) {
+			for (int i = 1; i <= count; i++) outNames.add(shardName(i));
+			mapCount = count;
+		} else if (new File(baseDir, shardName(0)).exists()) {
+			outNames.add(shardName(0));
 		} else {
-			fileNamePrefix = this.fileNamePrefix;
+			return;
 		}
-		File outFile = new File(baseDir, fileNamePrefix+fileNameSuffix);
-		outFiles.add(outFile);
+		reopenName = outNames.get(outNames.size() - 1);
+	}
 
-		OutputStreamWriter out = null;
+	private String shardName(int number) {
+		if (number > 0) {
+			return fileNamePrefix + number + fileNameSuffix;
+		}
+		if (numberEverySitemap) return shardName(1);
+		return fileNamePrefix + fileNameSuffix;
+	}
+
+	private void renameFirstShard() {
+		String to = shardName(1);
+		renameShard(outNames.get(0), to);
+		outNames.set(0, to);
+	}
+
+	private void renameShard(String from, String to) {
+		if (from.equals(to)) return;
 		try {
-			if (gzip) {
-				FileOutputStream fileStream = new FileOutputStream(outFile);
-				GZIPOutputStream gzipStream = new GZIPOutputStream(fileStream);
-				out = new OutputStreamWriter(gzipStream, Charset.forName("UTF-8").newEncoder());
-			} else {
-				out = new OutputStreamWriter(new FileOutputStream(outFile), Charset.forName("UTF-8").newEncoder());
+			sink.rename(from, to);
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't rename sitemap " + from + " to " + to, e);
+		}
+		SitemapManifest.Entry entry = manifestEntries.remove(from);
+		if (entry != null) manifestEntries.put(to, entry.rename(to));
+		File fingerprints = locatorEntries.remove(from);
+		if (fingerprints != null) locatorEntries.put(to, fingerprints);
+	}
+
+	private void deleteShard(String name) {
+		try {
+			sink.delete(name);
+		} catch (IOException e) {
+			throw new RuntimeException("Couldn't delete sitemap " + name, e);
+		}
+	}
+
+	/** Cleans up after a failure; we're already failing, so we don't want to mask the original problem */
+	private void deleteQuietly(String name) {
+		File fingerprints = locatorEntries.remove(name);
+		if (fingerprints != null) fingerprints.delete();
+		try {
+			sink.delete(name);
+		} catch (IOException e) {
+			// leave it behind
+		}
+	}
+
+	/**
+	 * Lets the sink know the sitemaps are all written and named, e.g. so it can sync them.  If we're keeping a
+	 * manifest, first deletes any sitemaps left over from a bigger set, then saves the new manifest once the
+	 * sitemaps it describes are safely written, and likewise the locator file.
+	 */
+	private void finishSink() {
+		List<SitemapManifest.Entry> entries = null;
+		if (manifestFile != null) {
+			entries = new ArrayList<SitemapManifest.Entry>(outNames.size());
+			for (String name : outNames) entries.add(manifestEntries.get(name));
+			Set<String> current = new HashSet<String>(outNames);
+			for (SitemapManifest.Entry previous : previousManifest.getEntries()) {
+				if (!current.contains(previous.getName())) deleteShard(previous.getName());
+			}
+		}
+		try {
+			sink.finish();
+		} catch (IOException e) {
+			throw new RuntimeException("Problem finishing sitemap files", e);
+		}
+		if (entries != null) {
+			manifest = new SitemapManifest(entries);
+			try {
+				manifest.write(manifestFile);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem writing sitemap manifest " + manifestFile, e);
 			}
+		}
+		if (locatorFile != null) writeLocator();
+		if (checkpointFile != null) {
+			// the job's done, so there's nothing to resume
+			try {
+				Files.deleteIfExists(checkpointFile.toPath());
+			} catch (IOException e) {
+				throw new RuntimeException("Problem deleting sitemap checkpoint " + checkpointFile, e);
+			}
+		}
+	}
 
-			writeSiteMap(out);
-			out.flush();
+	/**
+	 * Saves the sitemaps we've finished so far, and the cursor as of the last URL in them.  The first time, we
+	 * write the checkpoint whole, which also drops anything a crash left half-written; after that, we just add the
+	 * sitemaps finished since.
+	 */
+	private void writeCheckpoint() {
+		int from = Math.max(checkpointedCount, 0);
+		List<SitemapManifest.Entry> entries = new ArrayList<SitemapManifest.Entry>(outNames.size() - from);
+		for (String name : outNames.subList(from, outNames.size())) entries.add(manifestEntries.get(name));
+		try {
+			if (checkpointedCount < 0) {
+				new SitemapCheckpoint(cursor, entries).write(checkpointFile);
+			} else {
+				SitemapCheckpoint.append(checkpointFile, entries, cursor);
+			}
+			checkpointedCount = outNames.size();
+		} catch (IOException e) {
+			throw new RuntimeException("Problem writing sitemap checkpoint " + checkpointFile, e);
+		}
+	}
 
-			if (autoValidate) SitemapValidator.validateWebSitemap(outFile);
+	private void writeLocator() {
+		List<File> fingerprints = new ArrayList<File>(outNames.size());
+		for (String name : outNames) fingerprints.add(locatorEntries.remove(name));
+		try {
+			SitemapShardLocator.write(locatorFile, outNames, fingerprints, mapCount > 0);
 		} catch (IOException e) {
-			throw new RuntimeException("Problem writing sitemap file " + outFile, e);
-		} catch (SAXException e) {
-			throw new RuntimeException("Sitemap file failed to validate (bug?)", e);
-		} finally {
-			if(out != null) {
-				out.close();
+			throw new RuntimeException("Problem writing sitemap locator " + locatorFile, e);
+		}
+	}
+
+	/** The file the sink wrote the named sitemap to, or else just the name */
+	private File fileFor(String name) {
+		File file = sink.getFile(name);
+		return file != null ? file : new File(name);
+	}
+
+	private List<File> getOutFiles() {
+		List<File> files = new ArrayList<File>(outNames.size());
+		for (String name : outNames) files.add(fileFor(name));
+		return files;
+	}
+
+	private boolean isEmpty() {
+		if (appending && !outNames.isEmpty()) return false;
+		if (pipeline != null) return pipeline.isEmpty();
+		if (stripes != null) return stripes.isEmpty();
+		if (streamsUrls) return !run.isOpen() && mapCount == 0;
+		return urls.isEmpty() && mapCount == 0 && batches.isEmpty();
+	}
+
+	/**
+	 * Hands URLs to a background thread that renders, compresses and writes them, so that the caller only has to
+	 * wait when the queue is full.  URLs cross over in small chunks, to keep the cost of the queue down.
+	 * Only the background thread touches the sitemaps (and mapCount and outNames) until write() has waited
+	 * for it to finish.
+	 */
+	private class Pipeline implements Runnable {
+		private static final int MAX_CHUNK_SIZE = 256;
+		private final int chunkSize;
+		private final BlockingQueue<List<U>> queue;
+		/** Marks the end of the URLs; we compare against it by identity */
+		private final List<U> end = new ArrayList<U>();
+		private List<U> chunk;
+		private Thread thread;
+		private volatile Throwable failure;
+
+		Pipeline(int queueSize) {
+			chunkSize = Math.min(MAX_CHUNK_SIZE, queueSize);
+			queue = new ArrayBlockingQueue<List<U>>(Math.max(1, queueSize / chunkSize));
+			chunk = new ArrayList<U>(chunkSize);
+		}
+
+		boolean isEmpty() {
+			return thread == null && chunk.isEmpty();
+		}
+
+		void add(U url) {
+			checkFailure();
+			if (thread == null) start();
+			chunk.add(url);
+			if (chunk.size() == chunkSize) {
+				hand(chunk);
+				chunk = new ArrayList<U>(chunkSize);
+			}
+		}
+
+		/** Sends the last URLs over, and waits for the background thread to close the last sitemap */
+		void finish() {
+			if (thread == null) start();
+			if (!chunk.isEmpty()) hand(chunk);
+			hand(end);
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for sitemaps to be written", e);
+			}
+			checkFailure();
+		}
+
+		private void start() {
+			thread = new Thread(this, "sitemap-writer");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		private void hand(List<U> urls) {
+			try {
+				// keep an eye out for failures, since nobody's going to empty the queue after one
+				while (!queue.offer(urls, 100, TimeUnit.MILLISECONDS)) {
+					checkFailure();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while waiting for sitemaps to be written", e);
+			}
+		}
+
+		private void checkFailure() {
+			Throwable t = failure;
+			if (t == null) return;
+			finished = true;
+			throw new RuntimeException(t.getMessage(), t);
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					List<U> urls = queue.take();
+					if (urls == end) break;
+					for (U url : urls) {
+						streamUrl(url);
+					}
+				}
+				finishRun();
+			} catch (Throwable t) {
+				run.abort();
+				failure = t;
 			}
 		}
 	}
-	
-	private void writeSiteMap(OutputStreamWriter out) throws IOException {
-		StringBuilder sb = new StringBuilder();
-		writeSiteMapAsString(sb, urls);
-		out.write(sb.toString());
+
+	/**
+	 * Lets many threads add URLs at once.  Each thread fills its own stripe, so adding a URL takes no lock; the
+	 * thread that fills a stripe seals it as a batch and writes it (or hands it to the executor).  Batches are
+	 * numbered under a lock as they're sealed, which happens once per sitemap, and write() names their files in
+	 * that order, so numbering and the index come out the same as with an executor.
+	 */
+	private class Stripes {
+		private final ThreadLocal<Stripe> local = new ThreadLocal<Stripe>() {
+			@Override
+			protected Stripe initialValue() {
+				Stripe stripe = new Stripe();
+				all.add(stripe);
+				return stripe;
+			}
+		};
+		private final ConcurrentLinkedQueue<Stripe> all = new ConcurrentLinkedQueue<Stripe>();
+		/** Only counted when we have to enforce a single sitemap, to keep threads from contending on it otherwise */
+		private final AtomicInteger urlCount = new AtomicInteger();
+
+		void add(U url) {
+			if (!allowMultipleSitemaps && urlCount.incrementAndGet() > maxUrls) {
+				throw new RuntimeException("More than " + maxUrls + " urls, but allowMultipleSitemaps is false.  Enable allowMultipleSitemaps to split the sitemap into multiple files with a sitemap index.");
+			}
+			Stripe stripe = local.get();
+			stripe.urls.add(url);
+			if (stripe.urls.size() == maxUrls) {
+				List<U> full = stripe.urls;
+				stripe.urls = new ArrayList<U>();
+				sealBatch(full);
+			}
+		}
+
+		boolean isEmpty() {
+			if (!batches.isEmpty()) return false;
+			for (Stripe stripe : all) {
+				if (!stripe.urls.isEmpty()) return false;
+			}
+			return true;
+		}
+
+		/** Gathers up the URLs left over in every thread's stripe, writes them, and names all the sitemaps */
+		void finish() {
+			List<U> rest = new ArrayList<U>();
+			for (Stripe stripe : all) {
+				rest.addAll(stripe.urls);
+				stripe.urls = new ArrayList<U>();
+			}
+			finishSealedBatches(rest);
+		}
 	}
-	
+
+	/** One thread's URLs that haven't been sealed into a batch yet */
+	private class Stripe {
+		List<U> urls = new ArrayList<U>();
+	}
+
+	/**
+	 * The URLs collected by one part of a stream.  Full sitemaps are sealed and written as soon as we have them;
+	 * only the leftovers are passed along when parts are combined.
+	 */
+	private class UrlBuffer {
+		private List<U> urls = new ArrayList<U>();
+
+		void add(U url) {
+			if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps");
+			UrlUtils.checkUrl(url.getUrl(), baseUrl);
+			if (isDuplicate(url)) return;
+			urls.add(url);
+			if (urls.size() == maxUrls) sealFull();
+		}
+
+		UrlBuffer combine(UrlBuffer other) {
+			urls.addAll(other.urls);
+			if (urls.size() >= maxUrls) sealFull();
+			return this;
+		}
+
+		SitemapFiles finish() {
+			if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps");
+			if (!allowEmptySitemap && urls.isEmpty() && batches.isEmpty()) throw new RuntimeException("No URLs added, sitemap would be empty; you must add some URLs with addUrls");
+			checkSingleSitemap(urls.size());
+			finishSealedBatches(urls);
+			finished = true;
+			finishSink();
+			return new SitemapFiles(getOutFiles(), writeSitemapsWithIndex());
+		}
+
+		private void sealFull() {
+			int start = 0;
+			for (; urls.size() - start >= maxUrls; start += maxUrls) {
+				checkSingleSitemap(maxUrls);
+				sealBatch(new ArrayList<U>(urls.subList(start, start + maxUrls)));
+			}
+			urls = new ArrayList<U>(urls.subList(start, urls.size()));
+		}
+
+		private void checkSingleSitemap(int moreUrls) {
+			if (allowMultipleSitemaps || moreUrls == 0) return;
+			synchronized (batches) {
+				if (batches.isEmpty()) return;
+			}
+			throw new RuntimeException("More than " + maxUrls + " urls, but allowMultipleSitemaps is false.  Enable allowMultipleSitemaps to split the sitemap into multiple files with a sitemap index.");
+		}
+	}
+
+	/**
+	 * Collects URLs from a publisher one sitemap at a time.  The publisher calls us one signal at a time, so the
+	 * buffer needs no lock; the sitemaps themselves are written on the I/O executor.
+	 */
+	private class UrlSubscriber implements ISitemapSubscriber<U> {
+		private final Executor ioExecutor;
+		private final CompletableFuture<SitemapFiles> result = new CompletableFuture<SitemapFiles>();
+		private Flow.Subscription subscription;
+		private List<U> urls = new ArrayList<U>();
+		private boolean sealedAny = false;
+
+		UrlSubscriber(Executor ioExecutor) {
+			this.ioExecutor = ioExecutor;
+		}
+
+		public CompletableFuture<SitemapFiles> getResult() {
+			return result;
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			if (this.subscription != null) {
+				subscription.cancel();
+				return;
+			}
+			this.subscription = subscription;
+			subscription.request(maxUrls);
+		}
+
+		public void onNext(U url) {
+			if (result.isDone()) return;
+			try {
+				if (finished) throw new RuntimeException("Sitemap already printed; you must create a new generator to make more sitemaps");
+				UrlUtils.checkUrl(url.getUrl(), baseUrl);
+				if (!allowMultipleSitemaps && sealedAny) {
+					throw new RuntimeException("More than " + maxUrls + " urls, but allowMultipleSitemaps is false.  Enable allowMultipleSitemaps to split the sitemap into multiple files with a sitemap index.");
+				}
+			} catch (RuntimeException e) {
+				subscription.cancel();
+				fail(e);
+				return;
+			}
+			if (isDuplicate(url)) {
+				// we asked for a sitemap's worth of URLs; ask for one more in place of this one
+				subscription.request(1);
+				return;
+			}
+			urls.add(url);
+			if (urls.size() < maxUrls) return;
+			final FutureTask<List<String>> task = numberBatch(urls);
+			urls = new ArrayList<U>();
+			sealedAny = true;
+			ioExecutor.execute(new Runnable() {
+				public void run() {
+					task.run();
+					try {
+						task.get();
+					} catch (Exception e) {
+						subscription.cancel();
+						fail(e instanceof ExecutionException ? e.getCause() : e);
+						return;
+					}
+					// this sitemap is safely written, so there's room for the next one
+					subscription.request(maxUrls);
+				}
+			});
+		}
+
+		public void onError(Throwable throwable) {
+			fail(throwable);
+		}
+
+		public void onComplete() {
+			if (result.isDone()) return;
+			final List<U> rest = urls;
+			urls = new ArrayList<U>();
+			ioExecutor.execute(new Runnable() {
+				public void run() {
+					try {
+						if (!allowEmptySitemap && rest.isEmpty() && batches.isEmpty()) throw new RuntimeException("No URLs added, sitemap would be empty; you must add some URLs with addUrls");
+						finishSealedBatches(rest);
+						finished = true;
+						finishSink();
+						result.complete(new SitemapFiles(getOutFiles(), writeSitemapsWithIndex()));
+					} catch (Throwable t) {
+						result.completeExceptionally(t);
+					}
+				}
+			});
+		}
+
+		/** Gives up, and cleans up any sitemaps that we've already written */
+		private void fail(final Throwable t) {
+			if (result.isDone()) return;
+			ioExecutor.execute(new Runnable() {
+				public void run() {
+					discardBatches();
+					result.completeExceptionally(t);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Numbers a full batch of URLs and writes it as sitemaps with temporary names.  If there's an executor, we
+	 * hand the batch to it; otherwise the thread that filled the batch writes it, so that threads filling
+	 * different batches write their sitemaps in parallel.  Safe to call from any thread.
+	 */
+	private void sealBatch(List<U> urls) {
+		FutureTask<List<String>> task;
+		if (executor == null) {
+			task = numberBatch(urls);
+			task.run();
+			try {
+				task.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException("Interrupted while writing sitemaps", e);
+			} catch (ExecutionException e) {
+				throw new RuntimeException("Problem writing sitemap files", e.getCause());
+			}
+			return;
+		}
+		try {
+			pendingBatches.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for sitemaps to be written", e);
+		}
+		synchronized (batches) {
+			final ShardBatch batch = new ShardBatch(urls, batches.size() + 1);
+			task = new FutureTask<List<String>>(new Callable<List<String>>() {
+				public List<String> call() {
+					try {
+						return batch.call();
+					} finally {
+						pendingBatches.release();
+					}
+				}
+			});
+			batches.add(task);
+		}
+		executor.execute(task);
+	}
+
+	/** Numbers a batch of URLs, to be written by whoever runs the task we return */
+	private FutureTask<List<String>> numberBatch(List<U> urls) {
+		synchronized (batches) {
+			FutureTask<List<String>> task = new FutureTask<List<String>>(new ShardBatch(urls, batches.size() + 1));
+			batches.add(task);
+			return task;
+		}
+	}
+
+	/** Waits for any batches already on their way, then deletes their sitemaps, since we're not going to name them */
+	private void discardBatches() {
+		finished = true;
+		List<Future<List<String>>> started;
+		synchronized (batches) {
+			started = new ArrayList<Future<List<String>>>(batches);
+		}
+		for (Future<List<String>> batch : started) {
+			try {
+				for (String part : batch.get()) deleteQuietly(part);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// that batch already cleaned up after itself
+			}
+		}
+	}
+
+	/** Seals the leftover URLs into batches of their own, then waits for every batch and names the sitemaps */
+	private void finishSealedBatches(List<U> rest) {
+		for (int start = 0; start < rest.size(); start += maxUrls) {
+			sealBatch(new ArrayList<U>(rest.subList(start, Math.min(rest.size(), start + maxUrls))));
+		}
+		if (batches.isEmpty()) sealBatch(rest);
+		finishBatches();
+	}
+
+	/**
+	 * Writes URLs into a run of consecutive sitemap files, moving on to the next file whenever the rollover
+	 * policy says the current one is full.  Each run has its own buffer and date format, so different runs
+	 * can be written on different threads.
+	 */
+	private abstract class ShardRun {
+		private final RenderedUrlBuffer renderedUrl = new RenderedUrlBuffer();
+		private final W3CDateFormat dateFormat;
+		private SitemapShardWriter shard;
+		/** The name the open sitemap will have, if we're staging it under a temporary name until we know whether it's changed */
+		private String stagedName;
+		private Date maxLastMod;
+		/** The open sitemap's URL fingerprints, if we're writing a locator */
+		private long[] fingerprints;
+		private int fingerprintCount;
+		/** Why we threw away a sitemap partway through, after which we won't write any more */
+		private IOException failure;
+
+		ShardRun(W3CDateFormat dateFormat) {
+			this.dateFormat = dateFormat;
+		}
+
+		/** Picks the name of the sitemap to write next */
+		abstract String nextName();
+
+		/** Called after we close a full sitemap, before we open the next one */
+		void beforeNextFile() {}
+
+		/**
+		 * If the sitemap we just finished is the same as last time, reuses the old one and returns its entry;
+		 * only runs that stage their sitemaps know where they stand in the set, so by default we can't tell
+		 */
+		SitemapManifest.Entry reuseUnchanged(SitemapManifest.Entry entry) {
+			return null;
+		}
+
+		/**
+		 * Whether to write each sitemap under a temporary name until it's finished, and only then replace the old
+		 * one if it's changed, rather than writing it under its own name as we go
+		 */
+		boolean stages() {
+			return false;
+		}
+
+		/** Opens the sitemap from an earlier run to add to, instead of starting a new one; by default there isn't one */
+		SitemapShardWriter reopen(String name) throws IOException {
+			return null;
+		}
+
+		boolean isOpen() {
+			return shard != null;
+		}
+
+		void open() {
+			if (failure != null) throw new RuntimeException("Can't write any more sitemaps after a failed write", failure);
+			String name = nextName();
+			maxLastMod = null;
+			fingerprintCount = 0;
+			stagedName = null;
+			try {
+				SitemapShardWriter reopened = reopen(name);
+				if (reopened != null) {
+					shard = reopened;
+					// a sitemap we're rewriting goes under a temporary name, so it replaces the old one only once it's done
+					if (!reopened.getName().equals(name)) stagedName = name;
+				} else if (manifestFile == null) {
+					shard = new SitemapShardWriter(sink, name, compressor, header);
+				} else if (stages()) {
+					// hashed as it's compressed, so we never hold more than the compressor's buffers in memory
+					String tmpName = name + ".tmp";
+					shard = new SitemapShardWriter(sink.open(tmpName), tmpName, compressor, header, SitemapShardWriter.newDigest());
+					stagedName = name;
+				} else {
+					shard = new SitemapShardWriter(sink.open(name), name, compressor, header, SitemapShardWriter.newDigest());
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("Problem writing sitemap file " + name, e);
+			}
+		}
+
+		/**
+		 * Writes the URL to the open sitemap, first rolling over to a new sitemap if the URL won't fit in this one.
+		 * A URL we can't render never reaches the sitemap, so it's left open for the next one; if writing to the
+		 * sitemap fails, though, we throw it away.
+		 */
+		void write(U url) {
+			int size;
+			try {
+				size = renderedUrl.render(renderer, url, dateFormat);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem rendering sitemap URL " + url.getUrl(), e);
+			}
+			try {
+				if (shard.getUrlCount() > 0 && rolloverPolicy.isFull(shard.getUrlCount(), shard.getBytes(), shard.getCompressedBytes(), size)) {
+					roll();
+				}
+				shard.write(renderedUrl);
+				Date lastMod = url.getLastMod();
+				if (lastMod != null && (maxLastMod == null || lastMod.after(maxLastMod))) maxLastMod = lastMod;
+				if (locatorFile != null) addFingerprint(url);
+			} catch (IOException e) {
+				String name = shard.getName();
+				failure = e;
+				abort();
+				throw new RuntimeException("Problem writing sitemap file " + name, e);
+			}
+		}
+
+		private void roll() {
+			if (!allowMultipleSitemaps) {
+				int urlCount = shard.getUrlCount();
+				abort();
+				throw new RuntimeException("Sitemap is full at " + urlCount + " urls, but allowMultipleSitemaps is false.  Enable allowMultipleSitemaps to split the sitemap into multiple files with a sitemap index.");
+			}
+			close();
+			beforeNextFile();
+			open();
+		}
+
+		void close() {
+			if (shard == null) return;
+			String name = stagedName != null ? stagedName : shard.getName();
+			// a staged sitemap replaces the old one, unless the old one is the same
+			boolean replace = stagedName != null;
+			try {
+				long bytes = shard.getBytes();
+				shard.close();
+				if (manifestFile != null || checkpointFile != null) {
+					SitemapManifest.Entry entry = new SitemapManifest.Entry(name, shard.getUrlCount(), bytes, shard.getHash(), maxLastMod, new Date());
+					if (stagedName != null && stages()) {
+						SitemapManifest.Entry unchanged = reuseUnchanged(entry);
+						if (unchanged != null) {
+							deleteShard(shard.getName());
+							entry = unchanged;
+							replace = false;
+						}
+					}
+					manifestEntries.put(name, entry);
+				}
+				if (replace) renameShard(shard.getName(), name);
+				if (locatorFile != null && fingerprintCount > 0) {
+					locatorEntries.put(name, SitemapShardLocator.spill(locatorFile, fingerprints, fingerprintCount));
+				}
+				File file = sink.getFile(name);
+				if (autoValidate && file != null) SitemapValidator.validateWebSitemap(file);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem writing sitemap file " + name, e);
+			} catch (SAXException e) {
+				throw new RuntimeException("Sitemap file failed to validate (bug?)", e);
+			} finally {
+				shard = null;
+			}
+		}
+
+		private void addFingerprint(U url) {
+			if (fingerprints == null) {
+				fingerprints = new long[1024];
+			} else if (fingerprintCount == fingerprints.length) {
+				fingerprints = Arrays.copyOf(fingerprints, fingerprintCount * 2);
+			}
+			fingerprints[fingerprintCount++] = SitemapShardLocator.fingerprint(url.getUrl().toString());
+		}
+
+		void abort() {
+			if (shard == null) return;
+			shard.abort();
+			shard = null;
+		}
+	}
+
+	/** Writes sitemaps on the calling thread, numbering them as we go */
+	private class SequentialShardRun extends ShardRun {
+		SequentialShardRun() {
+			super(dateFormat);
+		}
+
+		@Override
+		String nextName() {
+			if (reopenName != null) {
+				// a lone sitemap we're reopening needs a number if it's about to be the first of several
+				if (mapCount > 0 && outNames.size() == 1 && reopenName.equals(shardName(0))) {
+					renameFirstShard();
+					reopenName = outNames.get(0);
+				}
+				// otherwise it already has its name
+				return reopenName;
+			}
+			if (rollOnOpen) {
+				// we resumed after the last finished sitemap; this is the one after it
+				rollOnOpen = false;
+				mapCount++;
+			}
+			String name = shardName(mapCount);
+			outNames.add(name);
+			return name;
+		}
+
+		/**
+		 * If the last sitemap ends with a closing member, we just cut that off and write on from there; otherwise
+		 * we read the whole thing back and rewrite it
+		 */
+		@Override
+		SitemapShardWriter reopen(String name) throws IOException {
+			if (reopenName == null) return null;
+			reopenName = null;
+			File file = new File(baseDir, name);
+			if (compressor != null && compressor.writesClosingMember()) {
+				GzipClosingMember closing = GzipClosingMember.read(file);
+				if (closing != null) return new SitemapShardWriter(closing.appendTo(file), name, compressor, closing);
+			}
+			// rewritten under a temporary name, so if we fail partway the old one is still there
+			ExistingSitemap existing = ExistingSitemap.read(file, gzip);
+			String tmpName = name + ".tmp";
+			return new SitemapShardWriter(sink.open(tmpName), tmpName, compressor, existing);
+		}
+
+		/** With a manifest, we hold each sitemap back until we've seen whether it's the same as last time */
+		@Override
+		boolean stages() {
+			return manifestFile != null;
+		}
+
+		@Override
+		SitemapManifest.Entry reuseUnchanged(SitemapManifest.Entry entry) {
+			SitemapManifest.Entry unchanged = unchangedEntry(Math.max(mapCount, 1), entry);
+			if (unchanged == null) return null;
+			keepShard(unchanged, entry.getName());
+			return unchanged.rename(entry.getName());
+		}
+
+		@Override
+		void beforeNextFile() {
+			if (mapCount == 0) {
+				// we didn't know there'd be more than one sitemap when we named the first one
+				renameFirstShard();
+				mapCount++;
+			}
+			mapCount++;
+			if (checkpointFile != null) writeCheckpoint();
+		}
+	}
+
+	/**
+	 * Writes one batch of URLs on the executor.  The sitemaps get temporary names, because we won't know
+	 * their final numbers until all the batches before this one are done.
+	 */
+	private class ShardBatch extends ShardRun implements Callable<List<String>> {
+		private final List<U> urls;
+		private final int batchNumber;
+		private final List<String> parts = new ArrayList<String>();
+
+		ShardBatch(List<U> urls, int batchNumber) {
+			super((W3CDateFormat) dateFormat.clone());
+			this.urls = urls;
+			this.batchNumber = batchNumber;
+		}
+
+		@Override
+		String nextName() {
+			String name = fileNamePrefix + ".part" + batchNumber + "-" + (parts.size() + 1) + fileNameSuffix + ".tmp";
+			parts.add(name);
+			return name;
+		}
+
+		public List<String> call() {
+			try {
+				open();
+				for (U url : urls) {
+					write(url);
+				}
+				close();
+				return parts;
+			} catch (RuntimeException e) {
+				abort();
+				for (String part : parts) deleteQuietly(part);
+				throw e;
+			}
+		}
+	}
+
 }
@@ -16,7 +16,7 @@ import java.net.URL;
  */
 //that weird thing with generics is so sub-classed objects will return themselves
 //It makes sense, I swear! http://madbean.com/2004/mb2004-3/
-public class SitemapGeneratorBuilder<G extends SitemapGenerator<?,?>> extends AbstractSitemapGeneratorOptions<SitemapGeneratorBuilder<G>> {
+public class SitemapGeneratorBuilder<G extends SitemapGenerator<?,?>> extends AbstractSitemapGeneratorOptions<SitemapGeneratorBuilder<G>> implements Cloneable {
 
 	Class<G> sitemapGeneratorClass;
 	
@@ -49,5 +49,15 @@ public class SitemapGeneratorBuilder<G extends SitemapGenerator<?,?>> extends Ab
 			throw new RuntimeException(e);
 		}
 	}
+	
+	/** A copy of this builder with the same options, which we can change without changing yours */
+	@SuppressWarnings("unchecked")
+	SitemapGeneratorBuilder<G> copy() {
+		try {
+			return (SitemapGeneratorBuilder<G>) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new AssertionError(e);
+		}
+	}
 
 }
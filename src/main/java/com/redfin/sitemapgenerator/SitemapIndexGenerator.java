@@ -3,9 +3,7 @@ package com.redfin.sitemapgenerator;
 import org.xml.sax.SAXException;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -18,7 +16,8 @@ import java.util.Date;
  */
 public class SitemapIndexGenerator {
 	private final URL baseUrl;	
-	private final File outFile;
+	private final ISitemapOutputSink sink;
+	private final String outName;
 	private final boolean allowEmptyIndex;
 	private final ArrayList<SitemapIndexUrl> urls = new ArrayList<SitemapIndexUrl>();
 	private final int maxUrls;
@@ -31,7 +30,8 @@ public class SitemapIndexGenerator {
 	/** Options to configure sitemap index generation */
 	public static class Options {
 		private URL baseUrl;
-		private File outFile;
+		private ISitemapOutputSink sink;
+		private String outName;
 		private W3CDateFormat dateFormat = null;
 		private boolean allowEmptyIndex = false;
 		private int maxUrls = MAX_SITEMAPS_PER_INDEX;
@@ -46,7 +46,21 @@ public class SitemapIndexGenerator {
 		 */
 		public Options(URL baseUrl, File outFile) {
 			this.baseUrl = baseUrl;
-			this.outFile = outFile;
+			if (outFile != null) {
+				this.sink = new FileSitemapOutputSink(outFile.getParentFile());
+				this.outName = outFile.getName();
+			}
+		}
+		/**Configures the generator with a base URL and an output sink to write the sitemap index to.
+		 * 
+		 * @param baseUrl All URLs in the generated sitemap(s) should appear under this base URL
+		 * @param sink The sitemap index will be written to this sink
+		 * @param name The name of the sitemap index in the sink, e.g. "sitemap_index.xml"
+		 */
+		public Options(URL baseUrl, ISitemapOutputSink sink, String name) {
+			this.baseUrl = baseUrl;
+			this.sink = sink;
+			this.outName = name;
 		}
 		/**Configures the generator with a base URL and destination to write the sitemap index file.
 		 * 
@@ -129,7 +143,8 @@ public class SitemapIndexGenerator {
 	
 	private SitemapIndexGenerator(Options options) {
 		this.baseUrl = options.baseUrl;		
-		this.outFile = options.outFile;
+		this.sink = options.sink;
+		this.outName = options.outName;
 		this.allowEmptyIndex = options.allowEmptyIndex;
 		this.maxUrls = options.maxUrls;
 		W3CDateFormat dateFormat = options.dateFormat;
@@ -221,66 +236,67 @@ public class SitemapIndexGenerator {
 	
 	/** Writes out the sitemap index */
 	public void write() {
+		if (!allowEmptyIndex && urls.isEmpty()) throw new RuntimeException("No URLs added, sitemap index would be empty; you must add some URLs with addUrls");
+		if (sink == null) throw new NullPointerException("To write the sitemap index, outFile must not be null");
+		ISitemapOutput output;
 		try {
 			// TODO gzip? is that legal for a sitemap index?
-			write(new FileWriter(outFile));
+			output = sink.open(outName);
 		} catch (IOException e) {
-			throw new RuntimeException("Problem writing sitemap index file " + outFile, e);
+			throw new RuntimeException("Problem writing sitemap index file " + outName, e);
 		}
-	}
-
-	private void write(OutputStreamWriter out) {
-		if (!allowEmptyIndex && urls.isEmpty()) throw new RuntimeException("No URLs added, sitemap index would be empty; you must add some URLs with addUrls");
 		try {
-			try {
-				writeSiteMap(out);
-				out.flush();
-				if (autoValidate) SitemapValidator.validateSitemapIndex(outFile);
-			} catch (SAXException e) {
-				throw new RuntimeException("Problem validating sitemap index file (bug?)", e);
-			} finally {
-				if(out != null) {
-					out.close();
-				}
-			}
-		} catch (IOException ex) {
-			throw new RuntimeException("Closing of stream has failed.", ex);
+			Utf8XmlWriter out = new Utf8XmlWriter(output.getStream());
+			writeSiteMap(out);
+			out.close();
+			output.commit();
+		} catch (IOException e) {
+			output.abort();
+			throw new RuntimeException("Problem writing sitemap index file " + outName, e);
+		}
+		try {
+			sink.finish();
+		} catch (IOException e) {
+			throw new RuntimeException("Problem finishing sitemap index file " + outName, e);
+		}
+		try {
+			File outFile = sink.getFile(outName);
+			if (autoValidate && outFile != null) SitemapValidator.validateSitemapIndex(outFile);
+		} catch (SAXException e) {
+			throw new RuntimeException("Problem validating sitemap index file (bug?)", e);
 		}
-
 	}
 	
 	public String writeAsString() {
 		StringBuilder sb = new StringBuilder();
-		writeAsString(sb);
+		try {
+			writeSiteMap(sb);
+		} catch (IOException e) {
+			throw new RuntimeException("BUG StringBuilder can't throw IOException", e);
+		}
 		return sb.toString();
 	}
 
-	private void writeAsString(StringBuilder sb) {
-		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"); 
-		sb.append("<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
+	private void writeSiteMap(Appendable out) throws IOException {
+		out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"); 
+		out.append("<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n");
 		for (SitemapIndexUrl url : urls) {
-			sb.append("  <sitemap>\n");
-			sb.append("    <loc>");
-			sb.append(UrlUtils.escapeXml(url.url.toString()));
-			sb.append("</loc>\n");
+			out.append("  <sitemap>\n");
+			out.append("    <loc>");
+			UrlUtils.escapeXml(url.url.toString(), out);
+			out.append("</loc>\n");
 			Date lastMod = url.lastMod;
 			
 			if (lastMod == null) lastMod = defaultLastMod;
 			
 			if (lastMod != null) {
-				sb.append("    <lastmod>");
-				sb.append(dateFormat.format(lastMod));
-				sb.append("</lastmod>\n");
+				out.append("    <lastmod>");
+				out.append(dateFormat.format(lastMod));
+				out.append("</lastmod>\n");
 			}
-			sb.append("  </sitemap>\n");
+			out.append("  </sitemap>\n");
 		}
-		sb.append("</sitemapindex>");
-	}
-
-	private void writeSiteMap(OutputStreamWriter out) throws IOException {
-		StringBuilder sb = new StringBuilder();
-		writeAsString(sb);
-		out.write(sb.toString());
+		out.append("</sitemapindex>");
 	}
 
 }
@@ -0,0 +1,177 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Records what's in each sitemap of a set: its name, how many URLs it has, its uncompressed size, a SHA-256 hash
+ * of its uncompressed content, the latest lastMod of its URLs, and when its content last changed.
+ *
+ * <p>Give the generator a manifest file with {@link AbstractSitemapGeneratorOptions#manifest(File)} and it reads
+ * the manifest from the last run before it starts, then leaves alone any sitemap whose content comes out the same
+ * as last time, so its file (and its modification time) don't change.  The sitemap index gets each sitemap's own
+ * lastMod instead of today's date.</p>
+ *
+ * <p>The manifest is a plain text file, one sitemap per line, in the order the sitemaps are numbered.</p>
+ */
+public class SitemapManifest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String HEADER = "# sitemap manifest v1";
+	private final List<Entry> entries;
+
+	/** One sitemap in the set */
+	public static final class Entry {
+		private final String name;
+		private final int urlCount;
+		private final long bytes;
+		private final String hash;
+		private final Date maxLastMod;
+		private final Date changed;
+
+		Entry(String name, int urlCount, long bytes, String hash, Date maxLastMod, Date changed) {
+			this.name = name;
+			this.urlCount = urlCount;
+			this.bytes = bytes;
+			this.hash = hash;
+			this.maxLastMod = maxLastMod;
+			this.changed = changed;
+		}
+
+		/** The name of the sitemap, e.g. "sitemap1.xml.gz" */
+		public String getName() {
+			return name;
+		}
+
+		public int getUrlCount() {
+			return urlCount;
+		}
+
+		/** The uncompressed size of the sitemap */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/** The SHA-256 hash of the uncompressed sitemap, in hex */
+		public String getHash() {
+			return hash;
+		}
+
+		/** The latest lastMod of any URL in the sitemap, or null if none of them have one */
+		public Date getMaxLastMod() {
+			return maxLastMod;
+		}
+
+		/** When the content of this sitemap last changed */
+		public Date getChanged() {
+			return changed;
+		}
+
+		/** The lastMod to list for this sitemap in the sitemap index: the latest lastMod of its URLs, if they have any, or else when it last changed */
+		public Date getLastMod() {
+			return maxLastMod != null ? maxLastMod : changed;
+		}
+
+		Entry rename(String newName) {
+			return new Entry(newName, urlCount, bytes, hash, maxLastMod, changed);
+		}
+
+		/** The entry as one line of a manifest, without the newline */
+		String format() {
+			return name + "\t" + urlCount + "\t" + bytes + "\t" + (hash == null ? "-" : hash) + "\t"
+					+ formatDate(maxLastMod) + "\t" + formatDate(changed);
+		}
+
+		/** Reads an entry back from a line written by {@link #format()}, or returns null if it isn't one */
+		static Entry parse(String line) {
+			String[] fields = line.split("\t");
+			if (fields.length != 6) return null;
+			try {
+				return new Entry(fields[0], Integer.parseInt(fields[1]), Long.parseLong(fields[2]),
+						"-".equals(fields[3]) ? null : fields[3], parseDate(fields[4]), parseDate(fields[5]));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+	}
+
+	SitemapManifest(List<Entry> entries) {
+		this.entries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+	}
+
+	/** The sitemaps, in the order they're numbered */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/** The entry for the sitemap at this position, counting from 1, or null if the set wasn't that big */
+	Entry getEntry(int position) {
+		return position <= entries.size() ? entries.get(position - 1) : null;
+	}
+
+	/** Reads a manifest file; a missing file is an empty manifest, as if there were no sitemaps yet */
+	public static SitemapManifest read(File file) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader in;
+		try {
+			in = Files.newBufferedReader(file.toPath(), UTF8);
+		} catch (NoSuchFileException e) {
+			return new SitemapManifest(entries);
+		} catch (FileNotFoundException e) {
+			return new SitemapManifest(entries);
+		}
+		try {
+			String line = in.readLine();
+			if (!HEADER.equals(line)) throw new IOException("Not a sitemap manifest: " + file);
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty()) continue;
+				Entry entry = Entry.parse(line);
+				if (entry == null) throw new IOException("Bad line in sitemap manifest " + file + ": " + line);
+				entries.add(entry);
+			}
+		} finally {
+			in.close();
+		}
+		return new SitemapManifest(entries);
+	}
+
+	/** Writes the manifest to a temporary file next to the real one, then moves it into place, so a crash can't leave half a manifest behind */
+	public void write(File file) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Writer out = Files.newBufferedWriter(tmp.toPath(), UTF8);
+		try {
+			out.write(HEADER);
+			out.write('\n');
+			for (Entry entry : entries) {
+				out.write(entry.format());
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static Date parseDate(String field) {
+		return "-".equals(field) ? null : new Date(Long.parseLong(field));
+	}
+
+	private static String formatDate(Date date) {
+		return date == null ? "-" : Long.toString(date.getTime());
+	}
+}
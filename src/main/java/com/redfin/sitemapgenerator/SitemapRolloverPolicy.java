@@ -0,0 +1,28 @@
+package com.redfin.sitemapgenerator;
+
+/**
+ * The generator's standard rollover policy: a sitemap is full when it reaches the maximum number of URLs,
+ * when the next URL would push it past the maximum uncompressed size, when it has reached the compressed
+ * size target, or when the user's own policy (if any) says so.
+ */
+class SitemapRolloverPolicy implements ISitemapRolloverPolicy {
+	private final int maxUrls;
+	private final long maxBytes;
+	private final long maxCompressedBytes;
+	private final ISitemapRolloverPolicy customPolicy;
+
+	SitemapRolloverPolicy(int maxUrls, long maxBytes, long maxCompressedBytes, ISitemapRolloverPolicy customPolicy) {
+		this.maxUrls = maxUrls;
+		this.maxBytes = maxBytes;
+		this.maxCompressedBytes = maxCompressedBytes;
+		this.customPolicy = customPolicy;
+	}
+
+	public boolean isFull(int urlCount, long bytes, long compressedBytes, int nextUrlBytes) {
+		if (urlCount >= maxUrls) return true;
+		if (bytes + nextUrlBytes > maxBytes) return true;
+		if (maxCompressedBytes > 0 && compressedBytes >= maxCompressedBytes) return true;
+		if (customPolicy != null) return customPolicy.isFull(urlCount, bytes, compressedBytes, nextUrlBytes);
+		return false;
+	}
+}
@@ -0,0 +1,338 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Says which sitemap of a set holds a given URL, without reading the sitemaps.
+ *
+ * <p>The locator file is a table of 64-bit URL fingerprints, sorted, each with the number of the sitemap it's in
+ * (the number in its file name, or 0 for a lone sitemap), followed by the sitemaps' names.  We memory-map the table
+ * rather than reading it in, so a lookup is a binary search over the mapped file: O(log n) page touches and no
+ * heap, however many URLs there are.  Write one by giving the generator a
+ * {@link AbstractSitemapGeneratorOptions#locator(File) locator file}.  While it writes, the generator spills each
+ * finished sitemap's sorted fingerprints to a temporary file next to the locator, then merges them, so it only
+ * holds the fingerprints of the sitemaps it has open.  It merges at most {@value #MERGE_FAN_IN} files at a time,
+ * in as many passes as it takes, so it never holds more files open than that however many sitemaps there
+ * are.</p>
+ *
+ * <p>The locator describes one complete run of the generator; it isn't kept up to date by append mode, by resuming
+ * from a checkpoint, or by incremental writers.  {@link RangeShardedSitemaps} doesn't need one, since its shards
+ * are key ranges: {@link RangeShardedSitemaps#findShardName(String)} answers the same question exactly.</p>
+ *
+ * <p>Two different URLs can, very rarely, have the same fingerprint (with a hundred million URLs, the odds are
+ * around one in four thousand that any two do), so treat the answer as the sitemap to look in, not proof that
+ * the URL is there.</p>
+ */
+public class SitemapShardLocator {
+	private static final int MAGIC = 0x534d4c31;
+	private static final int HEADER_LENGTH = 24;
+	private static final int ENTRY_LENGTH = 12;
+	/** Entries per mapped segment, so files bigger than 2GB can still be mapped */
+	private static final int SEGMENT_SHIFT = 27;
+	private static final int SEGMENT_ENTRIES = 1 << SEGMENT_SHIFT;
+	/** Small, since we read this many spilled files at once while merging */
+	private static final int SPILL_BUFFER_SIZE = 8 * 1024;
+	/** How many spilled files we merge at once, well under the usual limit of 1024 open files */
+	static final int MERGE_FAN_IN = 128;
+
+	private final ByteBuffer[] segments;
+	private final long size;
+	private final List<String> names;
+
+	private SitemapShardLocator(ByteBuffer[] segments, long size, List<String> names) {
+		this.segments = segments;
+		this.size = size;
+		this.names = names;
+	}
+
+	/** The URL's fingerprint: 64-bit FNV-1a over its characters, with a final mix to spread the bits */
+	public static long fingerprint(String url) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < url.length(); i++) {
+			h ^= url.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Maps the locator file; the file can be closed and replaced afterwards, since the mapping stays valid */
+	public static SitemapShardLocator open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.readInt() != MAGIC) throw new IOException("Not a sitemap locator file: " + file);
+			raf.readInt();
+			long size = raf.readLong();
+			long namesOffset = raf.readLong();
+			if (namesOffset != HEADER_LENGTH + size * ENTRY_LENGTH || namesOffset > raf.length()) {
+				throw new IOException("Truncated sitemap locator file: " + file);
+			}
+			FileChannel channel = raf.getChannel();
+			ByteBuffer[] segments = new ByteBuffer[(int) ((size + SEGMENT_ENTRIES - 1) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < segments.length; i++) {
+				long first = (long) i << SEGMENT_SHIFT;
+				long entries = Math.min(SEGMENT_ENTRIES, size - first);
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_LENGTH + first * ENTRY_LENGTH, entries * ENTRY_LENGTH);
+				segments[i] = segment;
+			}
+			channel.position(namesOffset);
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			int count = in.readInt();
+			List<String> names = new ArrayList<String>(count);
+			for (int i = 0; i < count; i++) names.add(in.readUTF());
+			return new SitemapShardLocator(segments, size, Collections.unmodifiableList(names));
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** The number of the sitemap holding the URL (0 for a lone sitemap), or -1 if it isn't in any */
+	public int findShard(String url) {
+		long fingerprint = fingerprint(url);
+		long low = 0;
+		long high = size;
+		while (low < high) {
+			long mid = (low + high) >>> 1;
+			if (fingerprintAt(mid) < fingerprint) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		if (low == size || fingerprintAt(low) != fingerprint) return -1;
+		return segment(low).getInt(offset(low) + 8);
+	}
+
+	/** The number of the sitemap holding the URL (0 for a lone sitemap), or -1 if it isn't in any */
+	public int findShard(URL url) {
+		return findShard(url.toString());
+	}
+
+	/** The file name of the sitemap holding the URL, or null if it isn't in any */
+	public String findShardName(String url) {
+		int shard = findShard(url);
+		if (shard < 0) return null;
+		return names.get(shard == 0 ? 0 : shard - 1);
+	}
+
+	/** The sitemaps' file names, in order */
+	public List<String> getShardNames() {
+		return names;
+	}
+
+	/** How many URLs the table holds */
+	public long size() {
+		return size;
+	}
+
+	private long fingerprintAt(long i) {
+		return segment(i).getLong(offset(i));
+	}
+
+	private ByteBuffer segment(long i) {
+		return segments[(int) (i >>> SEGMENT_SHIFT)];
+	}
+
+	private static int offset(long i) {
+		return (int) (i & (SEGMENT_ENTRIES - 1)) * ENTRY_LENGTH;
+	}
+
+	/**
+	 * Sorts one sitemap's fingerprints and writes them to a temporary file next to the locator, so we needn't keep
+	 * them all in memory until the locator is written
+	 *
+	 * @return the temporary file, for {@link #write(File, List, List, boolean)}
+	 */
+	static File spill(File locatorFile, long[] fingerprints, int count) throws IOException {
+		long[] sorted = Arrays.copyOf(fingerprints, count);
+		Arrays.sort(sorted);
+		File dir = locatorFile.getAbsoluteFile().getParentFile();
+		File spill = File.createTempFile(locatorFile.getName() + ".", ".tmp", dir);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spill), SPILL_BUFFER_SIZE));
+		try {
+			for (long fingerprint : sorted) out.writeLong(fingerprint);
+		} catch (IOException e) {
+			out.close();
+			spill.delete();
+			throw e;
+		}
+		out.close();
+		return spill;
+	}
+
+	/**
+	 * Writes a locator file for a set of sitemaps, merging each sitemap's sorted fingerprints into one table, then
+	 * deletes the spilled fingerprints
+	 *
+	 * @param names the sitemaps' file names, in order
+	 * @param spills each sitemap's fingerprints, as {@link #spill(File, long[], int) spilled}, or null if it has none
+	 * @param numbered whether the sitemaps are numbered from 1, rather than being a lone sitemap numbered 0
+	 */
+	static void write(File file, List<String> names, List<File> spills, boolean numbered) throws IOException {
+		write(file, names, spills, numbered, MERGE_FAN_IN);
+	}
+
+	/** Writes a locator file as above, merging at most fanIn spilled files at a time */
+	static void write(File file, List<String> names, List<File> spills, boolean numbered, int fanIn) throws IOException {
+		long size = 0;
+		List<Run> runs = new ArrayList<Run>();
+		List<File> temps = new ArrayList<File>();
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			for (int i = 0; i < spills.size(); i++) {
+				File spill = spills.get(i);
+				if (spill == null) continue;
+				size += spill.length() / 8;
+				runs.add(new Run(spill, numbered ? i + 1 : 0));
+				temps.add(spill);
+			}
+			// too many to merge at once, so merge them in groups into bigger runs, until there are few enough
+			File dir = file.getAbsoluteFile().getParentFile();
+			while (runs.size() > fanIn) {
+				List<Run> merged = new ArrayList<Run>();
+				for (int from = 0; from < runs.size(); from += fanIn) {
+					List<Run> group = runs.subList(from, Math.min(from + fanIn, runs.size()));
+					if (group.size() == 1) {
+						merged.add(group.get(0));
+						continue;
+					}
+					File intermediate = File.createTempFile(file.getName() + ".", ".tmp", dir);
+					temps.add(intermediate);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(intermediate), 64 * 1024));
+					try {
+						merge(group, out);
+					} finally {
+						out.close();
+					}
+					for (Run run : group) run.file.delete();
+					merged.add(new Run(intermediate, -1));
+				}
+				runs = merged;
+			}
+			FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+				out.writeInt(MAGIC);
+				out.writeInt(1);
+				out.writeLong(size);
+				out.writeLong(HEADER_LENGTH + size * ENTRY_LENGTH);
+				merge(runs, out);
+				out.writeInt(names.size());
+				for (String name : names) out.writeUTF(name);
+				out.flush();
+				fos.getFD().sync();
+			} finally {
+				fos.close();
+			}
+		} finally {
+			for (File temp : temps) temp.delete();
+			for (File spill : spills) {
+				if (spill != null) spill.delete();
+			}
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	/** Merges the runs' sorted fingerprints into table entries, each fingerprint with its sitemap's number */
+	private static void merge(List<Run> runs, DataOutputStream out) throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		List<Source> sources = new ArrayList<Source>(runs.size());
+		try {
+			for (Run run : runs) {
+				Source source = new Source(run);
+				sources.add(source);
+				if (source.next()) queue.add(source);
+			}
+			while (!queue.isEmpty()) {
+				Source source = queue.poll();
+				out.writeLong(source.fingerprint);
+				out.writeInt(source.shard);
+				if (source.next()) queue.add(source);
+			}
+		} finally {
+			for (Source source : sources) source.close();
+		}
+	}
+
+	/**
+	 * A file of sorted fingerprints: either one sitemap's, spilled as bare fingerprints, or several sitemaps'
+	 * merged in an earlier pass, as table entries that carry their own sitemap numbers
+	 */
+	private static class Run {
+		final File file;
+		/** The sitemap's number, or -1 if each entry has its own */
+		final int shard;
+
+		Run(File file, int shard) {
+			this.file = file;
+			this.shard = shard;
+		}
+	}
+
+	/** One run's fingerprints, read back in order as we merge them */
+	private static class Source implements Comparable<Source> {
+		final DataInputStream in;
+		final boolean merged;
+		long remaining;
+		long fingerprint;
+		int shard;
+
+		Source(Run run) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), SPILL_BUFFER_SIZE));
+			this.merged = run.shard < 0;
+			this.shard = run.shard;
+			this.remaining = run.file.length() / (merged ? ENTRY_LENGTH : 8);
+		}
+
+		/** Reads the next fingerprint, returning false if there are no more */
+		boolean next() throws IOException {
+			if (remaining == 0) return false;
+			remaining--;
+			fingerprint = in.readLong();
+			if (merged) shard = in.readInt();
+			return true;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// we only read it
+			}
+		}
+
+		public int compareTo(Source other) {
+			int c = Long.compare(fingerprint, other.fingerprint);
+			return c != 0 ? c : Integer.compare(shard, other.shard);
+		}
+	}
+}
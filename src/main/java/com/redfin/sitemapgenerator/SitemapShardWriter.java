@@ -0,0 +1,177 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.redfin.sitemapgenerator.Utf8XmlWriter.Fragment;
+
+/**
+ * Writes a single sitemap, one URL at a time, so that URLs can be dropped as soon as they're written.
+ * Keeps count of how big the sitemap is getting, so the generator knows when to roll over to the next one.
+ */
+class SitemapShardWriter {
+	private static final Fragment FOOTER = new Fragment("</urlset>");
+	private final String name;
+	private final ISitemapOutput output;
+	/** The output's own stream, underneath the compressor */
+	private final OutputStream raw;
+	private final Utf8XmlWriter out;
+	/** Whether the closing tag goes in a gzip member of its own */
+	private final boolean closingMember;
+	/** The uncompressed size of whatever was already in the sitemap before we started, not counting the closing tag */
+	private final long baseBytes;
+	private final MessageDigest digest;
+	private byte[] hash;
+	private int urlCount;
+	private boolean closed = false;
+
+	/** Opens the sitemap in the sink and writes out the opening &lt;urlset&gt; tag
+	 * 
+	 * @param compressor gzips the sitemap, or null to leave it uncompressed
+	 */
+	SitemapShardWriter(ISitemapOutputSink sink, String name, SitemapCompressor compressor, Fragment header) throws IOException {
+		this(sink.open(name), name, compressor, header, null);
+	}
+
+	/** Writes the sitemap to an output we've already opened
+	 * 
+	 * @param digest hashes the uncompressed sitemap, or null not to bother
+	 */
+	SitemapShardWriter(ISitemapOutput output, String name, SitemapCompressor compressor, Fragment header, MessageDigest digest) throws IOException {
+		this(output, name, compressor, header.bytes, header.bytes.length, 0, 0, digest);
+	}
+
+	/** Rewrites a sitemap from an earlier run, picking up where it left off so we can add more URLs to it */
+	SitemapShardWriter(ISitemapOutput output, String name, SitemapCompressor compressor, ExistingSitemap existing) throws IOException {
+		this(output, name, compressor, existing.getBytes(), existing.getLength(), existing.getUrlCount(), 0, null);
+	}
+
+	/**
+	 * Adds URLs to a gzipped sitemap from an earlier run whose {@link GzipClosingMember closing member} has been
+	 * cut off, so the output already holds everything up to the closing tag
+	 */
+	SitemapShardWriter(ISitemapOutput output, String name, SitemapCompressor compressor, GzipClosingMember closing) throws IOException {
+		this(output, name, compressor, new byte[0], 0, closing.getUrlCount(), closing.getBytes() - FOOTER.bytes.length, null);
+	}
+
+	private SitemapShardWriter(ISitemapOutput output, String name, SitemapCompressor compressor, byte[] start, int startLength,
+			int urlCount, long baseBytes, MessageDigest digest) throws IOException {
+		this.name = name;
+		this.output = output;
+		this.digest = digest;
+		this.urlCount = urlCount;
+		this.baseBytes = baseBytes;
+		closingMember = compressor != null && compressor.writesClosingMember();
+		raw = output.getStream();
+		try {
+			OutputStream stream = raw;
+			// finishing the member with the URLs mustn't close the output, since the closing member comes after it
+			if (closingMember) stream = new UnclosableOutputStream(stream);
+			if (compressor != null) stream = compressor.compress(stream);
+			if (digest != null) stream = new DigestOutputStream(stream, digest);
+			out = new Utf8XmlWriter(stream);
+			out.writeBytes(start, 0, startLength);
+		} catch (IOException e) {
+			output.abort();
+			throw e;
+		}
+	}
+
+	/** Writes out one URL we've already rendered */
+	void write(RenderedUrlBuffer url) throws IOException {
+		url.writeTo(out);
+		urlCount++;
+	}
+
+	/** Writes out the closing &lt;/urlset&gt; tag and commits the sitemap to the sink */
+	void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		try {
+			if (closingMember) {
+				long bytes = getBytes();
+				out.close();
+				if (digest != null) digest.update(FOOTER.bytes);
+				GzipClosingMember.write(raw, urlCount, bytes);
+				raw.close();
+			} else {
+				out.write(FOOTER);
+				out.close();
+			}
+			if (digest != null) hash = digest.digest();
+		} catch (IOException e) {
+			output.abort();
+			throw e;
+		}
+		output.commit();
+	}
+
+	/** Throws the sitemap away without bothering to finish it; use this when something has already gone wrong */
+	void abort() {
+		if (closed) return;
+		closed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// we're already failing; don't mask the original problem
+		}
+		output.abort();
+	}
+
+	int getUrlCount() {
+		return urlCount;
+	}
+
+	/** The uncompressed size of the file if we were to close it now */
+	long getBytes() {
+		return baseBytes + out.getBytesWritten() + FOOTER.bytes.length;
+	}
+
+	/** The number of bytes that have actually made it to the sink so far */
+	long getCompressedBytes() {
+		return output.getBytesWritten();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/** The hash of the uncompressed sitemap in hex, once it's closed; null if we weren't asked to hash it */
+	String getHash() {
+		if (hash == null) return null;
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for (byte b : hash) {
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return sb.toString();
+	}
+
+	/** A digest for {@link #SitemapShardWriter(ISitemapOutput, String, SitemapCompressor, Fragment, MessageDigest) hashing} sitemaps for the manifest */
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("BUG every JVM has SHA-256", e);
+		}
+	}
+
+	/** Builds the XML declaration and opening &lt;urlset&gt; tag, with the renderer's namespaces */
+	static Fragment header(ISitemapUrlRenderer<?> renderer) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" ");
+		if (renderer.getXmlNamespaces() != null) {
+			sb.append(renderer.getXmlNamespaces());
+			sb.append(' ');
+		}
+		sb.append(">\n");
+		return new Fragment(sb.toString());
+	}
+
+	static Fragment footer() {
+		return FOOTER;
+	}
+}
@@ -0,0 +1,243 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Sorts more URLs than fit in memory before they go to a generator, e.g. by URL, so that similar URLs sit
+ * together and compress better, or by lastMod, so that changes land in a few sitemaps instead of all of them.
+ *
+ * <p>URLs are held in memory until they take up the memory budget, then sorted and spilled to a temporary file
+ * as a run, serialized compactly with the {@link ISitemapUrlCodec codec}.  When you've added them all,
+ * {@link #sortInto(SitemapGenerator)} merges the runs, plus whatever's still in memory, and adds the URLs to the
+ * generator in order.  Memory use is estimated from the length of each URL, so treat the budget as approximate.
+ * The sort is stable: URLs that compare equal come out in the order they went in.</p>
+ *
+ * @param <U> the kind of sitemap URL
+ */
+public class SitemapUrlSorter<U extends ISitemapUrl> implements Closeable {
+	/** A rough guess at the memory a URL object takes, besides its characters */
+	private static final int URL_OVERHEAD = 160;
+	private static final int MIN_READ_BUFFER = 8 * 1024;
+	private static final int MAX_READ_BUFFER = 1024 * 1024;
+
+	private final ISitemapUrlCodec<U> codec;
+	private final Comparator<? super U> comparator;
+	private final long memoryBudget;
+	private final File tempDir;
+	private ArrayList<U> buffer = new ArrayList<U>();
+	private long bufferBytes = 0;
+	private final List<File> runs = new ArrayList<File>();
+	private long urlCount = 0;
+	private boolean sorted = false;
+
+	/**
+	 * @param comparator the order the URLs should come out in, e.g. {@link #byUrl()} or {@link #byLastMod()}
+	 * @param memoryBudget roughly how many bytes of URLs to hold in memory before spilling them to disk
+	 * @param tempDir where to put the runs, or null for the system's temporary directory
+	 */
+	public SitemapUrlSorter(ISitemapUrlCodec<U> codec, Comparator<? super U> comparator, long memoryBudget, File tempDir) {
+		if (memoryBudget <= 0) throw new RuntimeException("memoryBudget must be positive; you asked for " + memoryBudget);
+		this.codec = codec;
+		this.comparator = comparator;
+		this.memoryBudget = memoryBudget;
+		this.tempDir = tempDir;
+	}
+
+	/** Sorts URLs by the URL itself, which for one site means by path */
+	public static Comparator<ISitemapUrl> byUrl() {
+		return new Comparator<ISitemapUrl>() {
+			public int compare(ISitemapUrl a, ISitemapUrl b) {
+				return a.getUrl().toString().compareTo(b.getUrl().toString());
+			}
+		};
+	}
+
+	/** Sorts URLs by lastMod, oldest first, with URLs that have no lastMod before all the rest */
+	public static Comparator<ISitemapUrl> byLastMod() {
+		return new Comparator<ISitemapUrl>() {
+			public int compare(ISitemapUrl a, ISitemapUrl b) {
+				Date x = a.getLastMod();
+				Date y = b.getLastMod();
+				if (x == null) return y == null ? 0 : -1;
+				if (y == null) return 1;
+				return x.compareTo(y);
+			}
+		};
+	}
+
+	/** Adds a URL to be sorted, spilling a run to disk if we've reached the memory budget */
+	public void add(U url) {
+		if (sorted) throw new RuntimeException("URLs already sorted; you must create a new sorter to sort more");
+		buffer.add(url);
+		bufferBytes += URL_OVERHEAD + 2L * url.getUrl().toString().length();
+		urlCount++;
+		if (bufferBytes >= memoryBudget) spill();
+	}
+
+	/** Adds URLs to be sorted, one at a time */
+	public void addAll(Iterable<? extends U> urls) {
+		for (U url : urls) add(url);
+	}
+
+	/** How many URLs have been added */
+	public long getUrlCount() {
+		return urlCount;
+	}
+
+	/** How many runs we've spilled to disk so far */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	private void spill() {
+		Collections.sort(buffer, comparator);
+		File run = null;
+		try {
+			run = File.createTempFile("sitemap-sort", ".run", tempDir);
+			run.deleteOnExit();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 64 * 1024));
+			try {
+				for (U url : buffer) {
+					out.writeBoolean(true);
+					codec.write(url, out);
+				}
+				out.writeBoolean(false);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			if (run != null) run.delete();
+			throw new RuntimeException("Problem spilling sorted URLs to " + run, e);
+		}
+		runs.add(run);
+		// start over with a fresh list, so the old one's backing array can be collected
+		buffer = new ArrayList<U>();
+		bufferBytes = 0;
+	}
+
+	/** Adds the URLs to the generator in sorted order; then call write() on the generator as usual */
+	public void sortInto(final SitemapGenerator<U, ?> generator) {
+		forEachSorted(new Consumer<U>() {
+			public void accept(U url) {
+				generator.addUrl(url);
+			}
+		});
+	}
+
+	/** Calls the action on each URL in sorted order, then deletes the runs; you can only do this once */
+	public void forEachSorted(Consumer<? super U> action) {
+		if (sorted) throw new RuntimeException("URLs already sorted; you must create a new sorter to sort more");
+		sorted = true;
+		Collections.sort(buffer, comparator);
+		List<Source> sources = new ArrayList<Source>(runs.size() + 1);
+		try {
+			int readBuffer = (int) Math.max(MIN_READ_BUFFER, Math.min(MAX_READ_BUFFER, memoryBudget / (runs.size() + 1)));
+			for (int i = 0; i < runs.size(); i++) {
+				sources.add(new RunSource(runs.get(i), i, readBuffer));
+			}
+			sources.add(new BufferSource(buffer, runs.size()));
+			PriorityQueue<Source> queue = new PriorityQueue<Source>(sources.size());
+			for (Source source : sources) {
+				if (source.advance()) queue.add(source);
+			}
+			while (!queue.isEmpty()) {
+				Source source = queue.poll();
+				action.accept(source.current);
+				if (source.advance()) queue.add(source);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Problem merging sorted URLs", e);
+		} finally {
+			for (Source source : sources) source.close();
+			buffer = new ArrayList<U>();
+			deleteRuns();
+		}
+	}
+
+	/** Deletes any runs we've spilled, without sorting them */
+	public void close() {
+		sorted = true;
+		buffer = new ArrayList<U>();
+		deleteRuns();
+	}
+
+	private void deleteRuns() {
+		for (File run : runs) run.delete();
+		runs.clear();
+	}
+
+	/** One sorted run, as we merge them; ties go to the earlier run, to keep the sort stable */
+	private abstract class Source implements Comparable<Source> {
+		private final int order;
+		U current;
+
+		Source(int order) {
+			this.order = order;
+		}
+
+		/** Moves on to the next URL, returning false at the end */
+		abstract boolean advance() throws IOException;
+
+		void close() {}
+
+		public int compareTo(Source other) {
+			int c = comparator.compare(current, other.current);
+			return c != 0 ? c : Integer.compare(order, other.order);
+		}
+	}
+
+	private class RunSource extends Source {
+		private final DataInputStream in;
+
+		RunSource(File run, int order, int bufferSize) throws IOException {
+			super(order);
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), bufferSize));
+		}
+
+		boolean advance() throws IOException {
+			if (!in.readBoolean()) return false;
+			current = codec.read(in);
+			return true;
+		}
+
+		@Override
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// we only read it, and we're deleting it anyway
+			}
+		}
+	}
+
+	private class BufferSource extends Source {
+		private final List<U> urls;
+		private int next = 0;
+
+		BufferSource(List<U> urls, int order) {
+			super(order);
+			this.urls = urls;
+		}
+
+		boolean advance() {
+			if (next == urls.size()) return false;
+			current = urls.get(next++);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,453 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import com.redfin.sitemapgenerator.SortedRun.Record;
+
+/**
+ * An embedded, file-based store of sitemap URLs, keyed by URL, built like a log-structured merge tree, so that
+ * URLs can be updated and deleted as well as added, with no database.
+ *
+ * <p>Changes go into a sorted in-memory table.  When it fills up, or when you call {@link #flush()}, it's written
+ * to disk as a new sorted run, numbered with the next sequence number; until then, changes aren't durable.
+ * Deleting a URL writes a tombstone, which hides the URL in older runs.  Reads merge the in-memory table with all
+ * the runs, newest first.</p>
+ *
+ * <p>Runs pile up as you flush, so we compact them, merging them into one and dropping the tombstones.  But a
+ * {@link RangeShardedSitemaps view} of the store needs to see what changed since it last looked, so only runs at
+ * or before the {@link #checkpoint(long) checkpoint} get compacted; the runs after it are kept as they are.  If you
+ * aren't using a view, call <code>checkpoint(getSequence())</code> after you flush, so everything can be
+ * compacted.</p>
+ *
+ * <p>All the methods are synchronized, so one store can be shared between threads.</p>
+ *
+ * @param <U> the kind of sitemap URL
+ */
+public class SitemapUrlStore<U extends ISitemapUrl> implements Closeable {
+	/** The default number of changes we'll hold in memory before writing them out as a run */
+	public static final int DEFAULT_MEMTABLE_SIZE = 100000;
+	/** The default number of runs we'll let pile up before we compact them */
+	public static final int DEFAULT_MAX_RUNS = 8;
+	private static final String CHECKPOINT = "CHECKPOINT";
+
+	private final File dir;
+	private final ISitemapUrlCodec<U> codec;
+	private final int memtableSize;
+	private final int maxRuns;
+	private final TreeMap<String, Record<U>> memtable = new TreeMap<String, Record<U>>();
+	/** Oldest first */
+	private final List<SortedRun> runs = new ArrayList<SortedRun>();
+	private long sequence = 0;
+	private long checkpoint = 0;
+
+	/** Opens the store in this directory, creating it if it doesn't exist yet */
+	public SitemapUrlStore(File dir, ISitemapUrlCodec<U> codec) throws IOException {
+		this(dir, codec, DEFAULT_MEMTABLE_SIZE, DEFAULT_MAX_RUNS);
+	}
+
+	/**
+	 * Opens the store in this directory, creating it if it doesn't exist yet
+	 *
+	 * @param memtableSize how many changes to hold in memory before writing them out as a run
+	 * @param maxRuns how many runs to let pile up before we compact the ones we're allowed to
+	 */
+	public SitemapUrlStore(File dir, ISitemapUrlCodec<U> codec, int memtableSize, int maxRuns) throws IOException {
+		if (memtableSize <= 0) throw new RuntimeException("memtableSize must be positive; you asked for " + memtableSize);
+		if (maxRuns < 2) throw new RuntimeException("maxRuns must be at least 2; you asked for " + maxRuns);
+		this.dir = dir;
+		this.codec = codec;
+		this.memtableSize = memtableSize;
+		this.maxRuns = maxRuns;
+		if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Couldn't create store directory " + dir);
+		openRuns();
+		readCheckpoint();
+	}
+
+	/** Finds the runs, cleaning up after any compaction or flush that crashed partway */
+	private void openRuns() throws IOException {
+		String[] names = dir.list();
+		Arrays.sort(names);
+		for (String name : names) {
+			File file = new File(dir, name);
+			if (name.endsWith(".tmp")) {
+				file.delete();
+			} else if (SortedRun.isRunFile(name)) {
+				runs.add(SortedRun.open(file));
+			}
+		}
+		List<SortedRun> redundant = new ArrayList<SortedRun>();
+		for (SortedRun run : runs) {
+			for (SortedRun other : runs) {
+				if (other.covers(run)) {
+					redundant.add(run);
+					break;
+				}
+			}
+		}
+		for (SortedRun run : redundant) {
+			runs.remove(run);
+			Files.deleteIfExists(run.getFile().toPath());
+		}
+		Collections.sort(runs, new Comparator<SortedRun>() {
+			public int compare(SortedRun a, SortedRun b) {
+				return Long.compare(a.getMaxSequence(), b.getMaxSequence());
+			}
+		});
+		if (!runs.isEmpty()) sequence = runs.get(runs.size() - 1).getMaxSequence();
+	}
+
+	private void readCheckpoint() throws IOException {
+		File file = new File(dir, CHECKPOINT);
+		if (!file.exists()) return;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			checkpoint = in.readLong();
+		} finally {
+			in.close();
+		}
+	}
+
+	/** Adds the URL, or replaces it if it's already there */
+	public synchronized void put(U url) throws IOException {
+		String key = url.getUrl().toString();
+		memtable.put(key, new Record<U>(key, url));
+		if (memtable.size() >= memtableSize) flush();
+	}
+
+	/** Deletes the URL, if it's there */
+	public synchronized void delete(String url) throws IOException {
+		memtable.put(url, new Record<U>(url, null));
+		if (memtable.size() >= memtableSize) flush();
+	}
+
+	/** Deletes the URL, if it's there */
+	public void delete(URL url) throws IOException {
+		delete(url.toString());
+	}
+
+	/** The URL stored under this key, or null if there isn't one */
+	public synchronized U get(String url) throws IOException {
+		Record<U> record = memtable.get(url);
+		if (record != null) return record.url;
+		for (int i = runs.size() - 1; i >= 0; i--) {
+			SortedRun.Cursor<U> cursor = runs.get(i).cursor(url, codec);
+			try {
+				record = cursor.peek();
+				if (record != null && record.key.equals(url)) return record.url;
+			} finally {
+				cursor.close();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the changes we're holding in memory to a new sorted run, so they're durable; then, if too many runs
+	 * have piled up, compacts them
+	 */
+	public synchronized void flush() throws IOException {
+		if (memtable.isEmpty()) return;
+		long next = sequence + 1;
+		runs.add(SortedRun.write(dir, next, next, memtable.values().iterator(), codec));
+		sequence = next;
+		memtable.clear();
+		if (runs.size() > maxRuns) compact();
+	}
+
+	/**
+	 * Merges all the runs at or before the checkpoint into one, dropping tombstones and older versions of URLs.
+	 * The merged run is written and synced before the runs that went into it are deleted.
+	 */
+	public synchronized void compact() throws IOException {
+		List<SortedRun> inputs = new ArrayList<SortedRun>();
+		for (SortedRun run : runs) {
+			if (run.getMaxSequence() <= checkpoint) inputs.add(run);
+		}
+		if (inputs.isEmpty()) return;
+		// a lone run only needs rewriting if it has tombstones to drop
+		if (inputs.size() == 1 && !hasTombstones(inputs.get(0))) return;
+		// the inputs include the oldest run, so nothing older can be hiding behind a tombstone
+		MergingCursor merged = new MergingCursor(inputs, false, null, null);
+		SortedRun compacted;
+		try {
+			compacted = SortedRun.write(dir, inputs.get(0).getMinSequence(), inputs.get(inputs.size() - 1).getMaxSequence(),
+					new LiveOnly(merged), codec);
+		} finally {
+			merged.close();
+		}
+		runs.removeAll(inputs);
+		runs.add(0, compacted);
+		for (SortedRun run : inputs) {
+			if (!run.getFile().equals(compacted.getFile())) Files.deleteIfExists(run.getFile().toPath());
+		}
+	}
+
+	private boolean hasTombstones(SortedRun run) throws IOException {
+		SortedRun.Cursor<U> cursor = run.cursor(null, codec);
+		try {
+			for (Record<U> record = cursor.next(); record != null; record = cursor.next()) {
+				if (record.isTombstone()) return true;
+			}
+			return false;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/** The sequence number of the newest run */
+	public synchronized long getSequence() {
+		return sequence;
+	}
+
+	/** The sequence number of the newest run that a view has already caught up with */
+	public synchronized long getCheckpoint() {
+		return checkpoint;
+	}
+
+	/**
+	 * Records that whoever is watching the store has caught up with every run up to this sequence number, so
+	 * those runs may be compacted
+	 */
+	public synchronized void checkpoint(long sequence) throws IOException {
+		if (sequence > this.sequence) throw new RuntimeException("Can't checkpoint sequence " + sequence + "; the newest run is " + this.sequence);
+		File tmp = new File(dir, CHECKPOINT + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			DataOutputStream out = new DataOutputStream(fos);
+			out.writeLong(sequence);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		try {
+			Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), new File(dir, CHECKPOINT).toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		checkpoint = sequence;
+	}
+
+	/** How many runs there are on disk right now */
+	public synchronized int getRunCount() {
+		return runs.size();
+	}
+
+	/** Calls the action on every URL in the store, in key order */
+	public void forEach(Consumer<? super U> action) throws IOException {
+		forEach(null, null, action);
+	}
+
+	/**
+	 * Calls the action on every URL in the store with a key in the range, in key order
+	 *
+	 * @param fromKey the first key in the range, or null to start at the beginning
+	 * @param toKey the first key after the range, or null to go to the end
+	 */
+	public synchronized void forEach(String fromKey, String toKey, Consumer<? super U> action) throws IOException {
+		MergingCursor merged = new MergingCursor(runs, true, fromKey, toKey);
+		try {
+			while (merged.hasNext()) {
+				Record<U> record = merged.next();
+				if (!record.isTombstone()) action.accept(record.url);
+			}
+		} finally {
+			merged.close();
+		}
+	}
+
+	/**
+	 * Calls the action on the key of every URL that was put or deleted in a run after this sequence number, in
+	 * key order, each key once.  Changes still in memory don't count until they're flushed.
+	 */
+	public synchronized void forEachChangedKey(long sinceSequence, Consumer<String> action) throws IOException {
+		List<SortedRun> newer = new ArrayList<SortedRun>();
+		for (SortedRun run : runs) {
+			if (run.getMaxSequence() > sinceSequence) newer.add(run);
+		}
+		MergingCursor merged = new MergingCursor(newer, false, null, null);
+		try {
+			while (merged.hasNext()) {
+				action.accept(merged.next().key);
+			}
+		} finally {
+			merged.close();
+		}
+	}
+
+	/** Flushes any changes still in memory */
+	public void close() throws IOException {
+		flush();
+	}
+
+	/** Filters the tombstones out of a merge */
+	private class LiveOnly implements Iterator<Record<U>> {
+		private final MergingCursor merged;
+		private Record<U> next;
+
+		LiveOnly(MergingCursor merged) {
+			this.merged = merged;
+		}
+
+		public boolean hasNext() {
+			while (next == null && merged.hasNext()) {
+				Record<U> record = merged.next();
+				if (!record.isTombstone()) next = record;
+			}
+			return next != null;
+		}
+
+		public Record<U> next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Record<U> record = next;
+			next = null;
+			return record;
+		}
+	}
+
+	/**
+	 * Merges runs (and maybe the in-memory table) into a single stream in key order.  When a key is in more than
+	 * one of them, the newest version wins, tombstone or not.
+	 */
+	private class MergingCursor implements Iterator<Record<U>>, Closeable {
+		private final List<SortedRun.Cursor<U>> cursors = new ArrayList<SortedRun.Cursor<U>>();
+		private final PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		private final String toKey;
+
+		MergingCursor(List<SortedRun> runs, boolean includeMemtable, String fromKey, String toKey) throws IOException {
+			this.toKey = toKey;
+			try {
+				for (int i = 0; i < runs.size(); i++) {
+					SortedRun.Cursor<U> cursor = runs.get(i).cursor(fromKey, codec);
+					cursors.add(cursor);
+					add(new RunSource(cursor, i));
+				}
+				if (includeMemtable) {
+					Map<String, Record<U>> view = fromKey == null ? memtable : memtable.tailMap(fromKey, true);
+					add(new MemtableSource(view.values().iterator(), runs.size()));
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		private void add(Source source) throws IOException {
+			Record<U> record = source.peek();
+			if (record != null && (toKey == null || record.key.compareTo(toKey) < 0)) queue.add(source);
+		}
+
+		public boolean hasNext() {
+			return !queue.isEmpty();
+		}
+
+		public Record<U> next() {
+			if (queue.isEmpty()) throw new NoSuchElementException();
+			try {
+				Source newest = queue.poll();
+				Record<U> record = newest.take();
+				add(newest);
+				// skip over older versions of the same key
+				while (!queue.isEmpty() && queue.peek().peek().key.equals(record.key)) {
+					Source older = queue.poll();
+					older.take();
+					add(older);
+				}
+				return record;
+			} catch (IOException e) {
+				throw new RuntimeException("Problem reading sitemap URL store " + dir, e);
+			}
+		}
+
+		public void close() {
+			for (SortedRun.Cursor<U> cursor : cursors) {
+				try {
+					cursor.close();
+				} catch (IOException e) {
+					// nothing more to read from it anyway
+				}
+			}
+		}
+	}
+
+	/** A sorted stream of records, ordered first by its next key, then newest first */
+	private abstract class Source implements Comparable<Source> {
+		private final int age;
+
+		Source(int age) {
+			this.age = age;
+		}
+
+		abstract Record<U> peek() throws IOException;
+
+		abstract Record<U> take() throws IOException;
+
+		public int compareTo(Source other) {
+			try {
+				int c = peek().key.compareTo(other.peek().key);
+				return c != 0 ? c : Integer.compare(other.age, age);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem reading sitemap URL store " + dir, e);
+			}
+		}
+	}
+
+	private class RunSource extends Source {
+		private final SortedRun.Cursor<U> cursor;
+
+		RunSource(SortedRun.Cursor<U> cursor, int age) {
+			super(age);
+			this.cursor = cursor;
+		}
+
+		Record<U> peek() throws IOException {
+			return cursor.peek();
+		}
+
+		Record<U> take() throws IOException {
+			return cursor.next();
+		}
+	}
+
+	private class MemtableSource extends Source {
+		private final Iterator<Record<U>> records;
+		private Record<U> next;
+
+		MemtableSource(Iterator<Record<U>> records, int age) {
+			super(age);
+			this.records = records;
+			if (records.hasNext()) next = records.next();
+		}
+
+		Record<U> peek() {
+			return next;
+		}
+
+		Record<U> take() {
+			Record<U> record = next;
+			next = records.hasNext() ? records.next() : null;
+			return record;
+		}
+	}
+}
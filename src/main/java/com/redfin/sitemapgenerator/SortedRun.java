@@ -0,0 +1,250 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One immutable file of a {@link SitemapUrlStore}: URLs and tombstones, sorted by key, each key at most once.
+ *
+ * <p>The file holds the records, then a sparse index of every {@value #INDEX_INTERVAL}th key and where its record
+ * starts, then a trailer pointing at the index.  We keep the sparse index in memory, so reading a range of keys
+ * only has to skip over a few records before it gets to the first one it wants.</p>
+ *
+ * <p>A run covers a range of sequence numbers: a freshly flushed run covers just its own, and a compacted run
+ * covers all the runs that went into it, so if we crash before deleting those, we know to ignore them.  Both
+ * numbers are in the file name.</p>
+ */
+class SortedRun {
+	private static final int MAGIC = 0x534d5231;
+	private static final int LIVE = 1;
+	private static final int TOMBSTONE = 0;
+	private static final int END = 2;
+	static final int INDEX_INTERVAL = 256;
+	private static final Pattern NAME = Pattern.compile("run-(\\d{16})-(\\d{16})\\.dat");
+
+	private final File file;
+	private final long minSequence;
+	private final long maxSequence;
+	private final String[] indexKeys;
+	private final long[] indexOffsets;
+
+	/** A URL, or a tombstone marking that its key has been deleted */
+	static final class Record<U> {
+		final String key;
+		/** null for a tombstone */
+		final U url;
+
+		Record(String key, U url) {
+			this.key = key;
+			this.url = url;
+		}
+
+		boolean isTombstone() {
+			return url == null;
+		}
+	}
+
+	private SortedRun(File file, long minSequence, long maxSequence, String[] indexKeys, long[] indexOffsets) {
+		this.file = file;
+		this.minSequence = minSequence;
+		this.maxSequence = maxSequence;
+		this.indexKeys = indexKeys;
+		this.indexOffsets = indexOffsets;
+	}
+
+	static String fileName(long minSequence, long maxSequence) {
+		return String.format("run-%016d-%016d.dat", maxSequence, minSequence);
+	}
+
+	/** Whether the file looks like a run; leftover temporary files don't */
+	static boolean isRunFile(String name) {
+		return NAME.matcher(name).matches();
+	}
+
+	/**
+	 * Writes the records to a new run in the directory, syncs it, and only then gives it its real name
+	 *
+	 * @param records sorted by key, each key at most once
+	 */
+	static <U extends ISitemapUrl> SortedRun write(File dir, long minSequence, long maxSequence, Iterator<Record<U>> records,
+			ISitemapUrlCodec<U> codec) throws IOException {
+		File file = new File(dir, fileName(minSequence, maxSequence));
+		File tmp = new File(dir, file.getName() + ".tmp");
+		List<String> indexKeys = new ArrayList<String>();
+		List<Long> indexOffsets = new ArrayList<Long>();
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(fos, 64 * 1024));
+			DataOutputStream out = new DataOutputStream(counter);
+			int count = 0;
+			while (records.hasNext()) {
+				Record<U> record = records.next();
+				if (count++ % INDEX_INTERVAL == 0) {
+					indexKeys.add(record.key);
+					indexOffsets.add(counter.getCount());
+				}
+				out.writeByte(record.isTombstone() ? TOMBSTONE : LIVE);
+				out.writeUTF(record.key);
+				if (!record.isTombstone()) codec.write(record.url, out);
+			}
+			out.writeByte(END);
+			long indexOffset = counter.getCount();
+			out.writeInt(indexKeys.size());
+			for (int i = 0; i < indexKeys.size(); i++) {
+				out.writeUTF(indexKeys.get(i));
+				out.writeLong(indexOffsets.get(i));
+			}
+			out.writeLong(indexOffset);
+			out.writeInt(MAGIC);
+			out.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		long[] offsets = new long[indexOffsets.size()];
+		for (int i = 0; i < offsets.length; i++) offsets[i] = indexOffsets.get(i);
+		return new SortedRun(file, minSequence, maxSequence, indexKeys.toArray(new String[indexKeys.size()]), offsets);
+	}
+
+	/** Opens a run we wrote earlier, reading its sparse index */
+	static SortedRun open(File file) throws IOException {
+		Matcher m = NAME.matcher(file.getName());
+		if (!m.matches()) throw new IOException("Not a sorted run: " + file);
+		long maxSequence = Long.parseLong(m.group(1));
+		long minSequence = Long.parseLong(m.group(2));
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < 12) throw new IOException("Truncated sorted run: " + file);
+			raf.seek(raf.length() - 12);
+			long indexOffset = raf.readLong();
+			if (raf.readInt() != MAGIC) throw new IOException("Truncated sorted run: " + file);
+			raf.seek(indexOffset);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD()), 64 * 1024));
+			int size = in.readInt();
+			String[] keys = new String[size];
+			long[] offsets = new long[size];
+			for (int i = 0; i < size; i++) {
+				keys[i] = in.readUTF();
+				offsets[i] = in.readLong();
+			}
+			return new SortedRun(file, minSequence, maxSequence, keys, offsets);
+		} finally {
+			raf.close();
+		}
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	long getMinSequence() {
+		return minSequence;
+	}
+
+	long getMaxSequence() {
+		return maxSequence;
+	}
+
+	/** Whether this run was compacted from other, which is now redundant */
+	boolean covers(SortedRun other) {
+		return other != this && minSequence <= other.minSequence && other.maxSequence <= maxSequence
+				&& (minSequence != other.minSequence || maxSequence != other.maxSequence);
+	}
+
+	/** Reads records in key order, starting with the first key at or after fromKey (or the very first, if it's null) */
+	<U extends ISitemapUrl> Cursor<U> cursor(String fromKey, ISitemapUrlCodec<U> codec) throws IOException {
+		long offset = 0;
+		if (fromKey != null && indexKeys.length > 0) {
+			int i = Arrays.binarySearch(indexKeys, fromKey);
+			if (i < 0) i = -i - 2;
+			if (i >= 0) offset = indexOffsets[i];
+		}
+		Cursor<U> cursor = new Cursor<U>(file, offset, codec);
+		try {
+			while (cursor.peek() != null && fromKey != null && cursor.peek().key.compareTo(fromKey) < 0) {
+				cursor.next();
+			}
+		} catch (IOException e) {
+			cursor.close();
+			throw e;
+		}
+		return cursor;
+	}
+
+	/** Reads a run's records one at a time, letting you look at the next one before taking it */
+	static class Cursor<U extends ISitemapUrl> implements Closeable {
+		private final DataInputStream in;
+		private final ISitemapUrlCodec<U> codec;
+		private final File file;
+		private Record<U> next;
+		private boolean done = false;
+
+		Cursor(File file, long offset, ISitemapUrlCodec<U> codec) throws IOException {
+			this.file = file;
+			this.codec = codec;
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				fis.getChannel().position(offset);
+			} catch (IOException e) {
+				fis.close();
+				throw e;
+			}
+			in = new DataInputStream(new BufferedInputStream(fis, 64 * 1024));
+		}
+
+		/** The next record, without taking it; null at the end of the run */
+		Record<U> peek() throws IOException {
+			if (next == null && !done) next = read();
+			return next;
+		}
+
+		Record<U> next() throws IOException {
+			Record<U> record = peek();
+			next = null;
+			return record;
+		}
+
+		private Record<U> read() throws IOException {
+			try {
+				int type = in.readByte();
+				if (type == END) {
+					done = true;
+					return null;
+				}
+				String key = in.readUTF();
+				if (type == TOMBSTONE) return new Record<U>(key, null);
+				if (type != LIVE) throw new IOException("Corrupt sorted run " + file);
+				return new Record<U>(key, codec.read(in));
+			} catch (EOFException e) {
+				throw new IOException("Truncated sorted run " + file, e);
+			}
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
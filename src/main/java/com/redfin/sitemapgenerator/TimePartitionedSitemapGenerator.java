@@ -0,0 +1,239 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Writes sitemaps partitioned by time, e.g. "sitemap-2019-03-1.xml.gz" for URLs from March 2019, so that old
+ * partitions stop changing and crawlers can stop refetching them.
+ *
+ * <p>A time key function gives each URL its date, e.g. its lastMod or when the page was created, and the pattern
+ * (for {@link SimpleDateFormat}, in UTC) turns that into the name of its partition, e.g. "yyyy-MM" for a
+ * partition per month.  The pattern has to sort in time order, as "yyyy-MM" and "yyyy-MM-dd" do.</p>
+ *
+ * <p>Each run, add all your URLs as usual.  A partition older than the current one is sealed at the end of the
+ * first run that comes after its period: from then on its URLs are skipped, and its sitemaps are never touched
+ * again.  (That first run writes the partition one last time if it's given URLs for it, so changes made late in
+ * the period aren't lost; if it isn't, the partition is sealed as the last run left it.)  The current partition,
+ * and any that aren't sealed yet, are written through the same
+ * {@link AbstractSitemapGeneratorOptions#manifest(File) manifest} mechanism the generator always uses, one
+ * manifest per partition, so their sitemaps whose content didn't change are left alone too.  The sitemap index
+ * lists the sitemaps of every partition with a manifest in baseDir, sealed or not, written this run or not, each
+ * with its own lastMod from its manifest.</p>
+ *
+ * <p>Sitemaps are hashed as they're written, so an unsealed partition costs no more memory than any other
+ * {@link PartitionedSitemapGenerator family}; the first run, when every partition is unsealed, has one open sitemap
+ * per partition.</p>
+ *
+ * <p>The sealed partitions are listed in "sitemap-partitions.txt" (with your file name prefix), next to the
+ * sitemaps.</p>
+ *
+ * @param <U> the kind of sitemap URL
+ */
+public class TimePartitionedSitemapGenerator<U extends ISitemapUrl> {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MANIFEST_SUFFIX = ".manifest";
+	/** The default memory budget for the partitions' buffers: 64MB */
+	public static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+	private final PartitionedSitemapGenerator<U> partitions;
+	private final URL baseUrl;
+	private final File baseDir;
+	private final String prefix;
+	private final SimpleDateFormat format;
+	private final File stateFile;
+	private final String currentPartition;
+	private final Function<U, String> timeKey;
+	/** Partitions we've seen URLs for this run, including sealed ones */
+	private final TreeSet<String> seen = new TreeSet<String>();
+	private final TreeSet<String> sealed = new TreeSet<String>();
+	private long skippedCount = 0;
+
+	/**
+	 * Partitions by the given time key, treating the partition holding the current time as the current one
+	 *
+	 * @param builder configures each partition's generator; see {@link PartitionedSitemapGenerator}.  It needs a
+	 * baseDir, where the partitions' manifests go.
+	 * @param timeKey the date that decides which partition a URL goes in; never null
+	 * @param pattern a {@link SimpleDateFormat} pattern naming the partition for a date, e.g. "yyyy-MM"
+	 */
+	public TimePartitionedSitemapGenerator(SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder,
+			Function<? super U, Date> timeKey, String pattern) {
+		this(builder, timeKey, pattern, new Date(), DEFAULT_MEMORY_BUDGET);
+	}
+
+	/**
+	 * @param builder configures each partition's generator; see {@link PartitionedSitemapGenerator}.  It needs a
+	 * baseDir, where the partitions' manifests go.
+	 * @param timeKey the date that decides which partition a URL goes in; never null
+	 * @param pattern a {@link SimpleDateFormat} pattern naming the partition for a date, e.g. "yyyy-MM"
+	 * @param now the time of this run, which decides the current partition
+	 * @param memoryBudget roughly how many bytes of URLs to hold in the partitions' buffers altogether
+	 */
+	public TimePartitionedSitemapGenerator(SitemapGeneratorBuilder<? extends SitemapGenerator<U, ?>> builder,
+			final Function<? super U, Date> timeKey, String pattern, Date now, long memoryBudget) {
+		if (builder.baseDir == null) throw new NullPointerException("To keep partitions, baseDir must not be null");
+		format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		baseUrl = builder.baseUrl;
+		baseDir = builder.baseDir;
+		prefix = builder.fileNamePrefix;
+		stateFile = new File(builder.baseDir, builder.fileNamePrefix + "-partitions.txt");
+		currentPartition = format.format(now);
+		this.timeKey = new Function<U, String>() {
+			public String apply(U url) {
+				Date date = timeKey.apply(url);
+				if (date == null) throw new RuntimeException("No time key for " + url.getUrl());
+				return format.format(date);
+			}
+		};
+		partitions = new PartitionedSitemapGenerator<U>(builder, this.timeKey, memoryBudget, true);
+		readState();
+	}
+
+	/** Adds the URL to its partition, or skips it if its partition is sealed */
+	public TimePartitionedSitemapGenerator<U> addUrl(U url) {
+		String partition = timeKey.apply(url);
+		seen.add(partition);
+		if (sealed.contains(partition)) {
+			skippedCount++;
+			return this;
+		}
+		partitions.addUrl(url);
+		return this;
+	}
+
+	/** Adds the URLs to their partitions, one at a time */
+	public TimePartitionedSitemapGenerator<U> addUrls(Iterable<? extends U> urls) {
+		for (U url : urls) addUrl(url);
+		return this;
+	}
+
+	/**
+	 * Writes the partitions that aren't sealed, then the sitemap index across every partition, then seals the
+	 * partitions whose periods are over; this method can only be called once
+	 *
+	 * @return the sitemaps of the partitions we wrote, and the index
+	 */
+	public SitemapFiles write() {
+		List<File> sitemaps = partitions.writeFamilies();
+		// partitions from earlier runs count too, even if we weren't given any of their URLs this time
+		TreeSet<String> all = findPartitions();
+		all.addAll(sealed);
+		all.addAll(partitions.getFamilies());
+		SitemapIndexGenerator sig = partitions.newIndexGenerator();
+		for (String partition : all) {
+			File manifestFile = partitions.getManifestFile(partition);
+			SitemapManifest manifest;
+			try {
+				manifest = SitemapManifest.read(manifestFile);
+			} catch (IOException e) {
+				throw new RuntimeException("Problem reading sitemap manifest " + manifestFile, e);
+			}
+			for (SitemapManifest.Entry entry : manifest.getEntries()) {
+				try {
+					sig.addUrl(new URL(baseUrl, entry.getName()), entry.getLastMod());
+				} catch (MalformedURLException e) {
+					throw new RuntimeException("Couldn't make URL for " + entry.getName(), e);
+				}
+			}
+		}
+		sig.write();
+		for (String partition : all) {
+			if (partition.compareTo(currentPartition) < 0) sealed.add(partition);
+		}
+		writeState();
+		return new SitemapFiles(sitemaps, partitions.getIndexFile());
+	}
+
+	/** The partition holding the time of this run */
+	public String getCurrentPartition() {
+		return currentPartition;
+	}
+
+	/** The partitions that are sealed, including any we sealed in {@link #write()}, in time order */
+	public List<String> getSealedPartitions() {
+		return new ArrayList<String>(sealed);
+	}
+
+	/** The partitions we were given URLs for this run, sealed or not, in time order */
+	public List<String> getPartitions() {
+		return new ArrayList<String>(seen);
+	}
+
+	/** How many URLs we skipped because their partitions were sealed */
+	public long getSkippedCount() {
+		return skippedCount;
+	}
+
+	/** The partitions with a manifest in baseDir, i.e. the ones some run has written */
+	private TreeSet<String> findPartitions() {
+		TreeSet<String> found = new TreeSet<String>();
+		String[] names = baseDir.list();
+		if (names == null) return found;
+		String start = prefix + "-";
+		for (String name : names) {
+			if (!name.startsWith(start) || !name.endsWith(MANIFEST_SUFFIX)) continue;
+			String partition = name.substring(start.length(), name.length() - MANIFEST_SUFFIX.length());
+			if (isPartition(partition)) found.add(partition);
+		}
+		return found;
+	}
+
+	/** Whether the name is one our pattern would give a partition, rather than some other file's */
+	private boolean isPartition(String name) {
+		ParsePosition position = new ParsePosition(0);
+		Date date = format.parse(name, position);
+		return date != null && position.getIndex() == name.length() && format.format(date).equals(name);
+	}
+
+	private void readState() {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(stateFile.toPath(), UTF8);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			throw new RuntimeException("Problem reading sitemap partitions " + stateFile, e);
+		}
+		for (String line : lines) {
+			if (!line.isEmpty() && !line.startsWith("#")) sealed.add(line);
+		}
+	}
+
+	private void writeState() {
+		File tmp = new File(stateFile.getPath() + ".tmp");
+		try {
+			Writer out = Files.newBufferedWriter(tmp.toPath(), UTF8);
+			try {
+				out.write("# sealed sitemap partitions\n");
+				for (String partition : sealed) out.write(partition + "\n");
+			} finally {
+				out.close();
+			}
+			try {
+				Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Problem writing sitemap partitions " + stateFile, e);
+		}
+	}
+}
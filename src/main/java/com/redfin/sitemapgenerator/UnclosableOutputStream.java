@@ -0,0 +1,25 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Flushes instead of closing, so that finishing a gzip member doesn't close the stream we want to write the next
+ * member to.  Passes writes straight through, rather than a byte at a time like FilterOutputStream.
+ */
+class UnclosableOutputStream extends FilterOutputStream {
+	UnclosableOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.flush();
+	}
+}
@@ -1,33 +1,41 @@
 package com.redfin.sitemapgenerator;
 
+import java.io.IOException;
 import java.net.URL;
 import java.util.HashMap;
-import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 class UrlUtils {
-	private static Map<String,String> ENTITIES = new HashMap<String,String>();
-	static {
-		ENTITIES.put("&", "&amp;");
-		ENTITIES.put("'", "&apos;");
-		ENTITIES.put("\"", "&quot;");
-		ENTITIES.put(">", "&gt;");
-		ENTITIES.put("<", "&lt;");
-	}
-	private static Pattern PATTERN = Pattern.compile("(&|'|\"|>|<)");
-
 	static String escapeXml(String string){
-		Matcher matcher = PATTERN.matcher(string);
-		StringBuffer sb = new StringBuffer();
-		while(matcher.find()) {
-		    matcher.appendReplacement(sb, ENTITIES.get(matcher.group(1)));
+		StringBuilder sb = new StringBuilder(string.length());
+		try {
+			escapeXml(string, sb);
+		} catch (IOException e) {
+			throw new RuntimeException("BUG StringBuilder can't throw IOException", e);
 		}
-		matcher.appendTail(sb);
-
 		return sb.toString();
 	}
 
+	/** Escapes the string straight into the output, without building up a new string */
+	static void escapeXml(String string, Appendable out) throws IOException {
+		int length = string.length();
+		int start = 0;
+		for (int i = 0; i < length; i++) {
+			String entity;
+			switch (string.charAt(i)) {
+			case '&': entity = "&amp;"; break;
+			case '\'': entity = "&apos;"; break;
+			case '"': entity = "&quot;"; break;
+			case '>': entity = "&gt;"; break;
+			case '<': entity = "&lt;"; break;
+			default: continue;
+			}
+			out.append(string, start, i);
+			out.append(entity);
+			start = i + 1;
+		}
+		out.append(string, start, length);
+	}
+
 	static void checkUrl(URL url, URL baseUrl) {
 		// Is there a better test to use here?
 		
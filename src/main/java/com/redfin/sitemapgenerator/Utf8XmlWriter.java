@@ -0,0 +1,218 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.MalformedInputException;
+
+/**
+ * Encodes XML text as UTF-8 straight into a reusable byte buffer, skipping the CharsetEncoder.
+ *
+ * <p>Sitemaps are nearly all ASCII, so each char is copied across as a single byte unless it's
+ * actually non-ASCII.  Fixed markup can be encoded once up front as a {@link Fragment} and copied
+ * in with {@link #write(Fragment)}.</p>
+ *
+ * <p>Like OutputStreamWriter with a reporting encoder, we refuse to write unpaired surrogates.</p>
+ */
+class Utf8XmlWriter extends Writer {
+	static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream out;
+	private final byte[] buf;
+	private int count = 0;
+	private long bytesWritten = 0;
+	/** A high surrogate we've seen but can't encode until we see the low surrogate that follows it */
+	private char pendingHighSurrogate = 0;
+
+	/** A fixed piece of markup, encoded to UTF-8 just once */
+	static final class Fragment {
+		final String text;
+		final byte[] bytes;
+
+		Fragment(String text) {
+			this.text = text;
+			this.bytes = text.getBytes(UTF8);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+
+	Utf8XmlWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	Utf8XmlWriter(OutputStream out, int bufferSize) {
+		// leave room for one complete four-byte character so we never have to split one
+		if (bufferSize < 4) throw new IllegalArgumentException("bufferSize must be at least 4: " + bufferSize);
+		this.out = out;
+		this.buf = new byte[bufferSize];
+	}
+
+	/** Writes a fragment to the output; this is just a copy if the output is a Utf8XmlWriter */
+	static void append(Appendable out, Fragment fragment) throws IOException {
+		if (out instanceof Utf8XmlWriter) {
+			((Utf8XmlWriter) out).write(fragment);
+		} else {
+			out.append(fragment.text);
+		}
+	}
+
+	/** Copies the pre-encoded bytes of the fragment to the output */
+	void write(Fragment fragment) throws IOException {
+		writeBytes(fragment.bytes, 0, fragment.bytes.length);
+	}
+
+	/** Copies bytes that are already UTF-8 encoded to the output */
+	void writeBytes(byte[] bytes, int off, int len) throws IOException {
+		checkNoPendingSurrogate();
+		if (len > buf.length - count) {
+			flushBuffer();
+			if (len > buf.length) {
+				out.write(bytes, off, len);
+				bytesWritten += len;
+				return;
+			}
+		}
+		System.arraycopy(bytes, off, buf, count, len);
+		count += len;
+		bytesWritten += len;
+	}
+
+	@Override
+	public void write(int c) throws IOException {
+		writeChar((char) c);
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		int end = off + len;
+		for (int i = off; i < end; i++) {
+			char c = cbuf[i];
+			if (c < 0x80 && pendingHighSurrogate == 0) {
+				if (count == buf.length) flushBuffer();
+				buf[count++] = (byte) c;
+				bytesWritten++;
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		append(str, off, off + len);
+	}
+
+	@Override
+	public Writer append(CharSequence csq) throws IOException {
+		if (csq == null) csq = "null";
+		return append(csq, 0, csq.length());
+	}
+
+	@Override
+	public Writer append(CharSequence csq, int start, int end) throws IOException {
+		if (csq == null) csq = "null";
+		for (int i = start; i < end; i++) {
+			char c = csq.charAt(i);
+			if (c < 0x80 && pendingHighSurrogate == 0) {
+				if (count == buf.length) flushBuffer();
+				buf[count++] = (byte) c;
+				bytesWritten++;
+			} else {
+				writeChar(c);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public Writer append(char c) throws IOException {
+		writeChar(c);
+		return this;
+	}
+
+	private void writeChar(char c) throws IOException {
+		if (pendingHighSurrogate != 0) {
+			if (!Character.isLowSurrogate(c)) {
+				pendingHighSurrogate = 0;
+				throw new MalformedInputException(1);
+			}
+			int codePoint = Character.toCodePoint(pendingHighSurrogate, c);
+			pendingHighSurrogate = 0;
+			ensureRoom(4);
+			buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+			buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+			buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+			bytesWritten += 4;
+		} else if (c < 0x80) {
+			ensureRoom(1);
+			buf[count++] = (byte) c;
+			bytesWritten++;
+		} else if (c < 0x800) {
+			ensureRoom(2);
+			buf[count++] = (byte) (0xC0 | (c >> 6));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+			bytesWritten += 2;
+		} else if (Character.isHighSurrogate(c)) {
+			pendingHighSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			throw new MalformedInputException(1);
+		} else {
+			ensureRoom(3);
+			buf[count++] = (byte) (0xE0 | (c >> 12));
+			buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+			buf[count++] = (byte) (0x80 | (c & 0x3F));
+			bytesWritten += 3;
+		}
+	}
+
+	private void ensureRoom(int bytes) throws IOException {
+		if (buf.length - count < bytes) flushBuffer();
+	}
+
+	private void checkNoPendingSurrogate() throws IOException {
+		if (pendingHighSurrogate != 0) {
+			pendingHighSurrogate = 0;
+			throw new MalformedInputException(1);
+		}
+	}
+
+	/** Throws away anything still in the buffer, e.g. half of a URL that failed to render, and starts afresh */
+	void discard() {
+		count = 0;
+		pendingHighSurrogate = 0;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (count == 0) return;
+		out.write(buf, 0, count);
+		count = 0;
+	}
+
+	/** The total number of bytes encoded so far, including any still in the buffer */
+	long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		checkNoPendingSurrogate();
+		flushBuffer();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Publishes a whole set of sitemaps at once, so crawlers never see a mix of old and new sitemaps, or a half-written one.
+ * 
+ * <p>Every sitemap and the index are written into a fresh version directory, <code>{root}/versions/{version}</code>.
+ * Nothing is visible until you call {@link #publish()}, which syncs the new version to disk (once), then atomically
+ * points <code>{root}/current</code> (a symlink) and <code>{root}/CURRENT</code> (a file holding the version name) at
+ * it.  Serve your sitemaps out of <code>{root}/current</code>, and use that directory's URL as the generator's baseUrl.
+ * Afterwards, old versions are deleted in the background, so a smaller rebuild never leaves stale sitemaps behind.</p>
+ * 
+ * <pre>
+ * VersionedSitemapOutputSink sink = new VersionedSitemapOutputSink(root);
+ * WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com/sitemaps/current/", null)
+ *     .outputSink(sink).gzip(true).build();
+ * // add URLs...
+ * wsg.write();
+ * wsg.writeSitemapsWithIndex();
+ * sink.publish();
+ * </pre>
+ * 
+ * <p>Use a new sink for each rebuild.  Only one rebuild should publish to a root at a time.</p>
+ */
+public class VersionedSitemapOutputSink implements ISitemapOutputSink {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final String VERSIONS_DIR = "versions";
+	static final String CURRENT_LINK = "current";
+	static final String CURRENT_POINTER = "CURRENT";
+	/** Marks a version that was published once, as opposed to one whose rebuild never finished */
+	static final String PUBLISHED_SUFFIX = ".published";
+
+	private final Path root;
+	private final Path versionsDir;
+	private final String version;
+	private final Path versionDir;
+	private final int keepVersions;
+	private final Executor cleanupExecutor;
+	private final ChannelSitemapOutputSink sink;
+	private boolean published = false;
+
+	/**
+	 * Keeps the current version and the one before it, for crawlers that fetched the old index just before we
+	 * published; cleans up on a background thread
+	 * 
+	 * @param root the directory to publish sitemaps in
+	 */
+	public VersionedSitemapOutputSink(File root) throws IOException {
+		this(root, 2, null);
+	}
+
+	/**
+	 * @param root the directory to publish sitemaps in
+	 * @param keepVersions how many versions to keep, including the current one
+	 * @param cleanupExecutor where to delete old versions, or null to start a thread for it
+	 */
+	public VersionedSitemapOutputSink(File root, int keepVersions, Executor cleanupExecutor) throws IOException {
+		if (keepVersions < 1) throw new IllegalArgumentException("Must keep at least the current version: " + keepVersions);
+		this.root = root.toPath();
+		this.keepVersions = keepVersions;
+		this.cleanupExecutor = cleanupExecutor;
+		versionsDir = this.root.resolve(VERSIONS_DIR);
+		Files.createDirectories(versionsDir);
+		versionDir = createVersionDir(versionsDir);
+		version = versionDir.getFileName().toString();
+		sink = new ChannelSitemapOutputSink(versionDir, FsyncPolicy.AT_END, ChannelSitemapOutputSink.DEFAULT_BUFFER_SIZE);
+	}
+
+	public ISitemapOutput open(String name) throws IOException {
+		checkNotPublished();
+		return sink.open(name);
+	}
+
+	public void rename(String from, String to) throws IOException {
+		checkNotPublished();
+		sink.rename(from, to);
+	}
+
+	public void delete(String name) throws IOException {
+		checkNotPublished();
+		sink.delete(name);
+	}
+
+	/**
+	 * Does nothing; the generator calls this each time it finishes writing sitemaps or the index, but nothing is
+	 * visible until you call {@link #publish()}, which syncs the whole version at once
+	 */
+	@Override
+	public void finish() {}
+
+	@Override
+	public File getFile(String name) {
+		return sink.getFile(name);
+	}
+
+	/** The name of the version we're writing, e.g. "v001760000000000" */
+	public String getVersion() {
+		return version;
+	}
+
+	/** The directory we're writing this version to */
+	public File getVersionDir() {
+		return versionDir.toFile();
+	}
+
+	/**
+	 * Makes this version the current one, once you've written the sitemaps and the index.  Syncs the version to
+	 * disk, flips the current symlink and pointer file to it, then deletes old versions in the background.  Where
+	 * symlinks aren't supported or allowed, the pointer file alone marks the current version.
+	 * 
+	 * @return lets you wait for the old versions to be deleted, if you want to
+	 * @throws IOException if we couldn't sync the version or flip the pointer file or symlink, e.g. because
+	 * something other than our symlink is in the way
+	 */
+	public synchronized FutureTask<Void> publish() throws IOException {
+		checkNotPublished();
+		sink.finish();
+		published = true;
+		Path target = root.relativize(versionDir);
+		Files.write(versionsDir.resolve(version + PUBLISHED_SUFFIX), new byte[0]);
+		replaceAtomically(root.resolve(CURRENT_POINTER), (version + "\n").getBytes(UTF8));
+		Path link = root.resolve(CURRENT_LINK);
+		Path tmpLink = root.resolve("." + CURRENT_LINK + ".tmp");
+		boolean linked = false;
+		try {
+			Files.deleteIfExists(tmpLink);
+			Files.createSymbolicLink(tmpLink, target);
+			linked = true;
+		} catch (UnsupportedOperationException e) {
+			// no symlinks here; the pointer file will have to do
+		} catch (FileSystemException e) {
+			// e.g. Windows without the privilege to create symlinks; the pointer file will have to do
+			if (Files.isSymbolicLink(link)) throw e;
+		}
+		if (linked) {
+			// once we have a link, failing to flip it means crawlers still see the old version, so that's an error
+			try {
+				move(tmpLink, link);
+			} finally {
+				// gone already if the move worked
+				Files.deleteIfExists(tmpLink);
+			}
+		}
+		syncDir(root);
+		FutureTask<Void> cleanup = new FutureTask<Void>(new Runnable() {
+			public void run() {
+				deleteOldVersions();
+			}
+		}, null);
+		if (cleanupExecutor != null) {
+			cleanupExecutor.execute(cleanup);
+		} else {
+			Thread thread = new Thread(cleanup, "sitemap-cleanup");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return cleanup;
+	}
+
+	/** Reads {root}/CURRENT to find out which version is published, or null if none is */
+	public static String getCurrentVersion(File root) throws IOException {
+		Path pointer = root.toPath().resolve(CURRENT_POINTER);
+		if (!Files.exists(pointer)) return null;
+		return new String(Files.readAllBytes(pointer), UTF8).trim();
+	}
+
+	/**
+	 * Deletes every published version older than this one except the newest few we're keeping, and every older
+	 * version that was never published, e.g. because its rebuild failed partway.  Versions newer than this one
+	 * are left alone.
+	 */
+	void deleteOldVersions() {
+		List<String> published = new ArrayList<String>();
+		List<String> orphans = new ArrayList<String>();
+		try (DirectoryStream<Path> versions = Files.newDirectoryStream(versionsDir)) {
+			for (Path path : versions) {
+				String name = path.getFileName().toString();
+				if (name.endsWith(PUBLISHED_SUFFIX) || name.compareTo(version) >= 0) continue;
+				if (Files.exists(versionsDir.resolve(name + PUBLISHED_SUFFIX))) {
+					published.add(name);
+				} else {
+					orphans.add(name);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("Problem listing old sitemap versions in " + versionsDir, e);
+		}
+		Collections.sort(published);
+		List<String> doomed = new ArrayList<String>(orphans);
+		doomed.addAll(published.subList(0, Math.max(0, published.size() - (keepVersions - 1))));
+		for (String name : doomed) {
+			deleteRecursively(versionsDir.resolve(name));
+			try {
+				Files.deleteIfExists(versionsDir.resolve(name + PUBLISHED_SUFFIX));
+			} catch (IOException e) {
+				throw new RuntimeException("Problem deleting old sitemap version " + name, e);
+			}
+		}
+	}
+
+	/** Versions are named for when they were started, so they sort in order */
+	private static Path createVersionDir(Path versionsDir) throws IOException {
+		for (long time = System.currentTimeMillis(); ; time++) {
+			try {
+				return Files.createDirectory(versionsDir.resolve(String.format("v%015d", time)));
+			} catch (FileAlreadyExistsException e) {
+				// someone else started a version this millisecond; try the next one
+			}
+		}
+	}
+
+	private void checkNotPublished() throws IOException {
+		if (published) throw new IOException("Version " + version + " is already published; use a new sink for the next rebuild");
+	}
+
+	private static void replaceAtomically(Path path, byte[] contents) throws IOException {
+		Path tmp = path.resolveSibling("." + path.getFileName() + ".tmp");
+		FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		try {
+			channel.write(ByteBuffer.wrap(contents));
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+		move(tmp, path);
+	}
+
+	private static void move(Path from, Path to) throws IOException {
+		try {
+			Files.move(from, to, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static void syncDir(Path dir) {
+		try {
+			FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			// some platforms (Windows) can't open or sync a directory
+		}
+	}
+
+	private static void deleteRecursively(Path dir) {
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+					if (e != null) throw e;
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new RuntimeException("Problem deleting old sitemap version " + dir, e);
+		}
+	}
+}
@@ -1,6 +1,7 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
 
@@ -85,8 +86,8 @@ public class WebSitemapGenerator extends SitemapGenerator<WebSitemapUrl,WebSitem
 			return null;
 		}
 
-		public void render(WebSitemapUrl url, StringBuilder sb, W3CDateFormat dateFormat) {
-			super.render(url, sb, dateFormat, null);
+		public void render(WebSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+			super.render(url, out, dateFormat, null);
 		}
 
 	}
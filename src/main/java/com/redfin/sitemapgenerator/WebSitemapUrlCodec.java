@@ -0,0 +1,35 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Date;
+
+/** Stores {@link WebSitemapUrl}s: the URL, and its lastMod, changeFreq and priority if it has them */
+public class WebSitemapUrlCodec implements ISitemapUrlCodec<WebSitemapUrl> {
+	private static final int LAST_MOD = 1;
+	private static final int CHANGE_FREQ = 2;
+	private static final int PRIORITY = 4;
+	private static final ChangeFreq[] CHANGE_FREQS = ChangeFreq.values();
+
+	public void write(WebSitemapUrl url, DataOutput out) throws IOException {
+		out.writeUTF(url.getUrl().toString());
+		int flags = 0;
+		if (url.getLastMod() != null) flags |= LAST_MOD;
+		if (url.getChangeFreq() != null) flags |= CHANGE_FREQ;
+		if (url.getPriority() != null) flags |= PRIORITY;
+		out.writeByte(flags);
+		if (url.getLastMod() != null) out.writeLong(url.getLastMod().getTime());
+		if (url.getChangeFreq() != null) out.writeByte(url.getChangeFreq().ordinal());
+		if (url.getPriority() != null) out.writeDouble(url.getPriority());
+	}
+
+	public WebSitemapUrl read(DataInput in) throws IOException {
+		WebSitemapUrl.Options options = new WebSitemapUrl.Options(in.readUTF());
+		int flags = in.readByte();
+		if ((flags & LAST_MOD) != 0) options.lastMod(new Date(in.readLong()));
+		if ((flags & CHANGE_FREQ) != 0) options.changeFreq(CHANGE_FREQS[in.readByte()]);
+		if ((flags & PRIORITY) != 0) options.priority(in.readDouble());
+		return options.build();
+	}
+}
@@ -0,0 +1,69 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class DeflaterPoolTest extends TestCase {
+
+	public void testReusesDeflaters() {
+		DeflaterPool pool = new DeflaterPool(2);
+		Deflater first = pool.borrow(9, Deflater.DEFAULT_STRATEGY);
+		pool.release(first, 9, Deflater.DEFAULT_STRATEGY);
+		assertEquals(1, pool.getIdleCount());
+		assertSame(first, pool.borrow(9, Deflater.DEFAULT_STRATEGY));
+		assertEquals(0, pool.getIdleCount());
+		pool.release(first, 9, Deflater.DEFAULT_STRATEGY);
+	}
+
+	public void testKeepsSettingsApart() {
+		DeflaterPool pool = new DeflaterPool(2);
+		Deflater fast = pool.borrow(1, Deflater.DEFAULT_STRATEGY);
+		pool.release(fast, 1, Deflater.DEFAULT_STRATEGY);
+		assertNotSame(fast, pool.borrow(9, Deflater.DEFAULT_STRATEGY));
+		assertNotSame(fast, pool.borrow(1, Deflater.FILTERED));
+		assertSame(fast, pool.borrow(1, Deflater.DEFAULT_STRATEGY));
+	}
+
+	public void testLimitsIdleDeflaters() {
+		DeflaterPool pool = new DeflaterPool(2);
+		Deflater[] deflaters = new Deflater[3];
+		for (int i = 0; i < deflaters.length; i++) {
+			deflaters[i] = pool.borrow(6, Deflater.DEFAULT_STRATEGY);
+		}
+		for (Deflater deflater : deflaters) {
+			pool.release(deflater, 6, Deflater.DEFAULT_STRATEGY);
+		}
+		assertEquals(2, pool.getIdleCount());
+	}
+
+	public void testPooledGzipStreamsReturnTheirDeflaters() throws Exception {
+		DeflaterPool pool = new DeflaterPool(2);
+		SitemapCompressor compressor = new SitemapCompressor(null, Deflater.BEST_COMPRESSION, Deflater.FILTERED, 16, pool);
+		for (int i = 0; i < 3; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			OutputStream out = compressor.compress(bytes);
+			out.write(("<url><loc>http://www.example.com/" + i + "</loc></url>").getBytes("UTF-8"));
+			out.close();
+			assertEquals(1, pool.getIdleCount());
+			assertEquals("<url><loc>http://www.example.com/" + i + "</loc></url>", gunzip(bytes.toByteArray()));
+		}
+	}
+
+	private String gunzip(byte[] gzipped) throws Exception {
+		Reader reader = new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(gzipped)), "UTF-8");
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = reader.read()) != -1) {
+			sb.append((char) c);
+		}
+		reader.close();
+		return sb.toString();
+	}
+}
@@ -0,0 +1,94 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class ParallelGzipOutputStreamTest extends TestCase {
+
+	ExecutorService executor;
+
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	public void tearDown() {
+		executor.shutdown();
+	}
+
+	public void testManyBlocks() throws Exception {
+		byte[] data = sitemapLikeData(200000);
+		assertRoundTrip(data, compress(data, executor, 1000));
+	}
+
+	public void testPartialLastBlock() throws Exception {
+		byte[] data = sitemapLikeData(2500);
+		assertRoundTrip(data, compress(data, executor, 1000));
+	}
+
+	public void testEmpty() throws Exception {
+		byte[] data = new byte[0];
+		assertRoundTrip(data, compress(data, executor, 1000));
+	}
+
+	public void testExecutorNeverRunsAnything() throws Exception {
+		// the caller deflates the blocks itself if the executor doesn't get to them
+		Executor lazy = new Executor() {
+			public void execute(Runnable command) {}
+		};
+		byte[] data = sitemapLikeData(50000);
+		assertRoundTrip(data, compress(data, lazy, 1000));
+	}
+
+	public void testDictionaryKeepsRatioClose() throws Exception {
+		byte[] data = sitemapLikeData(2000000);
+		ByteArrayOutputStream serial = new ByteArrayOutputStream();
+		java.util.zip.GZIPOutputStream gzip = new java.util.zip.GZIPOutputStream(serial);
+		gzip.write(data);
+		gzip.close();
+		byte[] parallel = compress(data, executor, ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+		assertRoundTrip(data, parallel);
+		assertTrue("parallel gzip was much bigger: " + parallel.length + " vs " + serial.size(),
+				parallel.length < serial.size() * 1.05);
+	}
+
+	private byte[] compress(byte[] data, Executor executor, int blockSize) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ParallelGzipOutputStream out = new ParallelGzipOutputStream(bytes, executor, new SitemapCompressor(null), blockSize);
+		// write in odd-sized pieces so they straddle the block boundaries
+		for (int off = 0; off < data.length; off += 777) {
+			out.write(data, off, Math.min(777, data.length - off));
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private void assertRoundTrip(byte[] expected, byte[] gzipped) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzipped));
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			actual.write(buf, 0, n);
+		}
+		in.close();
+		assertTrue("round trip didn't match", java.util.Arrays.equals(expected, actual.toByteArray()));
+	}
+
+	private byte[] sitemapLikeData(int length) throws IOException {
+		Random random = new Random(42);
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < length) {
+			sb.append("  <url>\n    <loc>http://www.example.com/listing/").append(random.nextInt(1000000)).append("</loc>\n  </url>\n");
+		}
+		return sb.substring(0, length).getBytes("UTF-8");
+	}
+}
@@ -0,0 +1,89 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class PartitionedSitemapGeneratorTest extends TestCase {
+
+	File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(PartitionedSitemapGeneratorTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testRoutesUrlsIntoFamiliesWithOneIndex() throws Exception {
+		PartitionedSitemapGenerator<WebSitemapUrl> psg = new PartitionedSitemapGenerator<WebSitemapUrl>(
+				WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10),
+				url -> url.getUrl().getPath().split("/")[1], 1024 * 1024);
+		for (int i = 0; i < 25; i++) psg.addUrl(new WebSitemapUrl("http://www.example.com/listings/" + i));
+		for (int i = 0; i < 4; i++) psg.addUrl(new WebSitemapUrl("http://www.example.com/agents/" + i));
+		SitemapFiles files = psg.write();
+		assertEquals(Arrays.asList("agents", "listings"), psg.getFamilies());
+		assertEquals(4, files.getSitemaps().size());
+		assertEquals("sitemap-agents-1.xml", files.getSitemaps().get(0).getName());
+		assertEquals("sitemap-listings-3.xml", files.getSitemaps().get(3).getName());
+		assertEquals(3, psg.getSitemaps("listings").size());
+		String agents = read(new File(dir, "sitemap-agents-1.xml"));
+		assertTrue(agents.contains("/agents/3<"));
+		assertFalse(agents.contains("/listings/"));
+		String index = read(files.getIndex());
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-agents-1.xml</loc>"));
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-listings-3.xml</loc>"));
+		assertEquals("sitemap_index.xml", files.getIndex().getName());
+	}
+
+	public void testSharedBudgetDrainsTheBiggestFamily() throws Exception {
+		PartitionedSitemapGenerator<WebSitemapUrl> psg = new PartitionedSitemapGenerator<WebSitemapUrl>(
+				WebSitemapGenerator.builder("http://www.example.com", dir), url -> url.getUrl().getPath().split("/")[1], 2000);
+		for (int i = 0; i < 3; i++) psg.addUrl(new WebSitemapUrl("http://www.example.com/cities/" + i));
+		for (int i = 0; i < 20; i++) {
+			psg.addUrl(new WebSitemapUrl("http://www.example.com/listings/" + i));
+			assertTrue(psg.getBufferedBytes() < 2000);
+		}
+		SitemapFiles files = psg.write();
+		assertEquals(2, files.getSitemaps().size());
+		String listings = read(new File(dir, "sitemap-listings-1.xml"));
+		for (int i = 0; i < 20; i++) assertTrue(listings.contains("/listings/" + i + "<"));
+		assertTrue(listings.indexOf("/listings/3<") < listings.indexOf("/listings/17<"));
+	}
+
+	public void testLeavesTheBuilderAlone() throws Exception {
+		SitemapGeneratorBuilder<WebSitemapGenerator> builder = WebSitemapGenerator.builder("http://www.example.com", dir);
+		PartitionedSitemapGenerator<WebSitemapUrl> psg = new PartitionedSitemapGenerator<WebSitemapUrl>(
+				builder, url -> url.getUrl().getPath().split("/")[1], 1000);
+		psg.addUrl(new WebSitemapUrl("http://www.example.com/agents/1"));
+		psg.write();
+		assertEquals("sitemap", builder.fileNamePrefix);
+		assertFalse(builder.streaming);
+		assertFalse(builder.numberEverySitemap);
+		assertNull(builder.manifestFile);
+	}
+
+	public void testBadFamilyName() throws Exception {
+		PartitionedSitemapGenerator<WebSitemapUrl> psg = new PartitionedSitemapGenerator<WebSitemapUrl>(
+				WebSitemapGenerator.builder("http://www.example.com", dir), url -> "../oops", 1000);
+		try {
+			psg.addUrl(new WebSitemapUrl("http://www.example.com/x"));
+			fail("the family name has a slash in it");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+}
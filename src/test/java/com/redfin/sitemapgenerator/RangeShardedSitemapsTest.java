@@ -0,0 +1,152 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class RangeShardedSitemapsTest extends TestCase {
+
+	File dir;
+	File storeDir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(RangeShardedSitemapsTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		storeDir = new File(dir, "store");
+		storeDir.mkdir();
+	}
+
+	public void tearDown() {
+		for (File file : storeDir.listFiles()) file.delete();
+		storeDir.delete();
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testUpdateRewritesOnlyTheAffectedShard() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = store();
+		for (int i = 100; i < 130; i++) store.put(url(i));
+		RangeShardedSitemaps<WebSitemapUrl> view = view(store);
+		List<File> written = view.refresh();
+		assertEquals(3, written.size());
+		assertEquals(3, view.getShardCount());
+		assertEquals("sitemap-1.xml", written.get(0).getName());
+
+		store.put(new WebSitemapUrl.Options("http://www.example.com/115").priority(0.9).build());
+		store.delete("http://www.example.com/125");
+		written = view.refresh();
+		assertEquals(2, written.size());
+		assertEquals("sitemap-3.xml", written.get(0).getName());
+		assertEquals("sitemap-2.xml", written.get(1).getName());
+		assertTrue(read(new File(dir, "sitemap-2.xml")).contains("<priority>0.9</priority>"));
+		assertFalse(read(new File(dir, "sitemap-3.xml")).contains("/125<"));
+
+		assertTrue(view.refresh().isEmpty());
+		String index = read(view.getIndexFile());
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-1.xml</loc>"));
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-3.xml</loc>"));
+	}
+
+	public void testGrowingShardSplitsAndEmptyShardIsDropped() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = store();
+		for (int i = 100; i < 120; i++) store.put(url(i));
+		RangeShardedSitemaps<WebSitemapUrl> view = view(store);
+		view.refresh();
+
+		// "1000".."1010" sort between 100 and 101, so they all land in the first shard
+		for (int i = 1000; i < 1011; i++) store.put(url(i));
+		List<File> written = view.refresh();
+		assertEquals(3, written.size());
+		assertEquals(4, view.getShardCount());
+		assertEquals(java.util.Arrays.asList("sitemap-1.xml", "sitemap-3.xml", "sitemap-4.xml", "sitemap-2.xml"), view.getFileNames());
+		assertEquals("sitemap-1.xml", view.findShardName("http://www.example.com/100"));
+		assertEquals("sitemap-4.xml", view.findShardName("http://www.example.com/109"));
+		assertEquals("sitemap-2.xml", view.findShardName("http://www.example.com/115"));
+
+		for (int i = 110; i < 120; i++) store.delete("http://www.example.com/" + i);
+		view.refresh();
+		assertEquals(3, view.getShardCount());
+		assertFalse(new File(dir, "sitemap-2.xml").exists());
+		assertFalse(read(view.getIndexFile()).contains("sitemap-2.xml"));
+	}
+
+	public void testViewPicksUpWhereItLeftOff() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = store();
+		for (int i = 100; i < 130; i++) store.put(url(i));
+		view(store).refresh();
+		store.delete("http://www.example.com/105");
+		store.close();
+
+		store = store();
+		RangeShardedSitemaps<WebSitemapUrl> view = view(store);
+		assertEquals(3, view.getShardCount());
+		List<File> written = view.refresh();
+		assertEquals(1, written.size());
+		assertEquals("sitemap-1.xml", written.get(0).getName());
+		assertFalse(read(written.get(0)).contains("/105<"));
+	}
+
+	public void testStartsFromAnEmptyStore() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = store();
+		RangeShardedSitemaps<WebSitemapUrl> view = view(store);
+		assertTrue(view.refresh().isEmpty());
+		assertEquals(0, view.getShardCount());
+
+		store.put(url(100));
+		List<File> written = view.refresh();
+		assertEquals(1, written.size());
+		assertTrue(read(written.get(0)).contains("/100<"));
+
+		// dropping the last shard leaves us where we started
+		store.delete("http://www.example.com/100");
+		view.refresh();
+		assertEquals(0, view.getShardCount());
+		store.put(url(101));
+		assertEquals(1, view.refresh().size());
+		assertEquals(1, view.getShardCount());
+	}
+
+	public void testLeavesTheBuilderAlone() throws Exception {
+		SitemapGeneratorBuilder<WebSitemapGenerator> builder = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(20);
+		SitemapUrlStore<WebSitemapUrl> store = store();
+		for (int i = 100; i < 130; i++) store.put(url(i));
+		new RangeShardedSitemaps<WebSitemapUrl>(store, builder, 10).refresh();
+		assertEquals("sitemap", builder.fileNamePrefix);
+		assertTrue(builder.allowMultipleSitemaps);
+	}
+
+	public void testShardsCantShareRunFiles() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = store();
+		try {
+			new RangeShardedSitemaps<WebSitemapUrl>(store, WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(20).manifest(new File(dir, "manifest.txt")), 10);
+			fail("every shard would overwrite the one manifest");
+		} catch (RuntimeException e) {}
+		try {
+			new RangeShardedSitemaps<WebSitemapUrl>(store, WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(20).deduplicator(new ExactSitemapDeduplicator(100)), 10);
+			fail("a rewritten shard would lose its URLs to the deduplicator");
+		} catch (RuntimeException e) {}
+	}
+
+	private SitemapUrlStore<WebSitemapUrl> store() throws Exception {
+		return new SitemapUrlStore<WebSitemapUrl>(storeDir, new WebSitemapUrlCodec());
+	}
+
+	private RangeShardedSitemaps<WebSitemapUrl> view(SitemapUrlStore<WebSitemapUrl> store) throws Exception {
+		return new RangeShardedSitemaps<WebSitemapUrl>(store, WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(20), 10);
+	}
+
+	private static WebSitemapUrl url(int i) throws Exception {
+		return new WebSitemapUrl.Options("http://www.example.com/" + i).build();
+	}
+
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+}
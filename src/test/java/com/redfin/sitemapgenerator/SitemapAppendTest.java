@@ -0,0 +1,216 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+public class SitemapAppendTest extends TestCase {
+
+	File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapAppendTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testAppendFillsLastSitemapThenAddsMore() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		addUrls(wsg, 0, 25);
+		wsg.write();
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).append(true).build();
+		addUrls(wsg, 25, 33);
+		List<File> files = wsg.write();
+		assertEquals(4, files.size());
+		assertEquals("sitemap4.xml", files.get(3).getName());
+		assertSameAsFresh(33, false, files);
+		String index = wsg.writeSitemapsWithIndexAsString();
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap4.xml</loc>"));
+	}
+
+	public void testAppendToLoneSitemap() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		addUrls(wsg, 0, 5);
+		wsg.write();
+		assertTrue(new File(dir, "sitemap.xml").exists());
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).append(true).build();
+		addUrls(wsg, 5, 8);
+		List<File> files = wsg.write();
+		assertEquals(1, files.size());
+		assertSameAsFresh(8, false, files);
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).append(true).build();
+		addUrls(wsg, 8, 25);
+		files = wsg.write();
+		assertEquals(3, files.size());
+		assertFalse(new File(dir, "sitemap.xml").exists());
+		assertSameAsFresh(25, false, files);
+	}
+
+	public void testStreamingAppendToGzippedSitemaps() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).build();
+		addUrls(wsg, 0, 5);
+		wsg.write();
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).streaming(true).append(true).build();
+		addUrls(wsg, 5, 23);
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		assertSameAsFresh(23, true, files);
+	}
+
+	public void testAppendWithNothingToAddKeepsTheSet() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		addUrls(wsg, 0, 15);
+		wsg.write();
+		byte[] before = Files.readAllBytes(new File(dir, "sitemap2.xml").toPath());
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).append(true).build();
+		List<File> files = wsg.write();
+		assertEquals(2, files.size());
+		assertTrue(Arrays.equals(before, Files.readAllBytes(files.get(1).toPath())));
+	}
+
+	public void testFailedAppendLeavesTheOldSitemap() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		addUrls(wsg, 0, 5);
+		wsg.write();
+		byte[] before = Files.readAllBytes(new File(dir, "sitemap.xml").toPath());
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).allowMultipleSitemaps(false).append(true).build();
+		try {
+			// appending streams each URL out as it's added, so the sitemap fills up partway through
+			addUrls(wsg, 5, 11);
+			fail("the sitemap can't hold 11 URLs");
+		} catch (RuntimeException e) {
+		}
+		assertTrue(Arrays.equals(before, Files.readAllBytes(new File(dir, "sitemap.xml").toPath())));
+		assertFalse(new File(dir, "sitemap.xml.tmp").exists());
+	}
+
+	public void testAppendableGzipKeepsClosingTagInItsOwnMember() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).appendableGzip(true).build();
+		addUrls(wsg, 0, 5);
+		List<File> files = wsg.write();
+		GzipClosingMember closing = GzipClosingMember.read(files.get(0));
+		assertNotNull(closing);
+		assertEquals(5, closing.getUrlCount());
+		assertEquals(read(files.get(0), true).getBytes("UTF-8").length, closing.getBytes());
+		assertSameAsFresh(5, true, files);
+	}
+
+	public void testAppendToGzippedSitemapWithoutRecompressing() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).appendableGzip(true).build();
+		addUrls(wsg, 0, 14);
+		wsg.write();
+		byte[] before = Files.readAllBytes(new File(dir, "sitemap2.xml.gz").toPath());
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).appendableGzip(true).append(true).build();
+		addUrls(wsg, 14, 17);
+		wsg.write();
+		byte[] after = Files.readAllBytes(new File(dir, "sitemap2.xml.gz").toPath());
+		int kept = before.length - GzipClosingMember.LENGTH;
+		assertTrue(after.length > before.length);
+		assertTrue("the members before the closing member were rewritten",
+				Arrays.equals(Arrays.copyOf(before, kept), Arrays.copyOf(after, kept)));
+		assertEquals(7, GzipClosingMember.read(new File(dir, "sitemap2.xml.gz")).getUrlCount());
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).appendableGzip(true).append(true).build();
+		addUrls(wsg, 17, 26);
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		assertSameAsFresh(26, true, files);
+	}
+
+	public void testAppendableGzipRewritesOlderSitemaps() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).build();
+		addUrls(wsg, 0, 4);
+		wsg.write();
+		assertNull(GzipClosingMember.read(new File(dir, "sitemap.xml.gz")));
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).appendableGzip(true).append(true).build();
+		addUrls(wsg, 4, 6);
+		List<File> files = wsg.write();
+		assertEquals(6, GzipClosingMember.read(files.get(0)).getUrlCount());
+		assertSameAsFresh(6, true, files);
+	}
+
+	public void testAppendableGzipWithManifest() throws Exception {
+		File manifest = new File(dir, "manifest.txt");
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).gzip(true).appendableGzip(true).manifest(manifest).build();
+		addUrls(wsg, 0, 12);
+		List<File> files = wsg.write();
+		assertEquals(2, GzipClosingMember.read(files.get(1)).getUrlCount());
+		manifest.delete();
+		assertSameAsFresh(12, true, files);
+	}
+
+	public void testAppendToEmptyDirectory() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).append(true).build();
+		addUrls(wsg, 0, 12);
+		List<File> files = wsg.write();
+		assertSameAsFresh(12, false, files);
+	}
+
+	public void testAppendNeedsTheCallingThread() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			WebSitemapGenerator.builder("http://www.example.com", dir).executor(executor).append(true).build();
+			fail("append mode can't use an executor");
+		} catch (RuntimeException e) {
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private void addUrls(WebSitemapGenerator wsg, int from, int to) throws Exception {
+		for (int i = from; i < to; i++) {
+			wsg.addUrl("http://www.example.com/" + i);
+		}
+	}
+
+	/** The appended set should look just like one generated in one go */
+	private void assertSameAsFresh(int count, boolean gzip, List<File> files) throws Exception {
+		WebSitemapGenerator fresh = WebSitemapGenerator.builder("http://www.example.com", null).maxUrls(10).build();
+		addUrls(fresh, 0, count);
+		List<String> expected = fresh.writeAsStrings();
+		assertEquals(expected.size(), files.size());
+		for (int i = 0; i < files.size(); i++) {
+			assertEquals(expected.get(i), read(files.get(i), gzip));
+		}
+	}
+
+	private static String read(File file, boolean gzip) throws Exception {
+		InputStream in = new FileInputStream(file);
+		try {
+			if (gzip) in = new GZIPInputStream(in);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) != -1) out.write(buf, 0, n);
+			return out.toString("UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+}
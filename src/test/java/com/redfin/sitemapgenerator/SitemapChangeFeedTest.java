@@ -0,0 +1,189 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class SitemapChangeFeedTest extends TestCase {
+
+	File dir;
+	File storeDir;
+	SitemapUrlStore<WebSitemapUrl> store;
+	RangeShardedSitemaps<WebSitemapUrl> view;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapChangeFeedTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		storeDir = new File(dir, "store");
+		store = new SitemapUrlStore<WebSitemapUrl>(storeDir, new WebSitemapUrlCodec());
+		for (int i = 100; i < 130; i++) store.put(url(i));
+		view = new RangeShardedSitemaps<WebSitemapUrl>(store, WebSitemapGenerator.builder("http://www.example.com", dir), 10);
+		view.refresh();
+	}
+
+	public void tearDown() throws Exception {
+		store.close();
+		for (File file : storeDir.listFiles()) file.delete();
+		storeDir.delete();
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testRepeatedChangesAreCoalesced() throws Exception {
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view);
+		feed.upsert(url(105));
+		feed.upsert(url(125));
+		feed.upsert(new WebSitemapUrl.Options("http://www.example.com/105").priority(0.3).build());
+		feed.delete("http://www.example.com/125");
+		assertEquals(4, feed.getEventCount());
+		assertEquals(Arrays.asList("http://www.example.com/105", "http://www.example.com/125"), feed.getPendingKeys());
+
+		List<File> written = feed.flush();
+		assertEquals(2, written.size());
+		assertEquals(0, feed.getPendingCount());
+		assertTrue(read(new File(dir, "sitemap-1.xml")).contains("<priority>0.3</priority>"));
+		assertFalse(read(new File(dir, "sitemap-3.xml")).contains("/125<"));
+		assertNull(store.get("http://www.example.com/125"));
+		assertTrue(feed.flush().isEmpty());
+		feed.close();
+	}
+
+	public void testFullBatchFlushes() throws Exception {
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view, 3, 0, TimeUnit.SECONDS);
+		feed.delete("http://www.example.com/111");
+		feed.delete("http://www.example.com/112");
+		assertEquals(2, feed.getPendingCount());
+		feed.delete("http://www.example.com/113");
+		assertEquals(0, feed.getPendingCount());
+		assertFalse(read(new File(dir, "sitemap-2.xml")).contains("/112<"));
+		feed.close();
+	}
+
+	public void testIntervalFlushesInTheBackground() throws Exception {
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view, 1000, 20, TimeUnit.MILLISECONDS);
+		feed.delete("http://www.example.com/121");
+		long deadline = System.currentTimeMillis() + 10000;
+		while (feed.getPendingCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+		assertEquals(0, feed.getPendingCount());
+		assertNull(store.get("http://www.example.com/121"));
+		feed.close();
+	}
+
+	public void testCloseFlushesWhatsLeft() throws Exception {
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view);
+		feed.upsert(url(1000));
+		feed.close();
+		assertTrue(read(new File(dir, "sitemap-1.xml")).contains("/1000<"));
+		try {
+			feed.upsert(url(1001));
+			fail("the feed is closed");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	public void testFailedFlushKeepsTheBatch() throws Exception {
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view);
+		feed.delete("http://www.example.com/105");
+		File blocker = breakIndex();
+		try {
+			feed.flush();
+			fail("the index couldn't be written");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(1, feed.getPendingCount());
+		fixIndex(blocker);
+		assertEquals(1, feed.flush().size());
+		assertEquals(0, feed.getPendingCount());
+		feed.close();
+	}
+
+	public void testFailingFlushesCapTheBatch() throws Exception {
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view, 3, 0, TimeUnit.SECONDS);
+		File blocker = breakIndex();
+		feed.delete("http://www.example.com/111");
+		feed.delete("http://www.example.com/112");
+		try {
+			feed.delete("http://www.example.com/113");
+			fail("the index couldn't be written");
+		} catch (RuntimeException e) {
+		}
+		// the batch grows, without trying to flush with each change, up to its limit
+		feed.delete("http://www.example.com/114");
+		feed.delete("http://www.example.com/115");
+		feed.delete("http://www.example.com/116");
+		assertEquals(6, feed.getPendingCount());
+		try {
+			feed.delete("http://www.example.com/117");
+			fail("the batch is as big as it can get");
+		} catch (RuntimeException e) {
+		}
+		assertEquals(6, feed.getPendingCount());
+		// a URL that's already waiting can still change
+		feed.upsert(url(116));
+		assertEquals(6, feed.getPendingCount());
+
+		fixIndex(blocker);
+		feed.delete("http://www.example.com/117");
+		assertEquals(Arrays.asList("http://www.example.com/117"), feed.getPendingKeys());
+		assertNull(store.get("http://www.example.com/113"));
+		feed.close();
+	}
+
+	public void testBackgroundFailureFailsTheNextChange() throws Exception {
+		File blocker = breakIndex();
+		SitemapChangeFeed<WebSitemapUrl> feed = new SitemapChangeFeed<WebSitemapUrl>(view, 1000, 20, TimeUnit.MILLISECONDS);
+		feed.delete("http://www.example.com/105");
+		boolean failed = false;
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!failed && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+			try {
+				feed.delete("http://www.example.com/106");
+			} catch (RuntimeException e) {
+				failed = true;
+			}
+		}
+		assertTrue("the background flush's failure was never reported", failed);
+		fixIndex(blocker);
+		try {
+			feed.flush();
+		} catch (RuntimeException e) {
+			// the background may have failed again before we fixed the index
+		}
+		feed.close();
+		assertEquals(0, feed.getPendingCount());
+		assertNull(store.get("http://www.example.com/105"));
+	}
+
+	/** Puts a non-empty directory where the index goes, so writing the index fails */
+	private File breakIndex() throws Exception {
+		File index = view.getIndexFile();
+		index.delete();
+		index.mkdir();
+		File blocker = new File(index, "blocker");
+		blocker.createNewFile();
+		return blocker;
+	}
+
+	private static void fixIndex(File blocker) {
+		blocker.delete();
+		blocker.getParentFile().delete();
+	}
+
+	private static WebSitemapUrl url(int i) throws Exception {
+		return new WebSitemapUrl.Options("http://www.example.com/" + i).build();
+	}
+
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+}
@@ -0,0 +1,155 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class SitemapCheckpointTest extends TestCase {
+
+	File dir;
+	File checkpoint;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapCheckpointTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		checkpoint = new File(dir, "checkpoint.txt");
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testResumeAfterCrashKeepsFinishedSitemaps() throws Exception {
+		WebSitemapGenerator crashed = builder().build();
+		addUrls(crashed, 0, 25);
+		// the JVM dies here, partway through sitemap3
+		assertTrue(new File(dir, "sitemap3.xml").exists());
+		SitemapCheckpoint saved = SitemapCheckpoint.read(checkpoint);
+		assertEquals("19", saved.getCursor());
+		assertEquals(2, saved.getEntries().size());
+		assertEquals("sitemap1.xml", saved.getEntries().get(0).getName());
+		assertEquals(10, saved.getEntries().get(1).getUrlCount());
+		byte[] first = Files.readAllBytes(new File(dir, "sitemap1.xml").toPath());
+
+		WebSitemapGenerator wsg = builder().resume(true).build();
+		assertEquals("19", wsg.getResumeCursor());
+		assertFalse("the half-written sitemap is thrown away", new File(dir, "sitemap3.xml").exists());
+		addUrls(wsg, Integer.parseInt(wsg.getResumeCursor()) + 1, 33);
+		List<File> files = wsg.write();
+		assertEquals(4, files.size());
+		assertTrue(java.util.Arrays.equals(first, Files.readAllBytes(files.get(0).toPath())));
+		assertSameAsFresh(33, files);
+		assertFalse("a finished job leaves no checkpoint", checkpoint.exists());
+		assertTrue(wsg.writeSitemapsWithIndexAsString().contains("sitemap4.xml"));
+	}
+
+	public void testCrashPartwayThroughAnAppendIsIgnored() throws Exception {
+		WebSitemapGenerator crashed = builder().build();
+		addUrls(crashed, 0, 35);
+		SitemapCheckpoint saved = SitemapCheckpoint.read(checkpoint);
+		assertEquals("29", saved.getCursor());
+		assertEquals(3, saved.getEntries().size());
+		// the JVM dies while adding sitemap4: its line made it out, but the cursor after it didn't
+		String torn = saved.getEntries().get(2).rename("sitemap4.xml").format() + "\ncursor\t=3";
+		Files.write(checkpoint.toPath(), torn.getBytes("UTF-8"), StandardOpenOption.APPEND);
+		saved = SitemapCheckpoint.read(checkpoint);
+		assertEquals("29", saved.getCursor());
+		assertEquals(3, saved.getEntries().size());
+
+		WebSitemapGenerator wsg = builder().resume(true).build();
+		assertEquals("29", wsg.getResumeCursor());
+		addUrls(wsg, 30, 55);
+		assertEquals(5, SitemapCheckpoint.read(checkpoint).getEntries().size());
+		assertSameAsFresh(55, wsg.write());
+	}
+
+	public void testCrashInFirstSitemapStartsOver() throws Exception {
+		WebSitemapGenerator crashed = builder().build();
+		addUrls(crashed, 0, 5);
+		assertFalse(checkpoint.exists());
+
+		WebSitemapGenerator wsg = builder().resume(true).build();
+		assertNull(wsg.getResumeCursor());
+		addUrls(wsg, 0, 12);
+		assertSameAsFresh(12, wsg.write());
+	}
+
+	public void testResumeWithNothingLeftToAdd() throws Exception {
+		WebSitemapGenerator crashed = builder().build();
+		addUrls(crashed, 0, 21);
+
+		WebSitemapGenerator wsg = builder().resume(true).build();
+		assertEquals("19", wsg.getResumeCursor());
+		List<File> files = wsg.write();
+		assertEquals(2, files.size());
+		assertSameAsFresh(20, files);
+	}
+
+	public void testResumeCarriesManifestEntries() throws Exception {
+		File manifest = new File(dir, "manifest.txt");
+		WebSitemapGenerator crashed = builder().manifest(manifest).build();
+		addUrls(crashed, 0, 15);
+		assertNotNull(SitemapCheckpoint.read(checkpoint).getEntries().get(0).getHash());
+
+		WebSitemapGenerator wsg = builder().manifest(manifest).resume(true).build();
+		addUrls(wsg, 10, 15);
+		wsg.write();
+		SitemapManifest written = SitemapManifest.read(manifest);
+		assertEquals(2, written.getEntries().size());
+		assertEquals(10, written.getEntries().get(0).getUrlCount());
+		assertNotNull(written.getEntries().get(0).getHash());
+	}
+
+	public void testResumeNeedsTheFinishedSitemaps() throws Exception {
+		WebSitemapGenerator crashed = builder().build();
+		addUrls(crashed, 0, 15);
+		new File(dir, "sitemap1.xml").delete();
+		try {
+			builder().resume(true).build();
+			fail("sitemap1.xml is missing");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	public void testCheckpointNeedsTheCallingThread() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			builder().executor(executor).build();
+			fail("checkpoints can't use an executor");
+		} catch (RuntimeException e) {
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private SitemapGeneratorBuilder<WebSitemapGenerator> builder() throws Exception {
+		return WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).checkpoint(checkpoint);
+	}
+
+	private void addUrls(WebSitemapGenerator wsg, int from, int to) throws Exception {
+		for (int i = from; i < to; i++) {
+			wsg.addUrl(new WebSitemapUrl("http://www.example.com/" + i), Integer.toString(i));
+		}
+	}
+
+	private void assertSameAsFresh(int count, List<File> files) throws Exception {
+		WebSitemapGenerator fresh = WebSitemapGenerator.builder("http://www.example.com", null).maxUrls(10).build();
+		for (int i = 0; i < count; i++) fresh.addUrl("http://www.example.com/" + i);
+		List<String> expected = fresh.writeAsStrings();
+		assertEquals(expected.size(), files.size());
+		for (int i = 0; i < files.size(); i++) {
+			assertEquals(expected.get(i), new String(Files.readAllBytes(files.get(i).toPath()), "UTF-8"));
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SitemapDeduplicatorTest extends TestCase {
+
+	File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapDeduplicatorTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testGeneratorDropsDuplicates() throws Exception {
+		ExactSitemapDeduplicator dedup = new ExactSitemapDeduplicator(100);
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).deduplicator(dedup).build();
+		for (int i = 0; i < 30; i++) {
+			wsg.addUrl("http://www.example.com/" + (i % 15));
+		}
+		List<File> files = wsg.write();
+		assertEquals(2, files.size());
+		assertEquals(15, dedup.getUrlCount());
+		assertEquals(15, dedup.getDuplicateCount());
+	}
+
+	public void testCollectorDropsDuplicates() throws Exception {
+		ExactSitemapDeduplicator dedup = new ExactSitemapDeduplicator(100);
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).deduplicator(dedup).build();
+		List<WebSitemapUrl> urls = new ArrayList<WebSitemapUrl>();
+		for (int i = 0; i < 40; i++) {
+			urls.add(new WebSitemapUrl("http://www.example.com/" + (i % 20)));
+		}
+		SitemapFiles files = urls.stream().collect(wsg.toSitemaps());
+		assertEquals(2, files.getSitemaps().size());
+		assertEquals(20, dedup.getDuplicateCount());
+	}
+
+	public void testExactTableIsSizedUpFrontAndGrowsIfItMust() throws Exception {
+		ExactSitemapDeduplicator dedup = new ExactSitemapDeduplicator(1000);
+		// 1000 URLs at most three-quarters full needs 1334 slots, rounded up to 2048
+		assertEquals(2048 * 8, dedup.getMemoryBytes());
+		for (int i = 0; i < 1000; i++) assertTrue(dedup.add("http://www.example.com/" + i));
+		assertEquals(2048 * 8, dedup.getMemoryBytes());
+		for (int i = 0; i < 2000; i++) assertEquals(i >= 1000, dedup.add("http://www.example.com/" + i));
+		assertEquals(2000, dedup.getUrlCount());
+		assertEquals(1000, dedup.getDuplicateCount());
+		assertEquals(4096 * 8, dedup.getMemoryBytes());
+	}
+
+	public void testExactStripesCatchDuplicatesAcrossThreads() throws Exception {
+		final ExactSitemapDeduplicator dedup = new ExactSitemapDeduplicator(1000);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 5000; i++) dedup.add("http://www.example.com/" + i);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertEquals(5000, dedup.getUrlCount());
+		assertEquals(15000, dedup.getDuplicateCount());
+	}
+
+	public void testBloomFilterNeverLetsADuplicateThrough() throws Exception {
+		BloomSitemapDeduplicator dedup = new BloomSitemapDeduplicator(10000, 0.01);
+		// about 9.6 bits per URL
+		assertTrue(dedup.getMemoryBytes() > 11000 && dedup.getMemoryBytes() < 13000);
+		assertEquals(7, dedup.getHashCount());
+		int falsePositives = 0;
+		for (int i = 0; i < 10000; i++) {
+			if (!dedup.add("http://www.example.com/" + i)) falsePositives++;
+		}
+		assertTrue("too many false positives: " + falsePositives, falsePositives < 200);
+		for (int i = 0; i < 10000; i++) {
+			assertFalse(dedup.add("http://www.example.com/" + i));
+		}
+	}
+
+	public void testBloomFilterNeedsASensibleRate() throws Exception {
+		try {
+			new BloomSitemapDeduplicator(100, 0);
+			fail("a rate of 0 would need an infinite filter");
+		} catch (RuntimeException e) {
+		}
+	}
+}
@@ -5,8 +5,19 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 
 import junit.framework.TestCase;
@@ -324,6 +335,45 @@ public class SitemapGeneratorTest extends TestCase {
 		assertEquals("sitemap didn't match", SITEMAP1, actual);
 	}
 	
+	public void testParallelGzip() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			wsg = WebSitemapGenerator.builder("http://www.example.com", dir)
+				.gzip(true).gzipExecutor(executor).build();
+			for (int i = 0; i < 10; i++) {
+				wsg.addUrl("http://www.example.com/"+i);
+			}
+			List<File> files = wsg.write();
+			assertEquals("Sitemap misnamed", "sitemap.xml.gz", files.get(0).getName());
+			assertEquals("sitemap didn't match", SITEMAP1, TestUtil.slurpGzippedFileAndDelete(files.get(0)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	public void testCompressionLevel() throws Exception {
+		long[] sizes = new long[2];
+		int[] levels = { Deflater.NO_COMPRESSION, Deflater.BEST_COMPRESSION };
+		for (int i = 0; i < levels.length; i++) {
+			wsg = WebSitemapGenerator.builder("http://www.example.com", dir)
+				.gzip(true).compressionLevel(levels[i]).compressionStrategy(Deflater.FILTERED).gzipBufferSize(64).build();
+			for (int j = 0; j < 10; j++) {
+				wsg.addUrl("http://www.example.com/"+j);
+			}
+			File file = wsg.write().get(0);
+			sizes[i] = file.length();
+			assertEquals("sitemap didn't match", SITEMAP1, TestUtil.slurpGzippedFileAndDelete(file));
+		}
+		assertTrue("level 9 wasn't smaller than level 0", sizes[1] < sizes[0]);
+	}
+	
+	public void testBadCompressionLevel() throws Exception {
+		try {
+			WebSitemapGenerator.builder("http://www.example.com", dir).compressionLevel(10);
+			fail("Allowed compression level 10");
+		} catch (RuntimeException e) {}
+	}
+	
 	public void testBaseDirIsNullThrowsNullPointerException() throws Exception {
 		wsg = WebSitemapGenerator.builder("http://www.example.com", null).autoValidate(true).maxUrls(10).build();
 		wsg.addUrl("http://www.example.com/index.html");
@@ -367,6 +417,393 @@ public class SitemapGeneratorTest extends TestCase {
 		assertEquals(SITEMAP1, sitemap);
 	}
 	
+	public void testStreamingMaxUrlsPlusOne() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).streaming(true).autoValidate(true).maxUrls(10).build();
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		wsg.addUrl("http://www.example.com/just-one-more");
+		String actual = TestUtil.slurpFileAndDelete(new File(dir, "sitemap1.xml"));
+		assertEquals("sitemap1 didn't match", SITEMAP1, actual);
+		List<File> files = wsg.write();
+		assertEquals(2, files.size());
+		assertEquals("First sitemap was misnamed", "sitemap1.xml", files.get(0).getName());
+		assertEquals("Second sitemap was misnamed", "sitemap2.xml", files.get(1).getName());
+		actual = TestUtil.slurpFileAndDelete(files.get(1));
+		assertEquals("sitemap2 didn't match", SITEMAP_PLUS_ONE, actual);
+	}
+	
+	public void testStreamingMaxUrls() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).streaming(true).autoValidate(true).maxUrls(10).build();
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		String actual = writeSingleSiteMap(wsg);
+		assertEquals("sitemap didn't match", SITEMAP1, actual);
+	}
+	
+	public void testStreamingEmptySitemap() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).streaming(true).allowEmptySitemap(true).build();
+		String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+				"<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" >\n" +
+				"</urlset>";
+		assertEquals(expected, writeSingleSiteMap(wsg));
+	}
+	
+	public void testStreamingTooManyUrls() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).streaming(true).allowMultipleSitemaps(false).maxUrls(10).build();
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		try {
+			wsg.addUrl("http://www.example.com/just-one-more");
+			fail("too many URLs allowed");
+		} catch (RuntimeException e) {}
+	}
+	
+	public void testStreamingSkipsUrlThatWontRender() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).streaming(true).build();
+		wsg.addUrl("http://www.example.com/1");
+		wsg.addUrl("http://www.example.com/2");
+		try {
+			wsg.addUrl("http://www.example.com/\uD800");
+			fail("a lone surrogate can't be written");
+		} catch (RuntimeException e) {}
+		wsg.addUrl("http://www.example.com/3");
+		List<File> files = wsg.write();
+		assertEquals(1, files.size());
+		String sitemap = TestUtil.slurpFileAndDelete(files.get(0));
+		assertTrue(sitemap.contains("/1</loc>") && sitemap.contains("/2</loc>") && sitemap.contains("/3</loc>"));
+	}
+	
+	public void testStreamingRequiresBaseDir() throws Exception {
+		try {
+			WebSitemapGenerator.builder("http://www.example.com", null).streaming(true).build();
+			fail("streaming without a baseDir is not allowed");
+		} catch (RuntimeException e) {}
+	}
+	
+	public void testPipelinedMaxUrlsTimesTwoPlusOne() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).pipelineQueueSize(3).autoValidate(true).maxUrls(10).build();
+		for (int i = 0; i < 9; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		wsg.addUrl("http://www.example.com/9");
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		wsg.addUrl("http://www.example.com/just-one-more");
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		assertEquals("sitemap1 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+		assertEquals("sitemap2 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(1)));
+		assertEquals("sitemap3 didn't match", SITEMAP_PLUS_ONE, TestUtil.slurpFileAndDelete(files.get(2)));
+	}
+	public void testPipelinedSingleSitemap() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).pipelineQueueSize(1000).build();
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		assertEquals("sitemap didn't match", SITEMAP1, writeSingleSiteMap(wsg));
+	}
+	public void testPipelinedEmptySitemap() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).pipelineQueueSize(1000).allowEmptySitemap(true).build();
+		String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+				"<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\" >\n" +
+				"</urlset>";
+		assertEquals(expected, writeSingleSiteMap(wsg));
+	}
+	public void testPipelinedFailureSurfaces() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).pipelineQueueSize(1).allowMultipleSitemaps(false).maxUrls(10).build();
+		try {
+			for (int i = 0; i < 1000; i++) {
+				wsg.addUrl("http://www.example.com/"+i);
+			}
+			wsg.write();
+			fail("too many URLs allowed");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("allowMultipleSitemaps is false"));
+		}
+		try {
+			wsg.addUrl("http://www.example.com/after-failure");
+			fail("Kept adding URLs after the background writer failed");
+		} catch (RuntimeException e) {}
+	}
+	public void testMaxBytes() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).autoValidate(true).maxBytes(SITEMAP2.length()).build();
+		assertSplitIntoSitemap1AndSitemap2();
+	}
+	
+	public void testStreamingMaxBytes() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).streaming(true).autoValidate(true).maxBytes(SITEMAP2.length()).build();
+		assertSplitIntoSitemap1AndSitemap2();
+	}
+	
+	public void testCustomRolloverPolicy() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).rolloverPolicy(new ISitemapRolloverPolicy() {
+			public boolean isFull(int urlCount, long bytes, long compressedBytes, int nextUrlBytes) {
+				return urlCount == 10;
+			}
+		}).build();
+		assertSplitIntoSitemap1AndSitemap2();
+	}
+	
+	public void testMaxCompressedBytes() throws Exception {
+		// the gzip header alone is bigger than this, so every sitemap gets exactly one URL
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).gzip(true).maxCompressedBytes(1).build();
+		wsg.addUrls("http://www.example.com/0", "http://www.example.com/1", "http://www.example.com/2");
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		assertEquals("sitemap3.xml.gz", files.get(2).getName());
+	}
+	
+	public void testTooManyBytes() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).allowMultipleSitemaps(false).maxBytes(SITEMAP1.length()).build();
+		for (int i = 0; i < 11; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		try {
+			wsg.write();
+			fail("sitemap bigger than maxBytes allowed");
+		} catch (RuntimeException e) {}
+	}
+	
+	private void assertSplitIntoSitemap1AndSitemap2() {
+		for (int i = 0; i < 20; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		List<File> files = wsg.write();
+		assertEquals(2, files.size());
+		assertEquals("First sitemap was misnamed", "sitemap1.xml", files.get(0).getName());
+		assertEquals("Second sitemap was misnamed", "sitemap2.xml", files.get(1).getName());
+		assertEquals("sitemap1 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+		assertEquals("sitemap2 didn't match", SITEMAP2, TestUtil.slurpFileAndDelete(files.get(1)));
+	}
+	
+	public void testConcurrentSingleThread() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).concurrent(true).autoValidate(true).maxUrls(10).build();
+		for (int i = 0; i < 20; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		wsg.addUrl("http://www.example.com/just-one-more");
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		assertEquals("sitemap1 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+		assertEquals("sitemap2 didn't match", SITEMAP2, TestUtil.slurpFileAndDelete(files.get(1)));
+		assertEquals("sitemap3 didn't match", SITEMAP_PLUS_ONE, TestUtil.slurpFileAndDelete(files.get(2)));
+	}
+	
+	public void testConcurrentManyThreads() throws Exception {
+		assertConcurrentProducers(null);
+	}
+	
+	public void testConcurrentManyThreadsWithExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			assertConcurrentProducers(executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	private void assertConcurrentProducers(ExecutorService executor) throws Exception {
+		final int threadCount = 4, urlsPerThread = 37;
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).concurrent(true).executor(executor).maxUrls(10).build();
+		Thread[] threads = new Thread[threadCount];
+		for (int t = 0; t < threadCount; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < urlsPerThread; i++) {
+						wsg.addUrl("http://www.example.com/" + thread + "/" + i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		List<File> files = wsg.write();
+		assertEquals("All files should have their final names", files.size(), dir.listFiles().length);
+		
+		Set<String> locs = new HashSet<String>();
+		for (int i = 0; i < files.size(); i++) {
+			assertEquals("Sitemap was misnamed", "sitemap" + (i + 1) + ".xml", files.get(i).getName());
+			String sitemap = TestUtil.slurpFileAndDelete(files.get(i));
+			int urlsInSitemap = 0;
+			for (String line : sitemap.split("\n")) {
+				if (!line.contains("<loc>")) continue;
+				urlsInSitemap++;
+				assertTrue("Duplicate URL " + line, locs.add(line.trim()));
+			}
+			assertTrue("Too many URLs in sitemap", urlsInSitemap <= 10);
+		}
+		assertEquals(threadCount * urlsPerThread, locs.size());
+		String index = TestUtil.slurpFileAndDelete(wsg.writeSitemapsWithIndex());
+		assertTrue(index.contains("sitemap" + files.size() + ".xml"));
+		assertFalse(index.contains("sitemap" + (files.size() + 1) + ".xml"));
+	}
+	
+	public void testConcurrentTooManyUrls() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).concurrent(true).allowMultipleSitemaps(false).maxUrls(10).build();
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/"+i);
+		}
+		try {
+			wsg.addUrl("http://www.example.com/just-one-more");
+			fail("too many URLs allowed");
+		} catch (RuntimeException e) {}
+	}
+	
+	public void testCollector() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).autoValidate(true).maxUrls(10).build();
+		List<WebSitemapUrl> urls = new ArrayList<WebSitemapUrl>();
+		for (int i = 0; i < 20; i++) {
+			urls.add(new WebSitemapUrl("http://www.example.com/"+i));
+		}
+		urls.add(new WebSitemapUrl("http://www.example.com/just-one-more"));
+		SitemapFiles sitemaps = urls.stream().collect(wsg.toSitemaps());
+		List<File> files = sitemaps.getSitemaps();
+		assertEquals(3, files.size());
+		assertEquals("sitemap1 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+		assertEquals("sitemap2 didn't match", SITEMAP2, TestUtil.slurpFileAndDelete(files.get(1)));
+		assertEquals("sitemap3 didn't match", SITEMAP_PLUS_ONE, TestUtil.slurpFileAndDelete(files.get(2)));
+		assertEquals("sitemap_index.xml", sitemaps.getIndex().getName());
+		assertTrue(TestUtil.slurpFileAndDelete(sitemaps.getIndex()).contains("sitemap3.xml"));
+	}
+	
+	public void testParallelCollector() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		List<WebSitemapUrl> urls = new ArrayList<WebSitemapUrl>();
+		for (int i = 0; i < 995; i++) {
+			urls.add(new WebSitemapUrl("http://www.example.com/"+i));
+		}
+		List<File> files = urls.parallelStream().collect(wsg.toSitemaps()).getSitemaps();
+		assertEquals("All files should have their final names", files.size() + 1, dir.listFiles().length);
+		Set<String> locs = new HashSet<String>();
+		for (int i = 0; i < files.size(); i++) {
+			assertEquals("Sitemap was misnamed", "sitemap" + (i + 1) + ".xml", files.get(i).getName());
+			for (String line : TestUtil.slurpFileAndDelete(files.get(i)).split("\n")) {
+				if (line.contains("<loc>")) assertTrue("Duplicate URL " + line, locs.add(line.trim()));
+			}
+		}
+		assertEquals(995, locs.size());
+	}
+	
+	public void testCollectorTooManyUrls() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).allowMultipleSitemaps(false).maxUrls(10).build();
+		List<WebSitemapUrl> urls = new ArrayList<WebSitemapUrl>();
+		for (int i = 0; i < 11; i++) {
+			urls.add(new WebSitemapUrl("http://www.example.com/"+i));
+		}
+		try {
+			urls.parallelStream().collect(wsg.toSitemaps());
+			fail("too many URLs allowed");
+		} catch (RuntimeException e) {}
+	}
+	
+	public void testSubscriber() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).autoValidate(true).maxUrls(10).build();
+		ISitemapSubscriber<WebSitemapUrl> subscriber = wsg.toSubscriber();
+		SubmissionPublisher<WebSitemapUrl> publisher = new SubmissionPublisher<WebSitemapUrl>();
+		publisher.subscribe(subscriber);
+		for (int i = 0; i < 20; i++) {
+			publisher.submit(new WebSitemapUrl("http://www.example.com/"+i));
+		}
+		publisher.submit(new WebSitemapUrl("http://www.example.com/just-one-more"));
+		publisher.close();
+		SitemapFiles sitemaps = subscriber.getResult().get(10, TimeUnit.SECONDS);
+		List<File> files = sitemaps.getSitemaps();
+		assertEquals(3, files.size());
+		assertEquals("sitemap1 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+		assertEquals("sitemap2 didn't match", SITEMAP2, TestUtil.slurpFileAndDelete(files.get(1)));
+		assertEquals("sitemap3 didn't match", SITEMAP_PLUS_ONE, TestUtil.slurpFileAndDelete(files.get(2)));
+		assertTrue(TestUtil.slurpFileAndDelete(sitemaps.getIndex()).contains("sitemap3.xml"));
+	}
+	
+	public void testSubscriberOnlyAsksForOneSitemapAtATime() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		ISitemapSubscriber<WebSitemapUrl> subscriber = wsg.toSubscriber();
+		final AtomicLong requested = new AtomicLong();
+		subscriber.onSubscribe(new Flow.Subscription() {
+			public void request(long n) { requested.addAndGet(n); }
+			public void cancel() {}
+		});
+		assertEquals(10, requested.get());
+		for (int i = 0; i < 10; i++) {
+			subscriber.onNext(new WebSitemapUrl("http://www.example.com/"+i));
+		}
+		// the next request only comes once the first sitemap is written
+		for (int i = 0; i < 100 && requested.get() == 10; i++) Thread.sleep(50);
+		assertEquals(20, requested.get());
+		subscriber.onComplete();
+		List<File> files = subscriber.getResult().get(10, TimeUnit.SECONDS).getSitemaps();
+		assertEquals("sitemap didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+	}
+	
+	public void testSubscriberError() throws Exception {
+		wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).build();
+		ISitemapSubscriber<WebSitemapUrl> subscriber = wsg.toSubscriber();
+		SubmissionPublisher<WebSitemapUrl> publisher = new SubmissionPublisher<WebSitemapUrl>();
+		publisher.subscribe(subscriber);
+		for (int i = 0; i < 15; i++) {
+			publisher.submit(new WebSitemapUrl("http://www.example.com/"+i));
+		}
+		publisher.closeExceptionally(new IllegalStateException("catalog went away"));
+		try {
+			subscriber.getResult().get(10, TimeUnit.SECONDS);
+			fail("Publisher failure was ignored");
+		} catch (ExecutionException e) {
+			assertEquals("catalog went away", e.getCause().getMessage());
+		}
+		assertEquals("Partial sitemaps should be deleted", 0, dir.listFiles().length);
+	}
+	
+	public void testExecutorMaxUrlsTimesTwoPlusOne() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			wsg = WebSitemapGenerator.builder("http://www.example.com", dir).executor(executor).autoValidate(true).maxUrls(10).build();
+			for (int i = 0; i < 20; i++) {
+				wsg.addUrl("http://www.example.com/"+i);
+			}
+			wsg.addUrl("http://www.example.com/just-one-more");
+			List<File> files = wsg.write();
+			
+			assertEquals(3, files.size());
+			assertEquals("All files should have their final names", 3, dir.listFiles().length);
+			assertEquals("First sitemap was misnamed", "sitemap1.xml", files.get(0).getName());
+			assertEquals("Second sitemap was misnamed", "sitemap2.xml", files.get(1).getName());
+			assertEquals("Third sitemap was misnamed", "sitemap3.xml", files.get(2).getName());
+			assertEquals("sitemap1 didn't match", SITEMAP1, TestUtil.slurpFileAndDelete(files.get(0)));
+			assertEquals("sitemap2 didn't match", SITEMAP2, TestUtil.slurpFileAndDelete(files.get(1)));
+			assertEquals("sitemap3 didn't match", SITEMAP_PLUS_ONE, TestUtil.slurpFileAndDelete(files.get(2)));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	public void testExecutorSingleSitemap() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			wsg = WebSitemapGenerator.builder("http://www.example.com", dir).executor(executor).maxUrls(10).build();
+			for (int i = 0; i < 10; i++) {
+				wsg.addUrl("http://www.example.com/"+i);
+			}
+			assertEquals("sitemap didn't match", SITEMAP1, writeSingleSiteMap(wsg));
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	public void testExecutorSplitsBatchByBytes() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			wsg = WebSitemapGenerator.builder("http://www.example.com", dir).executor(executor).maxBytes(SITEMAP2.length()).build();
+			assertSplitIntoSitemap1AndSitemap2();
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
 	private String writeSingleSiteMap(WebSitemapGenerator wsg) {
 		List<File> files = wsg.write();
 		assertEquals("Too many files: " + files.toString(), 1, files.size());
@@ -0,0 +1,192 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class SitemapManifestTest extends TestCase {
+
+	private static final long OLD = 1000000000000L;
+	File dir;
+	File manifestFile;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapManifestTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		manifestFile = new File(dir, "sitemap_manifest.txt");
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testManifestDescribesEachSitemap() throws Exception {
+		WebSitemapGenerator wsg = builder().build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+		SitemapManifest manifest = SitemapManifest.read(manifestFile);
+		assertEquals(3, manifest.getEntries().size());
+		SitemapManifest.Entry first = manifest.getEntries().get(0);
+		assertEquals("sitemap1.xml", first.getName());
+		assertEquals(10, first.getUrlCount());
+		byte[] bytes = Files.readAllBytes(new File(dir, "sitemap1.xml").toPath());
+		assertEquals(bytes.length, first.getBytes());
+		assertEquals(hex(MessageDigest.getInstance("SHA-256").digest(bytes)), first.getHash());
+		assertEquals(new Date(OLD + 9000), first.getMaxLastMod());
+		assertEquals(5, manifest.getEntries().get(2).getUrlCount());
+	}
+
+	public void testUnchangedSitemapsAreNotRewritten() throws Exception {
+		WebSitemapGenerator wsg = builder().build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+		backdate();
+		String before = new String(Files.readAllBytes(new File(dir, "sitemap1.xml").toPath()), "UTF-8");
+		Date firstRun = SitemapManifest.read(manifestFile).getEntries().get(0).getChanged();
+
+		wsg = builder().build();
+		addUrls(wsg, 25, 15);
+		wsg.write();
+		assertEquals(OLD, new File(dir, "sitemap1.xml").lastModified());
+		assertTrue(new File(dir, "sitemap2.xml").lastModified() > OLD);
+		assertTrue(new File(dir, "sitemap3.xml").lastModified() > OLD);
+		assertEquals(before, new String(Files.readAllBytes(new File(dir, "sitemap1.xml").toPath()), "UTF-8"));
+		SitemapManifest manifest = SitemapManifest.read(manifestFile);
+		assertEquals(firstRun, manifest.getEntries().get(0).getChanged());
+		assertEquals(new Date(OLD + 19000), manifest.getEntries().get(1).getMaxLastMod());
+	}
+
+	public void testStreamingAndGzip() throws Exception {
+		WebSitemapGenerator wsg = builder().streaming(true).gzip(true).build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+		backdate();
+
+		wsg = builder().streaming(true).gzip(true).build();
+		addUrls(wsg, 25, 0);
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		for (File file : files) {
+			assertEquals(OLD, file.lastModified());
+		}
+		for (String name : dir.list()) {
+			assertFalse(name, name.endsWith(".tmp"));
+		}
+		String xml = TestUtil.slurpGzippedFileAndDelete(files.get(2));
+		assertTrue(xml.contains("<loc>http://www.example.com/24</loc>"));
+	}
+
+	public void testExecutorReusesUnchangedSitemaps() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			WebSitemapGenerator wsg = builder().executor(executor).build();
+			addUrls(wsg, 25, 0);
+			wsg.write();
+			backdate();
+
+			wsg = builder().executor(executor).build();
+			addUrls(wsg, 25, 20);
+			wsg.write();
+			assertEquals(OLD, new File(dir, "sitemap1.xml").lastModified());
+			assertEquals(OLD, new File(dir, "sitemap2.xml").lastModified());
+			assertTrue(new File(dir, "sitemap3.xml").lastModified() > OLD);
+			for (String name : dir.list()) {
+				assertFalse(name, name.endsWith(".tmp"));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testLeftoverSitemapsAreDeleted() throws Exception {
+		WebSitemapGenerator wsg = builder().build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+
+		wsg = builder().build();
+		addUrls(wsg, 8, 0);
+		List<File> files = wsg.write();
+		assertEquals(1, files.size());
+		assertEquals("sitemap.xml", files.get(0).getName());
+		assertFalse(new File(dir, "sitemap1.xml").exists());
+		assertFalse(new File(dir, "sitemap2.xml").exists());
+		assertFalse(new File(dir, "sitemap3.xml").exists());
+		assertEquals(1, SitemapManifest.read(manifestFile).getEntries().size());
+	}
+
+	public void testSingleSitemapThatGrows() throws Exception {
+		WebSitemapGenerator wsg = builder().streaming(true).build();
+		addUrls(wsg, 10, 0);
+		wsg.write();
+		assertTrue(new File(dir, "sitemap.xml").exists());
+		backdate();
+
+		wsg = builder().streaming(true).build();
+		addUrls(wsg, 15, 0);
+		wsg.write();
+		assertFalse(new File(dir, "sitemap.xml").exists());
+		assertEquals(OLD, new File(dir, "sitemap1.xml").lastModified());
+		assertTrue(new File(dir, "sitemap2.xml").exists());
+	}
+
+	public void testIndexUsesEachSitemapsLastMod() throws Exception {
+		WebSitemapGenerator wsg = builder().build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+		String index = wsg.writeSitemapsWithIndexAsString();
+		W3CDateFormat dateFormat = new W3CDateFormat();
+		assertTrue(index, index.contains("<loc>http://www.example.com/sitemap1.xml</loc>\n    <lastmod>" + dateFormat.format(new Date(OLD + 9000)) + "</lastmod>"));
+		assertTrue(index, index.contains("<loc>http://www.example.com/sitemap3.xml</loc>\n    <lastmod>" + dateFormat.format(new Date(OLD + 24000)) + "</lastmod>"));
+	}
+
+	public void testMemorySink() throws Exception {
+		MemorySitemapOutputSink sink = new MemorySitemapOutputSink();
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null).outputSink(sink).maxUrls(10).manifest(manifestFile).build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+		byte[] first = sink.get("sitemap1.xml");
+
+		wsg = WebSitemapGenerator.builder("http://www.example.com", null).outputSink(sink).maxUrls(10).manifest(manifestFile).build();
+		addUrls(wsg, 25, 0);
+		wsg.write();
+		assertSame(first, sink.get("sitemap1.xml"));
+	}
+
+	private SitemapGeneratorBuilder<WebSitemapGenerator> builder() throws Exception {
+		return WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).manifest(manifestFile);
+	}
+
+	/** Adds URLs 0 through count-1; the ones from changedFrom on get a different priority than last time */
+	private void addUrls(WebSitemapGenerator wsg, int count, int changedFrom) throws Exception {
+		for (int i = 0; i < count; i++) {
+			WebSitemapUrl.Options url = new WebSitemapUrl.Options("http://www.example.com/" + i).lastMod(new Date(OLD + i * 1000L));
+			if (i >= changedFrom && changedFrom > 0) url.priority(0.5);
+			wsg.addUrl(url.build());
+		}
+	}
+
+	/** Makes every sitemap look old, so we can tell which ones get rewritten */
+	private void backdate() {
+		for (File file : dir.listFiles()) {
+			if (!file.equals(manifestFile)) file.setLastModified(OLD);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes) sb.append(String.format("%02x", b));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,190 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class SitemapOutputSinkTest extends TestCase {
+
+	File dir;
+	List<String> expected;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapOutputSinkTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null).maxUrls(10).build();
+		addUrls(wsg);
+		expected = wsg.writeAsStrings();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testMemorySink() throws Exception {
+		MemorySitemapOutputSink sink = new MemorySitemapOutputSink();
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null).outputSink(sink).maxUrls(10).build();
+		addUrls(wsg);
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		assertEquals("sitemap1.xml", files.get(0).getName());
+		wsg.writeSitemapsWithIndex();
+		Map<String, byte[]> sitemaps = sink.getSitemaps();
+		assertEquals(4, sitemaps.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expected.get(i), sink.getAsString("sitemap" + (i + 1) + ".xml"));
+		}
+		assertTrue(sink.getAsString("sitemap_index.xml").contains("<loc>http://www.example.com/sitemap3.xml</loc>"));
+	}
+
+	public void testMemorySinkStreamingRenamesFirstSitemap() throws Exception {
+		MemorySitemapOutputSink sink = new MemorySitemapOutputSink();
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null).outputSink(sink).streaming(true).maxUrls(10).build();
+		addUrls(wsg);
+		wsg.write();
+		assertNull(sink.get("sitemap.xml"));
+		assertEquals(expected.get(0), sink.getAsString("sitemap1.xml"));
+		assertEquals(expected.get(2), sink.getAsString("sitemap3.xml"));
+	}
+
+	public void testChannelSinkWithExecutor() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null)
+				.outputSink(new ChannelSitemapOutputSink(dir.toPath())).executor(executor).autoValidate(true).maxUrls(10).build();
+			addUrls(wsg);
+			List<File> files = wsg.write();
+			assertEquals("All files should have their final names", 3, dir.listFiles().length);
+			for (int i = 0; i < 3; i++) {
+				assertEquals(new File(dir, "sitemap" + (i + 1) + ".xml"), files.get(i));
+				assertEquals(expected.get(i), TestUtil.slurpFileAndDelete(files.get(i)));
+			}
+			File index = wsg.writeSitemapsWithIndex();
+			assertEquals(new File(dir, "sitemap_index.xml"), index);
+			assertTrue(TestUtil.slurpFileAndDelete(index).contains("sitemap3.xml"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public void testChannelSinkTinyBufferEveryFsyncPolicy() throws Exception {
+		for (FsyncPolicy policy : FsyncPolicy.values()) {
+			WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null)
+				.outputSink(new ChannelSitemapOutputSink(dir.toPath(), policy, 16)).streaming(true).maxUrls(10).build();
+			addUrls(wsg);
+			List<File> files = wsg.write();
+			for (int i = 0; i < 3; i++) {
+				assertEquals(policy + " sitemap" + (i + 1), expected.get(i), TestUtil.slurpFileAndDelete(files.get(i)));
+			}
+		}
+	}
+
+	public void testFsyncPolicyOption() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir)
+			.fsyncPolicy(FsyncPolicy.AT_END).gzip(true).maxUrls(10).build();
+		addUrls(wsg);
+		List<File> files = wsg.write();
+		assertEquals(3, files.size());
+		for (int i = 0; i < 3; i++) {
+			assertEquals(expected.get(i), TestUtil.slurpGzippedFileAndDelete(files.get(i)));
+		}
+		assertTrue(TestUtil.slurpFileAndDelete(wsg.writeSitemapsWithIndex()).contains("sitemap3.xml.gz"));
+	}
+
+	public void testChannelSinkAbortLeavesNothingBehind() throws Exception {
+		ChannelSitemapOutputSink sink = new ChannelSitemapOutputSink(dir.toPath(), FsyncPolicy.AT_END, 4);
+		ISitemapOutput output = sink.open("sitemap.xml");
+		output.getStream().write("<urlset".getBytes("UTF-8"));
+		output.abort();
+		sink.finish();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testChannelSinkOnlyShowsCommittedSitemaps() throws Exception {
+		ChannelSitemapOutputSink sink = new ChannelSitemapOutputSink(dir.toPath(), FsyncPolicy.NONE, 4);
+		ISitemapOutput output = sink.open("sitemap.xml");
+		output.getStream().write("<urlset/>".getBytes("UTF-8"));
+		output.getStream().close();
+		assertFalse(new File(dir, "sitemap.xml").exists());
+		output.commit();
+		assertEquals("<urlset/>", TestUtil.slurpFileAndDelete(new File(dir, "sitemap.xml")));
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testChannelSinkKeepsFewSpareBuffers() throws Exception {
+		ChannelSitemapOutputSink sink = new ChannelSitemapOutputSink(dir.toPath(), FsyncPolicy.NONE, 16);
+		List<ISitemapOutput> outputs = new ArrayList<ISitemapOutput>();
+		for (int i = 0; i < 5; i++) outputs.add(sink.open("sitemap" + i + ".xml"));
+		for (ISitemapOutput output : outputs) output.commit();
+		assertEquals(1, sink.getIdleBufferCount());
+		sink.open("sitemap.xml").abort();
+		assertEquals(1, sink.getIdleBufferCount());
+	}
+
+	public void testOutputStreamSink() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null)
+			.outputSink(new OutputStreamSitemapOutputSink(out)).streaming(true).build();
+		for (int i = 0; i < 10; i++) {
+			wsg.addUrl("http://www.example.com/" + i);
+		}
+		wsg.write();
+		assertEquals(expected.get(0), new String(out.toByteArray(), "UTF-8"));
+	}
+
+	public void testOutputStreamSinkOneAtATime() throws Exception {
+		OutputStreamSitemapOutputSink sink = new OutputStreamSitemapOutputSink(new ByteArrayOutputStream());
+		ISitemapOutput first = sink.open("sitemap1.xml");
+		try {
+			sink.open("sitemap2.xml");
+			fail("Opened two sitemaps on one stream at once");
+		} catch (java.io.IOException e) {}
+		first.commit();
+		sink.open("sitemap2.xml").abort();
+	}
+
+	public void testOutputStreamSinkRejectsExecutorAndConcurrentMode() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			WebSitemapGenerator.builder("http://www.example.com", null)
+				.outputSink(new OutputStreamSitemapOutputSink(new ByteArrayOutputStream())).executor(executor).build();
+			fail("an output stream can't take sitemaps from an executor");
+		} catch (RuntimeException e) {
+		} finally {
+			executor.shutdown();
+		}
+		try {
+			WebSitemapGenerator.builder("http://www.example.com", null)
+				.outputSink(new OutputStreamSitemapOutputSink(new ByteArrayOutputStream())).concurrent(true).build();
+			fail("an output stream can't take sitemaps from concurrent mode");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	public void testAbortLeavesNothingBehind() throws Exception {
+		FileSitemapOutputSink sink = new FileSitemapOutputSink(dir);
+		ISitemapOutput output = sink.open("sitemap.xml");
+		output.getStream().write("<urlset".getBytes("UTF-8"));
+		assertEquals(7, output.getBytesWritten());
+		output.abort();
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	private void addUrls(WebSitemapGenerator wsg) {
+		for (int i = 0; i < 21; i++) {
+			wsg.addUrl("http://www.example.com/" + i);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import junit.framework.TestCase;
+
+public class SitemapShardLocatorTest extends TestCase {
+
+	File dir;
+	File locatorFile;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapShardLocatorTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+		locatorFile = new File(dir, "locator.dat");
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testFindsTheSitemapForEachUrl() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).locator(locatorFile).build();
+		addUrls(wsg, 25);
+		wsg.write();
+		SitemapShardLocator locator = SitemapShardLocator.open(locatorFile);
+		assertEquals(25, locator.size());
+		assertEquals(3, locator.getShardNames().size());
+		for (int i = 0; i < 25; i++) {
+			assertEquals(i / 10 + 1, locator.findShard("http://www.example.com/" + i));
+		}
+		assertEquals("sitemap3.xml", locator.findShardName("http://www.example.com/24"));
+		assertEquals(-1, locator.findShard("http://www.example.com/nope"));
+		assertNull(locator.findShardName("http://www.example.com/nope"));
+	}
+
+	public void testLoneSitemapIsNumberedZero() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).locator(locatorFile).build();
+		addUrls(wsg, 5);
+		wsg.write();
+		SitemapShardLocator locator = SitemapShardLocator.open(locatorFile);
+		assertEquals(0, locator.findShard("http://www.example.com/3"));
+		assertEquals("sitemap.xml", locator.findShardName("http://www.example.com/3"));
+	}
+
+	public void testStreamingRenamesTheFirstSitemap() throws Exception {
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).streaming(true).locator(locatorFile).build();
+		addUrls(wsg, 15);
+		wsg.write();
+		SitemapShardLocator locator = SitemapShardLocator.open(locatorFile);
+		assertEquals("sitemap1.xml", locator.findShardName("http://www.example.com/0"));
+		assertEquals("sitemap2.xml", locator.findShardName("http://www.example.com/14"));
+	}
+
+	public void testExecutorBatchesAreLocatedByTheirFinalNames() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).executor(executor).locator(locatorFile).build();
+			addUrls(wsg, 35);
+			wsg.write();
+		} finally {
+			executor.shutdown();
+		}
+		SitemapShardLocator locator = SitemapShardLocator.open(locatorFile);
+		for (int i = 0; i < 35; i++) {
+			assertEquals(i / 10 + 1, locator.findShard("http://www.example.com/" + i));
+		}
+		// the spilled fingerprints are gone once they're merged
+		for (String name : dir.list()) {
+			assertFalse(name, name.endsWith(".tmp"));
+		}
+	}
+
+	public void testUnchangedSitemapsKeptByTheManifestAreLocated() throws Exception {
+		File manifest = new File(dir, "manifest.txt");
+		for (int run = 0; run < 2; run++) {
+			WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", dir).maxUrls(10).manifest(manifest).locator(locatorFile).build();
+			addUrls(wsg, 20 + run * 5);
+			wsg.write();
+		}
+		SitemapShardLocator locator = SitemapShardLocator.open(locatorFile);
+		assertEquals(25, locator.size());
+		assertEquals(1, locator.findShard("http://www.example.com/2"));
+		assertEquals(3, locator.findShard("http://www.example.com/22"));
+	}
+
+	public void testMergesInPassesWhenThereAreManySitemaps() throws Exception {
+		List<String> names = new ArrayList<String>();
+		List<File> spills = new ArrayList<File>();
+		for (int shard = 1; shard <= 7; shard++) {
+			long[] fingerprints = new long[10];
+			for (int i = 0; i < 10; i++) fingerprints[i] = SitemapShardLocator.fingerprint("http://www.example.com/" + shard + "/" + i);
+			names.add("sitemap" + shard + ".xml");
+			spills.add(SitemapShardLocator.spill(locatorFile, fingerprints, fingerprints.length));
+		}
+		// seven sitemaps, merged two at a time, take three passes
+		SitemapShardLocator.write(locatorFile, names, spills, true, 2);
+		SitemapShardLocator locator = SitemapShardLocator.open(locatorFile);
+		assertEquals(70, locator.size());
+		for (int shard = 1; shard <= 7; shard++) {
+			for (int i = 0; i < 10; i++) {
+				assertEquals(shard, locator.findShard("http://www.example.com/" + shard + "/" + i));
+			}
+		}
+		for (String name : dir.list()) {
+			assertFalse(name, name.endsWith(".tmp"));
+		}
+	}
+
+	private void addUrls(WebSitemapGenerator wsg, int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			wsg.addUrl("http://www.example.com/" + i);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class SitemapUrlSorterTest extends TestCase {
+
+	File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapUrlSorterTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testSpillsRunsAndMergesThem() throws Exception {
+		SitemapUrlSorter<WebSitemapUrl> sorter = new SitemapUrlSorter<WebSitemapUrl>(new WebSitemapUrlCodec(), SitemapUrlSorter.byUrl(), 20000, dir);
+		List<String> expected = new ArrayList<String>();
+		Random random = new Random(42);
+		for (int i = 0; i < 1000; i++) {
+			String url = "http://www.example.com/" + random.nextInt(100000);
+			expected.add(url);
+			sorter.add(new WebSitemapUrl(url));
+		}
+		Collections.sort(expected);
+		assertTrue("expected several runs, got " + sorter.getRunCount(), sorter.getRunCount() > 5);
+		final List<String> actual = new ArrayList<String>();
+		sorter.forEachSorted(url -> actual.add(url.getUrl().toString()));
+		assertEquals(expected, actual);
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	public void testSortByLastModIsStable() throws Exception {
+		SitemapUrlSorter<WebSitemapUrl> sorter = new SitemapUrlSorter<WebSitemapUrl>(new WebSitemapUrlCodec(), SitemapUrlSorter.byLastMod(), 5000, dir);
+		for (int i = 0; i < 200; i++) {
+			WebSitemapUrl.Options options = new WebSitemapUrl.Options("http://www.example.com/" + i);
+			if (i % 5 != 0) options.lastMod(new Date(1000000L * (i % 3)));
+			sorter.add(options.build());
+		}
+		assertTrue(sorter.getRunCount() > 1);
+		final List<WebSitemapUrl> sorted = new ArrayList<WebSitemapUrl>();
+		sorter.forEachSorted(sorted::add);
+		assertEquals(200, sorted.size());
+		for (int i = 1; i < sorted.size(); i++) {
+			WebSitemapUrl a = sorted.get(i - 1);
+			WebSitemapUrl b = sorted.get(i);
+			int c = SitemapUrlSorter.byLastMod().compare(a, b);
+			assertTrue(c <= 0);
+			if (c == 0) assertTrue(number(a) < number(b));
+		}
+		assertNull(sorted.get(0).getLastMod());
+	}
+
+	public void testSortIntoGenerator() throws Exception {
+		SitemapUrlSorter<WebSitemapUrl> sorter = new SitemapUrlSorter<WebSitemapUrl>(new WebSitemapUrlCodec(), SitemapUrlSorter.byUrl(), 1000, dir);
+		for (int i = 9; i >= 0; i--) sorter.add(new WebSitemapUrl("http://www.example.com/" + i));
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com", null).build();
+		sorter.sortInto(wsg);
+		String sitemap = wsg.writeAsStrings().get(0);
+		assertTrue(sitemap.indexOf("/0<") < sitemap.indexOf("/5<"));
+		assertTrue(sitemap.indexOf("/5<") < sitemap.indexOf("/9<"));
+		try {
+			sorter.add(new WebSitemapUrl("http://www.example.com/10"));
+			fail("already sorted");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	private static int number(WebSitemapUrl url) {
+		String s = url.getUrl().toString();
+		return Integer.parseInt(s.substring(s.lastIndexOf('/') + 1));
+	}
+}
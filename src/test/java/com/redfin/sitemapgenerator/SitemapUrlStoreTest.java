@@ -0,0 +1,126 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class SitemapUrlStoreTest extends TestCase {
+
+	File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(SitemapUrlStoreTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testPutGetAndDelete() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec(), 3, 8);
+		Date lastMod = new Date(1234567890000L);
+		store.put(new WebSitemapUrl.Options("http://www.example.com/a").lastMod(lastMod).priority(0.5).changeFreq(ChangeFreq.DAILY).build());
+		for (int i = 0; i < 10; i++) store.put(url(i));
+		store.delete("http://www.example.com/3");
+		WebSitemapUrl a = store.get("http://www.example.com/a");
+		assertEquals(lastMod, a.getLastMod());
+		assertEquals(0.5, a.getPriority());
+		assertEquals(ChangeFreq.DAILY, a.getChangeFreq());
+		assertNotNull(store.get("http://www.example.com/2"));
+		assertNull(store.get("http://www.example.com/3"));
+		assertNull(store.get("http://www.example.com/nope"));
+		assertEquals(10, keys(store).size());
+		store.close();
+	}
+
+	public void testReopenSeesFlushedChanges() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec());
+		for (int i = 0; i < 5; i++) store.put(url(i));
+		store.flush();
+		store.delete("http://www.example.com/1");
+		store.close();
+
+		store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec());
+		assertEquals(2, store.getSequence());
+		assertEquals(4, keys(store).size());
+		assertNull(store.get("http://www.example.com/1"));
+	}
+
+	public void testRangeScan() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec(), 4, 8);
+		for (int i = 0; i < 10; i++) store.put(url(i));
+		final List<String> keys = new ArrayList<String>();
+		store.forEach("http://www.example.com/3", "http://www.example.com/6", url -> keys.add(url.getUrl().toString()));
+		assertEquals(3, keys.size());
+		assertEquals("http://www.example.com/3", keys.get(0));
+		assertEquals("http://www.example.com/5", keys.get(2));
+	}
+
+	public void testCompactionStopsAtTheCheckpoint() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec(), 2, 3);
+		for (int i = 0; i < 8; i++) store.put(url(i));
+		assertEquals(4, store.getSequence());
+		// nothing has been checkpointed, so nothing may be compacted yet
+		assertEquals(4, store.getRunCount());
+		store.delete("http://www.example.com/0");
+		store.flush();
+		store.checkpoint(store.getSequence());
+		store.compact();
+		assertEquals(1, store.getRunCount());
+		assertEquals(7, keys(store).size());
+
+		final List<String> changed = new ArrayList<String>();
+		store.put(url(0));
+		store.flush();
+		store.forEachChangedKey(store.getCheckpoint(), changed::add);
+		assertEquals(1, changed.size());
+		store.close();
+
+		store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec());
+		assertEquals(8, keys(store).size());
+		assertEquals(5, store.getCheckpoint());
+	}
+
+	public void testOpenIgnoresLeftoversFromACrash() throws Exception {
+		SitemapUrlStore<WebSitemapUrl> store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec(), 2, 8);
+		for (int i = 0; i < 6; i++) store.put(url(i));
+		store.checkpoint(store.getSequence());
+		// keep copies of the runs that compaction will delete, as if we'd crashed before deleting them
+		List<File> before = new ArrayList<File>();
+		List<byte[]> contents = new ArrayList<byte[]>();
+		for (File file : dir.listFiles()) {
+			if (SortedRun.isRunFile(file.getName())) {
+				before.add(file);
+				contents.add(java.nio.file.Files.readAllBytes(file.toPath()));
+			}
+		}
+		store.compact();
+		for (int i = 0; i < before.size(); i++) java.nio.file.Files.write(before.get(i).toPath(), contents.get(i));
+		new File(dir, "run-0000000000000009-0000000000000009.dat.tmp").createNewFile();
+
+		store = new SitemapUrlStore<WebSitemapUrl>(dir, new WebSitemapUrlCodec());
+		assertEquals(1, store.getRunCount());
+		assertEquals(6, keys(store).size());
+		assertFalse(new File(dir, "run-0000000000000009-0000000000000009.dat.tmp").exists());
+	}
+
+	private static WebSitemapUrl url(int i) throws Exception {
+		return new WebSitemapUrl.Options("http://www.example.com/" + i).build();
+	}
+
+	private static List<String> keys(SitemapUrlStore<WebSitemapUrl> store) throws Exception {
+		final List<String> keys = new ArrayList<String>();
+		store.forEach(url -> keys.add(url.getUrl().toString()));
+		return keys;
+	}
+}
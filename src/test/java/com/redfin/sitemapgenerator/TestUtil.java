@@ -1,10 +1,12 @@
 package com.redfin.sitemapgenerator;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
 
 public class TestUtil {
 	public static String getResourceAsString(Class<?> clazz, String path) {
@@ -39,4 +41,21 @@ public class TestUtil {
 		file.delete();
 		return sb.toString();
 	}
+
+	public static String slurpGzippedFileAndDelete(File file) {
+		file.deleteOnExit();
+		StringBuilder sb = new StringBuilder();
+		try {
+			InputStreamReader reader = new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), "UTF-8");
+			int c;
+			while ((c = reader.read()) != -1) {
+				sb.append((char)c);
+			}
+			reader.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		file.delete();
+		return sb.toString();
+	}
 }
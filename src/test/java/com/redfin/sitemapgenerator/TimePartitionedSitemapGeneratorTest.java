@@ -0,0 +1,152 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TimePartitionedSitemapGeneratorTest extends TestCase {
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	File dir;
+
+	public void setUp() throws Exception {
+		dir = File.createTempFile(TimePartitionedSitemapGeneratorTest.class.getSimpleName(), "");
+		dir.delete();
+		dir.mkdir();
+		dir.deleteOnExit();
+	}
+
+	public void tearDown() {
+		for (File file : dir.listFiles()) {
+			file.deleteOnExit();
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	public void testPartitionsByMonth() throws Exception {
+		TimePartitionedSitemapGenerator<WebSitemapUrl> tpsg = generator(date("2019-04-10"));
+		tpsg.addUrl(url("a", "2019-03-05"));
+		tpsg.addUrl(url("b", "2019-04-02"));
+		tpsg.addUrl(url("c", "2019-03-20"));
+		SitemapFiles files = tpsg.write();
+		assertEquals(Arrays.asList("2019-03", "2019-04"), tpsg.getPartitions());
+		assertEquals("2019-04", tpsg.getCurrentPartition());
+		assertEquals(2, files.getSitemaps().size());
+		assertEquals("sitemap-2019-03-1.xml", files.getSitemaps().get(0).getName());
+		assertEquals("sitemap-2019-04-1.xml", files.getSitemaps().get(1).getName());
+		String march = read(new File(dir, "sitemap-2019-03-1.xml"));
+		assertTrue(march.contains("/a<") && march.contains("/c<"));
+		assertFalse(march.contains("/b<"));
+		String index = read(files.getIndex());
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-03-1.xml</loc>\n    <lastmod>2019-03-20</lastmod>"));
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-04-1.xml</loc>\n    <lastmod>2019-04-02</lastmod>"));
+		assertEquals(Arrays.asList("2019-03"), tpsg.getSealedPartitions());
+	}
+
+	public void testSealedPartitionsAreLeftAlone() throws Exception {
+		TimePartitionedSitemapGenerator<WebSitemapUrl> tpsg = generator(date("2019-04-10"));
+		tpsg.addUrl(url("a", "2019-03-05"));
+		tpsg.addUrl(url("b", "2019-04-02"));
+		tpsg.write();
+		File march = new File(dir, "sitemap-2019-03-1.xml");
+		String before = read(march);
+
+		// March is sealed now, so a new March URL is skipped, and its sitemap stays as it was
+		tpsg = generator(date("2019-04-20"));
+		tpsg.addUrl(url("a", "2019-03-05"));
+		tpsg.addUrl(url("late", "2019-03-30"));
+		tpsg.addUrl(url("b", "2019-04-02"));
+		tpsg.addUrl(url("d", "2019-04-18"));
+		SitemapFiles files = tpsg.write();
+		assertEquals(2, tpsg.getSkippedCount());
+		assertEquals(Arrays.asList("sitemap-2019-04-1.xml"), names(files));
+		assertEquals(before, read(march));
+		String index = read(files.getIndex());
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-03-1.xml</loc>\n    <lastmod>2019-03-05</lastmod>"));
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-04-1.xml</loc>\n    <lastmod>2019-04-18</lastmod>"));
+		assertTrue(read(new File(dir, "sitemap-2019-04-1.xml")).contains("/d<"));
+	}
+
+	public void testPastPartitionIsWrittenOnceMoreAfterItsPeriodEnds() throws Exception {
+		TimePartitionedSitemapGenerator<WebSitemapUrl> tpsg = generator(date("2019-04-10"));
+		tpsg.addUrl(url("b", "2019-04-02"));
+		tpsg.write();
+		assertTrue(tpsg.getSealedPartitions().isEmpty());
+
+		// April was current last run, so May's first run still writes it, picking up its late changes
+		tpsg = generator(date("2019-05-01"));
+		tpsg.addUrl(url("b", "2019-04-02"));
+		tpsg.addUrl(url("late", "2019-04-30"));
+		tpsg.write();
+		assertEquals(0, tpsg.getSkippedCount());
+		assertTrue(read(new File(dir, "sitemap-2019-04-1.xml")).contains("/late<"));
+		assertEquals(Arrays.asList("2019-04"), tpsg.getSealedPartitions());
+	}
+
+	public void testPastPartitionWithNoUrlsIsSealedAndStillIndexed() throws Exception {
+		TimePartitionedSitemapGenerator<WebSitemapUrl> tpsg = generator(date("2019-04-10"));
+		tpsg.addUrl(url("a", "2019-03-05"));
+		tpsg.addUrl(url("b", "2019-04-02"));
+		tpsg.write();
+		File april = new File(dir, "sitemap-2019-04-1.xml");
+		String before = read(april);
+
+		// June's first run gets no April URLs; April is sealed as it was, and stays in the index
+		tpsg = generator(date("2019-06-03"));
+		tpsg.addUrl(url("e", "2019-06-01"));
+		SitemapFiles files = tpsg.write();
+		assertEquals(Arrays.asList("sitemap-2019-06-1.xml"), names(files));
+		assertEquals(Arrays.asList("2019-03", "2019-04"), tpsg.getSealedPartitions());
+		assertEquals(before, read(april));
+		String index = read(files.getIndex());
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-03-1.xml</loc>"));
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-04-1.xml</loc>\n    <lastmod>2019-04-02</lastmod>"));
+		assertTrue(index.contains("<loc>http://www.example.com/sitemap-2019-06-1.xml</loc>"));
+	}
+
+	public void testMissingTimeKey() throws Exception {
+		TimePartitionedSitemapGenerator<WebSitemapUrl> tpsg = generator(date("2019-04-10"));
+		try {
+			tpsg.addUrl(new WebSitemapUrl("http://www.example.com/x"));
+			fail("the URL has no lastMod to partition it by");
+		} catch (RuntimeException e) {
+		}
+	}
+
+	private TimePartitionedSitemapGenerator<WebSitemapUrl> generator(Date now) throws Exception {
+		return new TimePartitionedSitemapGenerator<WebSitemapUrl>(
+				WebSitemapGenerator.builder("http://www.example.com", dir).dateFormat(dayFormat()),
+				url -> url.getLastMod(), "yyyy-MM", now, 1024 * 1024);
+	}
+
+	private static WebSitemapUrl url(String path, String lastMod) throws Exception {
+		return new WebSitemapUrl.Options("http://www.example.com/" + path).lastMod(date(lastMod)).build();
+	}
+
+	private static Date date(String day) throws Exception {
+		return new Date(dayFormat().parse(day).getTime() + DAY / 2);
+	}
+
+	private static W3CDateFormat dayFormat() {
+		W3CDateFormat format = new W3CDateFormat(W3CDateFormat.Pattern.DAY);
+		format.setTimeZone(W3CDateFormat.ZULU);
+		return format;
+	}
+
+	private static List<String> names(SitemapFiles files) {
+		List<String> names = new ArrayList<String>();
+		for (File file : files.getSitemaps()) names.add(file.getName());
+		return names;
+	}
+
+	private static String read(File file) throws Exception {
+		return new String(Files.readAllBytes(file.toPath()), "UTF-8");
+	}
+}
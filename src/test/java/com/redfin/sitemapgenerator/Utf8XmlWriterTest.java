@@ -0,0 +1,116 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+
+import junit.framework.TestCase;
+
+import com.redfin.sitemapgenerator.Utf8XmlWriter.Fragment;
+
+public class Utf8XmlWriterTest extends TestCase {
+
+	private static final String MIXED = "http://www.example.com/café?q=日本&x=😀";
+
+	public void testAscii() throws Exception {
+		assertEncodedLikeJdk("http://www.example.com/index.html", 64);
+	}
+
+	public void testNonAscii() throws Exception {
+		assertEncodedLikeJdk(MIXED, 64);
+	}
+
+	public void testTinyBufferNeverSplitsCharacters() throws Exception {
+		assertEncodedLikeJdk(MIXED, 4);
+	}
+
+	public void testSurrogatePairSplitAcrossWrites() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8XmlWriter out = new Utf8XmlWriter(bytes, 16);
+		out.append("a\ud83d");
+		out.append("\ude00b");
+		out.close();
+		assertEquals("a😀b", new String(bytes.toByteArray(), "UTF-8"));
+	}
+
+	public void testUnpairedSurrogate() throws Exception {
+		Utf8XmlWriter out = new Utf8XmlWriter(new ByteArrayOutputStream(), 16);
+		try {
+			out.append("a\ude00b");
+			fail("unpaired low surrogate was written");
+		} catch (CharacterCodingException e) {}
+		out = new Utf8XmlWriter(new ByteArrayOutputStream(), 16);
+		out.append("a\ud83d");
+		try {
+			out.flush();
+			fail("unpaired high surrogate was written");
+		} catch (CharacterCodingException e) {}
+	}
+
+	public void testRenderedUrlBufferRecoversFromBadUrl() throws Exception {
+		final String[] text = { "<loc>a\ud83d" };
+		ISitemapUrlRenderer<WebSitemapUrl> renderer = new ISitemapUrlRenderer<WebSitemapUrl>() {
+			public Class<WebSitemapUrl> getUrlClass() {
+				return WebSitemapUrl.class;
+			}
+
+			public String getXmlNamespaces() {
+				return "";
+			}
+
+			public void render(WebSitemapUrl url, Appendable out, W3CDateFormat dateFormat) throws IOException {
+				out.append(text[0]);
+			}
+		};
+		RenderedUrlBuffer buffer = new RenderedUrlBuffer();
+		WebSitemapUrl url = new WebSitemapUrl("http://www.example.com/");
+		try {
+			buffer.render(renderer, url, null);
+			fail("unpaired high surrogate was rendered");
+		} catch (CharacterCodingException e) {}
+		text[0] = "<loc>b</loc>";
+		assertEquals(12, buffer.render(renderer, url, null));
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8XmlWriter out = new Utf8XmlWriter(bytes, 64);
+		buffer.writeTo(out);
+		out.close();
+		assertEquals("<loc>b</loc>", new String(bytes.toByteArray(), "UTF-8"));
+	}
+
+	public void testFragments() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8XmlWriter out = new Utf8XmlWriter(bytes, 8);
+		Fragment small = new Fragment("<loc>");
+		Fragment big = new Fragment("<caption>été</caption>");
+		out.write(small);
+		out.append("x");
+		out.write(big);
+		out.write(small);
+		assertEquals(small.bytes.length * 2 + 1 + big.bytes.length, out.getBytesWritten());
+		out.close();
+		assertEquals("<loc>x<caption>été</caption><loc>", new String(bytes.toByteArray(), "UTF-8"));
+	}
+
+	public void testFragmentsOnOtherAppendables() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		Utf8XmlWriter.append(sb, new Fragment("<loc>"));
+		assertEquals("<loc>", sb.toString());
+	}
+
+	private void assertEncodedLikeJdk(String text, int bufferSize) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8XmlWriter out = new Utf8XmlWriter(bytes, bufferSize);
+		out.append(text);
+		out.write(text.toCharArray());
+		out.write(text, 1, text.length() - 1);
+		for (int i = 0; i < text.length(); i++) {
+			out.write(text.charAt(i));
+		}
+		out.close();
+		String expected = text + text + text.substring(1) + text;
+		byte[] expectedBytes = expected.getBytes("UTF-8");
+		assertEquals(expected, new String(bytes.toByteArray(), "UTF-8"));
+		assertEquals(expectedBytes.length, bytes.size());
+		assertEquals(expectedBytes.length, out.getBytesWritten());
+	}
+}
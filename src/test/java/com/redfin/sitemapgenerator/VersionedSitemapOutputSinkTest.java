@@ -0,0 +1,98 @@
+package com.redfin.sitemapgenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+
+import junit.framework.TestCase;
+
+public class VersionedSitemapOutputSinkTest extends TestCase {
+
+	File root;
+
+	public void setUp() throws Exception {
+		root = File.createTempFile(VersionedSitemapOutputSinkTest.class.getSimpleName(), "");
+		root.delete();
+		root.mkdir();
+	}
+
+	public void tearDown() throws Exception {
+		deleteRecursively(root);
+	}
+
+	public void testPublishFlipsCurrentAndCleansUp() throws Exception {
+		VersionedSitemapOutputSink first = build(21);
+		assertNull("Nothing should be published yet", VersionedSitemapOutputSink.getCurrentVersion(root));
+		assertFalse(new File(root, "current").exists());
+		first.publish().get();
+		assertEquals(first.getVersion(), VersionedSitemapOutputSink.getCurrentVersion(root));
+		File current = new File(root, "current");
+		assertEquals(first.getVersionDir().getCanonicalFile(), current.getCanonicalFile());
+		assertTrue(new File(current, "sitemap3.xml").exists());
+		assertTrue(new File(current, "sitemap_index.xml").exists());
+
+		// a smaller rebuild doesn't leave sitemap3.xml behind, but the last version sticks around for a while
+		VersionedSitemapOutputSink second = build(5);
+		second.publish().get();
+		assertEquals(second.getVersion(), VersionedSitemapOutputSink.getCurrentVersion(root));
+		assertTrue(new File(current, "sitemap.xml").exists());
+		assertFalse(new File(current, "sitemap3.xml").exists());
+		assertTrue(first.getVersionDir().exists());
+
+		VersionedSitemapOutputSink third = build(5);
+		third.publish().get();
+		assertFalse("Oldest version wasn't deleted", first.getVersionDir().exists());
+		assertTrue(second.getVersionDir().exists());
+	}
+
+	public void testUnpublishedVersionsAreCleanedUp() throws Exception {
+		VersionedSitemapOutputSink failed = new VersionedSitemapOutputSink(root, 1, null);
+		failed.open("sitemap1.xml").getStream().write("<urlset".getBytes("UTF-8"));
+		VersionedSitemapOutputSink good = build(5);
+		assertTrue(failed.getVersionDir().exists());
+		good.publish().get();
+		assertFalse(failed.getVersionDir().exists());
+	}
+
+	public void testFailedLinkFlipLeavesNoTemporaryLink() throws Exception {
+		// something that isn't our symlink is in the way, so the link can't be moved over it
+		File current = new File(root, "current");
+		current.mkdir();
+		Files.write(new File(current, "keep.txt").toPath(), new byte[0]);
+		VersionedSitemapOutputSink sink = build(5);
+		try {
+			sink.publish();
+			fail("the current link wasn't flipped, so publishing didn't work");
+		} catch (IOException e) {}
+		assertTrue(new File(current, "keep.txt").exists());
+		assertFalse(Files.exists(new File(root, ".current.tmp").toPath(), LinkOption.NOFOLLOW_LINKS));
+	}
+
+	public void testCantWriteAfterPublishing() throws Exception {
+		VersionedSitemapOutputSink sink = build(5);
+		sink.publish().get();
+		try {
+			sink.open("sitemap.xml");
+			fail("Wrote to a published version");
+		} catch (IOException e) {}
+	}
+
+	private VersionedSitemapOutputSink build(int urlCount) throws Exception {
+		VersionedSitemapOutputSink sink = new VersionedSitemapOutputSink(root, 2, null);
+		WebSitemapGenerator wsg = WebSitemapGenerator.builder("http://www.example.com/", null).outputSink(sink).maxUrls(10).build();
+		for (int i = 0; i < urlCount; i++) {
+			wsg.addUrl("http://www.example.com/" + i);
+		}
+		wsg.write();
+		wsg.writeSitemapsWithIndex();
+		return sink;
+	}
+
+	private void deleteRecursively(File file) throws IOException {
+		if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+			for (File child : file.listFiles()) deleteRecursively(child);
+		}
+		file.delete();
+	}
+}